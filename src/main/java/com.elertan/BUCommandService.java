@@ -1,5 +1,8 @@
 package com.elertan;
 
+import com.elertan.data.GameRulesDataProvider;
+import com.elertan.data.UnlockedItemsDataProvider;
+import com.elertan.remote.SyncMetrics;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.util.ArrayList;
@@ -23,6 +26,12 @@ public class BUCommandService implements BUPluginLifecycle {
     private PetDropService petDropService;
     @Inject
     private BUChatService buChatService;
+    @Inject
+    private SyncMetrics syncMetrics;
+    @Inject
+    private UnlockedItemsDataProvider unlockedItemsDataProvider;
+    @Inject
+    private GameRulesDataProvider gameRulesDataProvider;
 
     private final List<CommandInfo> commands = new ArrayList<>();
     private final List<CommandInfo> debugCommands = new ArrayList<>();
@@ -36,6 +45,18 @@ public class BUCommandService implements BUPluginLifecycle {
             null,
             this::handleHelp
         ));
+        commands.add(new CommandInfo(
+            "migrate_unlocks",
+            "Switch the group to the compact unlocked item format, once every member has updated",
+            null,
+            this::handleMigrateUnlocks
+        ));
+        commands.add(new CommandInfo(
+            "stats",
+            "Show sync and network statistics",
+            "[reset]",
+            this::handleStats
+        ));
 
         // Debug commands for pet detection testing
         debugCommands.add(new CommandInfo(
@@ -117,6 +138,30 @@ public class BUCommandService implements BUPluginLifecycle {
         debugCommands.stream().map(this::formatCommandHelp).forEach(buChatService::sendMessage);
     }
 
+    private void handleStats(String arg) {
+        if ("reset".equalsIgnoreCase(arg)) {
+            syncMetrics.reset();
+            buChatService.sendMessage("Sync statistics reset");
+            return;
+        }
+        buChatService.sendMessage("[Sync Statistics]");
+        syncMetrics.formatReport().forEach(buChatService::sendMessage);
+    }
+
+    private void handleMigrateUnlocks(String arg) {
+        buChatService.sendMessage("Rewriting unlocked items...");
+        gameRulesDataProvider.enableCompactUnlockedItemFormat()
+            .thenCompose(__ -> unlockedItemsDataProvider.rewriteAllUnlockedItems())
+            .whenComplete((count, throwable) -> {
+                if (throwable != null) {
+                    log.error("Failed to rewrite unlocked items", throwable);
+                    buChatService.sendErrorMessage("Failed to rewrite unlocked items, try again later");
+                    return;
+                }
+                buChatService.sendMessage(String.format("Rewrote %d unlocked items", count));
+            });
+    }
+
     private String formatCommandHelp(CommandInfo cmd) {
         StringBuilder sb = new StringBuilder();
         sb.append("::bu ").append(cmd.getName());
@@ -92,6 +92,8 @@ public final class BUPlugin extends Plugin {
     @Inject
     private BUEventService buEventService;
     @Inject
+    private ItemCatalog itemCatalog;
+    @Inject
     private ItemUnlockService itemUnlockService;
     @Inject
     private PolicyService policyService;
@@ -157,6 +159,7 @@ public final class BUPlugin extends Plugin {
         lifecycleDependencies.add(buChatService);
         lifecycleDependencies.add(memberService);
         lifecycleDependencies.add(gameRulesService);
+        lifecycleDependencies.add(itemCatalog);
         lifecycleDependencies.add(itemUnlockService);
         lifecycleDependencies.add(buPartyService);
         lifecycleDependencies.add(buEventService);
@@ -259,6 +262,7 @@ public final class BUPlugin extends Plugin {
         buChatService.onGameStateChanged(event);
         buPartyService.onGameStateChanged(event);
         achievementDiaryService.onGameStateChanged(event);
+        itemCatalog.onGameStateChanged(event);
         itemUnlockService.onGameStateChanged(event);
         petDropService.onGameStateChanged(event);
         collectionLogService.onGameStateChanged(event);
@@ -271,6 +275,8 @@ public final class BUPlugin extends Plugin {
         buChatService.onGameTick(event);
         petDropService.onGameTick(event);
         collectionLogService.onGameTick(event);
+        // Last, so writes made by the services above go out in this tick's batch
+        storageService.onGameTick(event);
     }
 
     @Subscribe
@@ -0,0 +1,476 @@
+package com.elertan;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.Client;
+import net.runelite.api.GameState;
+import net.runelite.api.ItemComposition;
+import net.runelite.api.events.GameStateChanged;
+import net.runelite.api.gameval.ItemID;
+import net.runelite.client.RuneLite;
+import net.runelite.client.callback.ClientThread;
+import net.runelite.client.game.ItemManager;
+import net.runelite.client.game.ItemMapping;
+
+/**
+ * Canonical ids, names and the placeholder and tradeable flags of every item, in flat tables.
+ * <p>
+ * Built once per game revision on the client thread, a chunk of items per client loop so no frame
+ * stalls, and saved to disk keyed by the revision, so later sessions only read a file. Once built,
+ * lookups are array reads that any thread can do. Until then, and for ids past the tables (items
+ * added by a cache update within the revision), the same values are computed from the item
+ * definitions, which must happen on the client thread.
+ */
+@Slf4j
+@Singleton
+public class ItemCatalog implements BUPluginLifecycle {
+
+    // Items whose variants ItemMapping maps to one tradeable item,
+    // e.g. ensouled heads you can and cannot re-animate
+    private static final Set<Integer> ITEM_MAPPING_ITEM_IDS = ImmutableSet.of(
+        ItemID.ARCEUUS_CORPSE_GOBLIN_INITIAL,
+        ItemID.ARCEUUS_CORPSE_MONKEY_INITIAL,
+        ItemID.ARCEUUS_CORPSE_IMP_INITIAL,
+        ItemID.ARCEUUS_CORPSE_MINOTAUR_INITIAL,
+        ItemID.ARCEUUS_CORPSE_SCORPION_INITIAL,
+        ItemID.ARCEUUS_CORPSE_BEAR_INITIAL,
+        ItemID.ARCEUUS_CORPSE_UNICORN_INITIAL,
+        ItemID.ARCEUUS_CORPSE_DOG_INITIAL,
+        ItemID.ARCEUUS_CORPSE_CHAOSDRUID_INITIAL,
+        ItemID.ARCEUUS_CORPSE_GIANT_INITIAL,
+        ItemID.ARCEUUS_CORPSE_OGRE_INITIAL,
+        ItemID.ARCEUUS_CORPSE_ELF_INITIAL,
+        ItemID.ARCEUUS_CORPSE_TROLL_INITIAL,
+        ItemID.ARCEUUS_CORPSE_HORROR_INITIAL,
+        ItemID.ARCEUUS_CORPSE_KALPHITE_INITIAL,
+        ItemID.ARCEUUS_CORPSE_DAGANNOTH_INITIAL,
+        ItemID.ARCEUUS_CORPSE_BLOODVELD_INITIAL,
+        ItemID.ARCEUUS_CORPSE_TZHAAR_INITIAL,
+        ItemID.ARCEUUS_CORPSE_DEMON_INITIAL,
+        ItemID.ARCEUUS_CORPSE_HELLHOUND_INITIAL,
+        ItemID.ARCEUUS_CORPSE_AVIANSIE_INITIAL,
+        ItemID.ARCEUUS_CORPSE_ABYSSAL_INITIAL,
+        ItemID.ARCEUUS_CORPSE_DRAGON_INITIAL
+    );
+
+    private static final Map<String, Integer> MAP_ITEM_NAMES = new HashMap<>() {{
+        // We need to map clue scrolls to a single item counterpart
+        // Because each step has a different item id, and would pollute the item unlocks
+        put("Clue scroll (beginner)", ItemID.TRAIL_CLUE_BEGINNER);
+        put("Clue scroll (easy)", ItemID.TRAIL_CLUE_EASY_EMOTE001);
+        put("Clue scroll (medium)", ItemID.TRAIL_CLUE_MEDIUM_EMOTE001);
+        put("Clue scroll (hard)", ItemID.TRAIL_CLUE_HARD_EMOTE001);
+        put("Clue scroll (elite)", ItemID.TRAIL_CLUE_ELITE_MUSIC001);
+        put("Clue scroll (master)", ItemID.TRAIL_CLUE_MASTER);
+
+        // Same for clue challenge scrolls
+        put("Challenge scroll (medium)", ItemID.TRAIL_CLUE_MEDIUM_ANAGRAM001_CHALLENGE);
+        put("Challenge scroll (hard)", ItemID.TRAIL_CLUE_HARD_ANAGRAM001_CHALLENGE);
+        put("Challenge scroll (elite)", ItemID.TRAIL_ELITE_SKILL_CHALLENGE);
+
+        put("Key (medium)", ItemID.TRAIL_CLUE_MEDIUM_RIDDLE001_KEY);
+        put("Key (elite)", ItemID.TRAIL_ELITE_RIDDLE_KEY32);
+
+        put("Loot key", ItemID.WILDY_LOOT_KEY0);
+
+        // Black mask charge variants - all map to uncharged (8921)
+        put("Black mask", 8921);
+        for (int i = 1; i <= 10; i++) {
+            put("Black mask (" + i + ")", 8921);
+        }
+    }};
+
+    // Saved catalogs built with other rules are rebuilt; Set and Map hash codes do not depend on order
+    private static final int RULES_HASH = Objects.hash(ITEM_MAPPING_ITEM_IDS, MAP_ITEM_NAMES);
+    private static final int MAGIC = 0x42554943;
+    private static final int FORMAT_VERSION = 1;
+    private static final String PLUGIN_DIRECTORY = "bronzeman-unleashed";
+    private static final String FILE_PREFIX = "item-catalog-";
+    private static final String FILE_SUFFIX = ".bin";
+    // Item definitions looked up per client loop while building
+    private static final int BUILD_CHUNK_SIZE = 2_000;
+
+    private static final byte FLAG_PLACEHOLDER = 1;
+    private static final byte FLAG_TRADEABLE = 2;
+    // Canonical id of an item whose mapping failed, computed (and failing) again on lookup
+    private static final int NO_CANONICAL_ID = -1;
+
+    @Inject
+    private Client client;
+    @Inject
+    private ClientThread clientThread;
+    @Inject
+    private ItemManager itemManager;
+
+    private ExecutorService fileExecutor;
+    // Null until built or loaded for the current revision. Replaced, never modified.
+    private volatile Tables tables;
+    // Revision and item count the tables are being loaded or built for
+    private volatile int requestedRevision = -1;
+    private volatile int requestedItemCount = -1;
+
+    @Override
+    public void startUp() throws Exception {
+        fileExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bronzeman-item-catalog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clientThread.invokeLater(() -> {
+            if (client.getGameState().getState() >= GameState.LOGIN_SCREEN.getState()) {
+                ensureTables();
+            }
+        });
+    }
+
+    @Override
+    public void shutDown() throws Exception {
+        fileExecutor.shutdownNow();
+        tables = null;
+        requestedRevision = -1;
+        requestedItemCount = -1;
+    }
+
+    public void onGameStateChanged(GameStateChanged event) {
+        GameState gameState = event.getGameState();
+        // Item definitions are loaded from the login screen on
+        if (gameState == GameState.LOGIN_SCREEN || gameState == GameState.LOGGED_IN) {
+            ensureTables();
+        }
+    }
+
+    /**
+     * Whether lookups are answered from the tables, on any thread.
+     */
+    public boolean isReady() {
+        return tables != null;
+    }
+
+    /**
+     * The item an unlock of {@code itemId} counts for: the unnoted, non-placeholder item, mapped to
+     * a single item for variants that should only be unlocked once (ensouled heads, clue scrolls).
+     * Must be called on the client thread unless {@link #isReady()}.
+     */
+    public int canonicalize(int itemId) {
+        Tables current = tables;
+        if (current != null && current.covers(itemId) && current.canonicalIds[itemId] != NO_CANONICAL_ID) {
+            return current.canonicalIds[itemId];
+        }
+        return computeCanonicalId(itemId);
+    }
+
+    /**
+     * Must be called on the client thread unless {@link #isReady()}.
+     */
+    public boolean isPlaceholder(int itemId) {
+        Tables current = tables;
+        if (current != null && current.covers(itemId)) {
+            return (current.flags[itemId] & FLAG_PLACEHOLDER) != 0;
+        }
+        // -1 when the item is not a placeholder
+        return client.getItemDefinition(itemId).getPlaceholderTemplateId() != -1;
+    }
+
+    /**
+     * Must be called on the client thread unless {@link #isReady()}.
+     */
+    public boolean isTradeable(int itemId) {
+        Tables current = tables;
+        if (current != null && current.covers(itemId)) {
+            return (current.flags[itemId] & FLAG_TRADEABLE) != 0;
+        }
+        return client.getItemDefinition(itemId).isTradeable();
+    }
+
+    /**
+     * Must be called on the client thread unless {@link #isReady()}.
+     */
+    public String getName(int itemId) {
+        Tables current = tables;
+        if (current != null && current.covers(itemId)) {
+            return current.names[itemId];
+        }
+        return client.getItemDefinition(itemId).getName();
+    }
+
+    private int computeCanonicalId(int initialItemId) {
+        // We want the base item, not a noted item or similar
+        int itemId = itemManager.canonicalize(initialItemId);
+
+        // If necessary, we also need to map the item to a different one
+        // for example ensouled heads have multiple variations of the same item
+        // one that you can re-animate, and one you cannot.
+        // We don't want to unlock these multiple times
+        if (ITEM_MAPPING_ITEM_IDS.contains(itemId)) {
+            Collection<ItemMapping> mappings = ItemMapping.map(itemId);
+            if (mappings == null || mappings.isEmpty()) {
+                throw new RuntimeException("Failed to map item id " + itemId);
+            }
+            final ItemMapping mapping = mappings.stream().findFirst().get();
+            itemId = mapping.getTradeableItem();
+        }
+
+        // If necessary, we also need to map the item to a different one by name
+        // for example clue scrolls have like 50 variations, but they're
+        // essentially the same item
+        String itemName = client.getItemDefinition(itemId).getName();
+        return MAP_ITEM_NAMES.getOrDefault(itemName, itemId);
+    }
+
+    /**
+     * Loads the tables for the current revision, or builds them when there is no saved catalog.
+     * Client thread only.
+     */
+    private void ensureTables() {
+        int revision = client.getRevision();
+        int itemCount = client.getItemCount();
+        if (revision == requestedRevision && itemCount == requestedItemCount) {
+            // Already there, or on its way
+            return;
+        }
+        requestedRevision = revision;
+        requestedItemCount = itemCount;
+        tables = null;
+
+        Path path = pathFor(revision);
+        try {
+            fileExecutor.execute(() -> {
+                Tables loaded = read(path, revision, itemCount);
+                if (loaded != null) {
+                    publish(loaded);
+                    log.debug("Item catalog for revision {} loaded with {} items", revision, itemCount);
+                    return;
+                }
+                Builder builder = new Builder(revision, itemCount);
+                clientThread.invokeLater(builder::buildChunk);
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+    }
+
+    private boolean isRequested(int revision, int itemCount) {
+        return revision == requestedRevision && itemCount == requestedItemCount;
+    }
+
+    private void publish(Tables built) {
+        if (isRequested(built.revision, built.itemCount)) {
+            tables = built;
+        }
+    }
+
+    private static Path directory() {
+        return RuneLite.RUNELITE_DIR.toPath().resolve(PLUGIN_DIRECTORY);
+    }
+
+    private static Path pathFor(int revision) {
+        return directory().resolve(FILE_PREFIX + revision + FILE_SUFFIX);
+    }
+
+    /**
+     * @return null when there is no usable saved catalog
+     */
+    private static Tables read(Path path, int revision, int itemCount) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC
+                || in.readInt() != FORMAT_VERSION
+                || in.readInt() != RULES_HASH
+                || in.readInt() != revision
+                || in.readInt() != itemCount) {
+                return null;
+            }
+            int[] canonicalIds = new int[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                canonicalIds[i] = in.readInt();
+            }
+            byte[] flags = new byte[itemCount];
+            in.readFully(flags);
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            String[] names = new String[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                int index = in.readInt();
+                names[i] = index < 0 ? null : strings[index];
+            }
+            return new Tables(revision, itemCount, canonicalIds, flags, names);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read item catalog {}, rebuilding it", path, e);
+            return null;
+        }
+    }
+
+    private static void write(Path path, Tables built) {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            Map<String, Integer> stringIndexes = new HashMap<>();
+            int[] nameIndexes = new int[built.itemCount];
+            for (int i = 0; i < built.itemCount; i++) {
+                String name = built.names[i];
+                nameIndexes[i] = name == null ? -1 : stringIndexes.computeIfAbsent(name, __ -> stringIndexes.size());
+            }
+            String[] strings = new String[stringIndexes.size()];
+            for (Map.Entry<String, Integer> entry : stringIndexes.entrySet()) {
+                strings[entry.getValue()] = entry.getKey();
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(RULES_HASH);
+                out.writeInt(built.revision);
+                out.writeInt(built.itemCount);
+                for (int canonicalId : built.canonicalIds) {
+                    out.writeInt(canonicalId);
+                }
+                out.write(built.flags);
+                out.writeInt(strings.length);
+                for (String string : strings) {
+                    out.writeUTF(string);
+                }
+                for (int nameIndex : nameIndexes) {
+                    out.writeInt(nameIndex);
+                }
+            }
+            try {
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // Only costs a rebuild next session
+            log.warn("Failed to save item catalog {}", path, e);
+            return;
+        }
+
+        // Catalogs of older revisions are never read again
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+            path.getParent(),
+            FILE_PREFIX + "*" + FILE_SUFFIX
+        )) {
+            for (Path other : stream) {
+                if (!other.equals(path)) {
+                    Files.deleteIfExists(other);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Failed to delete old item catalogs", e);
+        }
+    }
+
+    /**
+     * Fills the tables a chunk per client loop, see {@link ClientThread#invokeLater(java.util.function.BooleanSupplier)}.
+     */
+    private final class Builder {
+
+        private final int revision;
+        private final int itemCount;
+        private final int[] canonicalIds;
+        private final byte[] flags;
+        private final String[] names;
+        private final Map<String, String> internedNames = new HashMap<>();
+        private final long startedAt = System.nanoTime();
+        private int next = 0;
+
+        private Builder(int revision, int itemCount) {
+            this.revision = revision;
+            this.itemCount = itemCount;
+            this.canonicalIds = new int[itemCount];
+            this.flags = new byte[itemCount];
+            this.names = new String[itemCount];
+        }
+
+        /**
+         * @return true once done (or abandoned for a newer revision)
+         */
+        private boolean buildChunk() {
+            if (!isRequested(revision, itemCount)) {
+                return true;
+            }
+            int end = Math.min(itemCount, next + BUILD_CHUNK_SIZE);
+            for (int itemId = next; itemId < end; itemId++) {
+                ItemComposition itemComposition = client.getItemDefinition(itemId);
+                byte itemFlags = 0;
+                if (itemComposition.getPlaceholderTemplateId() != -1) {
+                    itemFlags |= FLAG_PLACEHOLDER;
+                }
+                if (itemComposition.isTradeable()) {
+                    itemFlags |= FLAG_TRADEABLE;
+                }
+                flags[itemId] = itemFlags;
+                String name = itemComposition.getName();
+                names[itemId] = name == null ? null : internedNames.computeIfAbsent(name, n -> n);
+                try {
+                    canonicalIds[itemId] = computeCanonicalId(itemId);
+                } catch (RuntimeException e) {
+                    canonicalIds[itemId] = NO_CANONICAL_ID;
+                }
+            }
+            next = end;
+            if (next < itemCount) {
+                return false;
+            }
+
+            Tables built = new Tables(revision, itemCount, canonicalIds, flags, names);
+            publish(built);
+            log.debug(
+                "Item catalog for revision {} built with {} items in {} ms",
+                revision,
+                itemCount,
+                (System.nanoTime() - startedAt) / 1_000_000
+            );
+            try {
+                fileExecutor.execute(() -> write(pathFor(revision), built));
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+            return true;
+        }
+    }
+
+    private static final class Tables {
+
+        private final int revision;
+        private final int itemCount;
+        private final int[] canonicalIds;
+        private final byte[] flags;
+        private final String[] names;
+
+        private Tables(int revision, int itemCount, int[] canonicalIds, byte[] flags, String[] names) {
+            this.revision = revision;
+            this.itemCount = itemCount;
+            this.canonicalIds = canonicalIds;
+            this.flags = flags;
+            this.names = names;
+        }
+
+        private boolean covers(int itemId) {
+            return itemId >= 0 && itemId < itemCount;
+        }
+    }
+}
@@ -19,8 +19,6 @@ import net.runelite.api.gameval.VarbitID;
 import net.runelite.client.callback.ClientThread;
 import net.runelite.client.chat.ChatMessageBuilder;
 import net.runelite.client.events.ServerNpcLoot;
-import net.runelite.client.game.ItemManager;
-import net.runelite.client.game.ItemMapping;
 import net.runelite.client.game.ItemStack;
 
 import com.elertan.utils.Subscription;
@@ -54,58 +52,6 @@ public class ItemUnlockService implements BUPluginLifecycle {
         ItemID.PLATINUM
     );
 
-    private static final Set<Integer> ITEM_MAPPING_ITEM_IDS = ImmutableSet.of(
-        ItemID.ARCEUUS_CORPSE_GOBLIN_INITIAL,
-        ItemID.ARCEUUS_CORPSE_MONKEY_INITIAL,
-        ItemID.ARCEUUS_CORPSE_IMP_INITIAL,
-        ItemID.ARCEUUS_CORPSE_MINOTAUR_INITIAL,
-        ItemID.ARCEUUS_CORPSE_SCORPION_INITIAL,
-        ItemID.ARCEUUS_CORPSE_BEAR_INITIAL,
-        ItemID.ARCEUUS_CORPSE_UNICORN_INITIAL,
-        ItemID.ARCEUUS_CORPSE_DOG_INITIAL,
-        ItemID.ARCEUUS_CORPSE_CHAOSDRUID_INITIAL,
-        ItemID.ARCEUUS_CORPSE_GIANT_INITIAL,
-        ItemID.ARCEUUS_CORPSE_OGRE_INITIAL,
-        ItemID.ARCEUUS_CORPSE_ELF_INITIAL,
-        ItemID.ARCEUUS_CORPSE_TROLL_INITIAL,
-        ItemID.ARCEUUS_CORPSE_HORROR_INITIAL,
-        ItemID.ARCEUUS_CORPSE_KALPHITE_INITIAL,
-        ItemID.ARCEUUS_CORPSE_DAGANNOTH_INITIAL,
-        ItemID.ARCEUUS_CORPSE_BLOODVELD_INITIAL,
-        ItemID.ARCEUUS_CORPSE_TZHAAR_INITIAL,
-        ItemID.ARCEUUS_CORPSE_DEMON_INITIAL,
-        ItemID.ARCEUUS_CORPSE_HELLHOUND_INITIAL,
-        ItemID.ARCEUUS_CORPSE_AVIANSIE_INITIAL,
-        ItemID.ARCEUUS_CORPSE_ABYSSAL_INITIAL,
-        ItemID.ARCEUUS_CORPSE_DRAGON_INITIAL
-    );
-
-    private static final Map<String, Integer> MAP_ITEM_NAMES = new HashMap<>() {{
-        // We need to map clue scrolls to a single item counterpart
-        // Because each step has a different item id, and would pollute the item unlocks
-        put("Clue scroll (beginner)", ItemID.TRAIL_CLUE_BEGINNER);
-        put("Clue scroll (easy)", ItemID.TRAIL_CLUE_EASY_EMOTE001);
-        put("Clue scroll (medium)", ItemID.TRAIL_CLUE_MEDIUM_EMOTE001);
-        put("Clue scroll (hard)", ItemID.TRAIL_CLUE_HARD_EMOTE001);
-        put("Clue scroll (elite)", ItemID.TRAIL_CLUE_ELITE_MUSIC001);
-        put("Clue scroll (master)", ItemID.TRAIL_CLUE_MASTER);
-
-        // Same for clue challenge scrolls
-        put("Challenge scroll (medium)", ItemID.TRAIL_CLUE_MEDIUM_ANAGRAM001_CHALLENGE);
-        put("Challenge scroll (hard)", ItemID.TRAIL_CLUE_HARD_ANAGRAM001_CHALLENGE);
-        put("Challenge scroll (elite)", ItemID.TRAIL_ELITE_SKILL_CHALLENGE);
-
-        put("Key (medium)", ItemID.TRAIL_CLUE_MEDIUM_RIDDLE001_KEY);
-        put("Key (elite)", ItemID.TRAIL_ELITE_RIDDLE_KEY32);
-
-        put("Loot key", ItemID.WILDY_LOOT_KEY0);
-
-        // Black mask charge variants - all map to uncharged (8921)
-        put("Black mask", 8921);
-        for (int i = 1; i <= 10; i++) {
-            put("Black mask (" + i + ")", 8921);
-        }
-    }};
     private static final Set<Integer> INCLUDED_CONTAINER_IDS = ImmutableSet.of(
         InventoryID.INV, // inventory
         InventoryID.WORN, // Worn items
@@ -128,7 +74,7 @@ public class ItemUnlockService implements BUPluginLifecycle {
     @Inject
     private ClientThread clientThread;
     @Inject
-    private ItemManager itemManager;
+    private ItemCatalog itemCatalog;
     @Inject
     private BUPluginConfig buPluginConfig;
     @Inject
@@ -380,22 +326,15 @@ public class ItemUnlockService implements BUPluginLifecycle {
     }
 
     public boolean hasUnlockedItem(int initialItemId) throws IllegalStateException {
-        if (unlockedItemsDataProviderNotReady()) {
+        // Membership is known before all unlocked item details have loaded
+        if (!unlockedItemsDataProvider.isMembershipReady()) {
             throw new IllegalStateException("State is not READY");
         }
 
-        int itemId = canonicalizeItemId(initialItemId);
+        int itemId = itemCatalog.canonicalize(initialItemId);
 
-        if (AUTO_UNLOCKED_ITEMS.contains(itemId)) {
-//            log.info("Item with id {} is auto unlocked", itemId);
-            return true;
-        }
-
-        Map<Integer, UnlockedItem> map = unlockedItemsDataProvider.getUnlockedItemsMap();
-        if (map == null) {
-            throw new IllegalStateException("Unlocked items map is null");
-        }
-        return map.containsKey(itemId);
+        // Auto-unlocked items are included
+        return unlockedItemsDataProvider.isUnlocked(itemId);
     }
 
     public CompletableFuture<Void> removeUnlockedItemById(int itemId) {
@@ -463,15 +402,13 @@ public class ItemUnlockService implements BUPluginLifecycle {
         }
 
         // Skip placeholders
-        ItemComposition initialItemComposition = client.getItemDefinition(initialItemId);
-        // This method returns -1 if the item is NOT a placeholder
-        if (initialItemComposition.getPlaceholderTemplateId() != -1) {
+        if (itemCatalog.isPlaceholder(initialItemId)) {
             return CompletableFuture.completedFuture(null);
         }
 
         int itemId;
         try {
-            itemId = canonicalizeItemId(initialItemId);
+            itemId = itemCatalog.canonicalize(initialItemId);
 
             if (hasUnlockedItem(itemId)) {
                 return CompletableFuture.completedFuture(null);
@@ -480,10 +417,9 @@ public class ItemUnlockService implements BUPluginLifecycle {
             return CompletableFuture.failedFuture(ex);
         }
 
-        // Get new item definition after canonicalization
-        ItemComposition itemComposition = client.getItemDefinition(itemId);
-        final boolean fIsTradeable = itemComposition.isTradeable();
-        final String fItemName = itemComposition.getName();
+        // Of the item after canonicalization
+        final boolean fIsTradeable = itemCatalog.isTradeable(itemId);
+        final String fItemName = itemCatalog.getName(itemId);
         final int fItemId = itemId;
         // Cache accountHash before async call - client methods require client thread
         final long acquiredByAccountHash = client.getAccountHash();
@@ -510,34 +446,15 @@ public class ItemUnlockService implements BUPluginLifecycle {
                     droppedByNPCId
                 );
                 log.debug("Unlocked item ({}) '{}'", fItemId, fItemName);
-                return unlockedItemsDataProvider.addUnlockedItem(unlockedItem);
+                return unlockedItemsDataProvider.addUnlockedItem(unlockedItem)
+                    .thenAccept(stored -> {
+                        if (stored.getAcquiredByAccountHash() != acquiredByAccountHash) {
+                            log.debug("Item ({}) '{}' was unlocked by another member first", fItemId, fItemName);
+                        }
+                    });
             });
     }
 
-    private int canonicalizeItemId(int initialItemId) {
-        // We want the base item, not a noted item or similar
-        int itemId = itemManager.canonicalize(initialItemId);
-
-        // If necessary, we also need to map the item to a different one
-        // for example ensouled heads have multiple variations of the same item
-        // one that you can re-animate, and one you cannot.
-        // We don't want to unlock these multiple times
-        if (ITEM_MAPPING_ITEM_IDS.contains(itemId)) {
-            Collection<ItemMapping> mappings = ItemMapping.map(itemId);
-            if (mappings == null || mappings.isEmpty()) {
-                throw new RuntimeException("Failed to map item id " + itemId);
-            }
-            final ItemMapping mapping = mappings.stream().findFirst().get();
-            itemId = mapping.getTradeableItem();
-        }
-
-        // If necessary, we also need to map the item to a different one by name
-        // for example clue scrolls have like 50 variations, but they're
-        // essentially the same item
-        String itemName = client.getItemDefinition(itemId).getName();
-        return MAP_ITEM_NAMES.getOrDefault(itemName, itemId);
-    }
-
     private void unlockedItemDataProviderStateListener(AbstractDataProvider.State state) {
         if (state != AbstractDataProvider.State.Ready) {
             return;
@@ -5,11 +5,16 @@ import com.elertan.remote.StorageService;
 import com.elertan.utils.Observable;
 import com.elertan.utils.Subscription;
 import java.time.Duration;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -20,9 +25,16 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public abstract class AbstractDataProvider implements BUPluginLifecycle {
 
+    private static final Duration FIRST_RETRY_DELAY = Duration.ofSeconds(2);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(1);
+
     @Getter
     private final Observable<State> state = Observable.of(State.NotReady);
     private Subscription storageSubscription;
+    // Awaits started while the current storage session was loading; cancelled when it goes away
+    private final Set<CompletableFuture<State>> pendingAwaits = ConcurrentHashMap.newKeySet();
+    // Changes whenever the storage session does, so retries for a closed session stop
+    private final AtomicLong storageGeneration = new AtomicLong();
 
     /**
      * Subclasses must provide the StorageService instance.
@@ -44,7 +56,7 @@ public abstract class AbstractDataProvider implements BUPluginLifecycle {
     @Override
     public void startUp() throws Exception {
         storageSubscription = getStorageService().getState().subscribeImmediate(
-            (storageState, old) -> onStorageStateChanged(storageState)
+            this::onStorageStateChanged
         );
     }
 
@@ -54,15 +66,29 @@ public abstract class AbstractDataProvider implements BUPluginLifecycle {
             storageSubscription.dispose();
             storageSubscription = null;
         }
+        storageGeneration.incrementAndGet();
         onRemoteStorageNotReady();
         state.set(State.NotReady);
+        cancelPendingAwaits();
     }
 
     /**
      * Wait until this data provider is ready (state == State.Ready).
+     * <p>
+     * The future is cancelled if the storage session it was waiting on is closed first (account
+     * switch, logout or shutdown), so callbacks never run against the next session with state
+     * captured for the previous one.
+     *
+     * @param timeout fails the future with a {@link TimeoutException} after this long, null to
+     *                wait for as long as the session stays open
      */
     public CompletableFuture<State> await(Duration timeout) {
-        return waitForValue(state, State.Ready, timeout);
+        CompletableFuture<State> future = waitForValue(state, State.Ready, timeout);
+        if (!future.isDone()) {
+            pendingAwaits.add(future);
+            future.whenComplete((__, throwable) -> pendingAwaits.remove(future));
+        }
+        return future;
     }
 
     /**
@@ -107,17 +133,105 @@ public abstract class AbstractDataProvider implements BUPluginLifecycle {
             future.whenComplete((result, ex) -> scheduler.shutdown());
         }
 
+        // Cancelled by the caller or the session closing, stop listening
+        future.whenComplete((result, ex) -> {
+            if (future.isCancelled()) {
+                subscriptionHolder[0].dispose();
+            }
+        });
+
         return future;
     }
 
+    /**
+     * Runs {@code read} until it succeeds, waiting twice as long after every failure (up to a
+     * minute), for as long as the current storage session stays open. Meant for the initial read a
+     * provider needs to become ready, so a timeout or a dropped connection only delays readiness.
+     *
+     * @return completed with the first successful result; cancelled when the session closes first
+     */
+    protected <T> CompletableFuture<T> readUntilSuccessful(String description, Supplier<CompletableFuture<T>> read) {
+        return retryUntilSuccessful(description, read, throwable -> true);
+    }
+
+    /**
+     * Like {@link #readUntilSuccessful}, for an operation that can also fail for good: a failure
+     * {@code isRetryable} rejects completes the result with it instead of being retried.
+     */
+    protected <T> CompletableFuture<T> retryUntilSuccessful(
+        String description,
+        Supplier<CompletableFuture<T>> operation,
+        Predicate<Throwable> isRetryable
+    ) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(description, operation, isRetryable, storageGeneration.get(), FIRST_RETRY_DELAY, result);
+        return result;
+    }
+
+    private <T> void attempt(
+        String description,
+        Supplier<CompletableFuture<T>> operation,
+        Predicate<Throwable> isRetryable,
+        long generation,
+        Duration retryDelay,
+        CompletableFuture<T> result
+    ) {
+        if (storageGeneration.get() != generation) {
+            result.cancel(false);
+            return;
+        }
+        CompletableFuture<T> attempt;
+        try {
+            attempt = operation.get();
+        } catch (Exception e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        attempt.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                result.complete(value);
+                return;
+            }
+            if (storageGeneration.get() != generation) {
+                result.cancel(false);
+                return;
+            }
+            if (!isRetryable.test(throwable)) {
+                result.completeExceptionally(throwable);
+                return;
+            }
+            log.warn("{} failed, retrying in {} s", description, retryDelay.getSeconds(), throwable);
+            Duration nextDelay = retryDelay.multipliedBy(2);
+            if (nextDelay.compareTo(MAX_RETRY_DELAY) > 0) {
+                nextDelay = MAX_RETRY_DELAY;
+            }
+            Duration delay = nextDelay;
+            CompletableFuture.delayedExecutor(retryDelay.toMillis(), TimeUnit.MILLISECONDS)
+                .execute(() -> attempt(description, operation, isRetryable, generation, delay, result));
+        });
+    }
+
     protected void setState(State newState) {
         state.set(newState);
     }
 
-    private void onStorageStateChanged(StorageService.State storageState) {
+    private void cancelPendingAwaits() {
+        for (CompletableFuture<State> future : pendingAwaits) {
+            future.cancel(false);
+        }
+        pendingAwaits.clear();
+    }
+
+    private void onStorageStateChanged(
+        StorageService.State storageState,
+        StorageService.State oldStorageState
+    ) {
+        storageGeneration.incrementAndGet();
         if (storageState == StorageService.State.NotReady) {
             onRemoteStorageNotReady();
             setState(State.NotReady);
+            if (oldStorageState == StorageService.State.Ready) {
+                cancelPendingAwaits();
+            }
         } else if (storageState == StorageService.State.Ready) {
             onRemoteStorageReady();
         }
@@ -1,6 +1,7 @@
 package com.elertan.data;
 
 import com.elertan.models.GameRules;
+import com.elertan.models.UnlockedItem;
 import com.elertan.remote.ObjectStoragePort;
 import com.elertan.remote.StorageService;
 import com.elertan.utils.Observable;
@@ -22,6 +23,8 @@ public class GameRulesDataProvider extends AbstractDataProvider {
 
     private ObjectStoragePort<GameRules> storagePort;
     private ObjectStoragePort.Listener<GameRules> storagePortListener;
+    // The session's, the rules decide which unlocked item format it writes; null if it has no choice
+    private UnlockedItem.WriteFormat unlockedItemWriteFormat;
 
 
     @Override
@@ -48,13 +51,10 @@ public class GameRulesDataProvider extends AbstractDataProvider {
     @Override
     protected void onRemoteStorageReady() {
         storagePort = storageService.getGameRulesStoragePort();
+        unlockedItemWriteFormat = storageService.getUnlockedItemWriteFormat();
         storagePort.addListener(storagePortListener);
 
-        storagePort.read().whenComplete((gameRules, throwable) -> {
-            if (throwable != null) {
-                log.error("GameRulesDataProvider storageport read failed", throwable);
-                return;
-            }
+        readUntilSuccessful("GameRulesDataProvider storageport read", storagePort::read).thenAccept(gameRules -> {
             setGameRules(gameRules);
             setState(State.Ready);
         });
@@ -62,7 +62,8 @@ public class GameRulesDataProvider extends AbstractDataProvider {
 
     @Override
     protected void onRemoteStorageNotReady() {
-        gameRules.set(null);
+        setGameRules(null);
+        unlockedItemWriteFormat = null;
         if (storagePort != null) {
             storagePort.removeListener(storagePortListener);
             storagePort = null;
@@ -77,7 +78,32 @@ public class GameRulesDataProvider extends AbstractDataProvider {
         return storagePort.update(newGameRules);
     }
 
+    /**
+     * Records in the game rules that every member can read unlocked items in the compact format,
+     * after which all clients write them that way. Only for groups whose members all run a release
+     * that reads it.
+     */
+    public CompletableFuture<Void> enableCompactUnlockedItemFormat() {
+        GameRules current = gameRules.get();
+        if (getState().get() != State.Ready || current == null) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Not ready yet"));
+            return future;
+        }
+        GameRules newGameRules = current.toBuilder()
+            .unlockedItemFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION)
+            .build();
+        // Applied right away, the items rewritten next must already use it
+        return storagePort.update(newGameRules).thenRun(() -> setGameRules(newGameRules));
+    }
+
     private void setGameRules(GameRules newGameRules) {
         gameRules.set(newGameRules);
+        UnlockedItem.WriteFormat writeFormat = unlockedItemWriteFormat;
+        if (writeFormat != null) {
+            writeFormat.setGroupFormatVersion(
+                newGameRules == null ? null : newGameRules.getUnlockedItemFormatVersion()
+            );
+        }
     }
 }
@@ -41,7 +41,10 @@ public class MembersDataProvider extends AbstractDataProvider {
                 if (membersMap == null) {
                     return;
                 }
-                membersMap = new ConcurrentHashMap<>(map);
+                Map<Long, Member> fullMap = map == null ? Collections.emptyMap() : map;
+                // Update in place, views holding the map keep seeing it
+                membersMap.keySet().retainAll(fullMap.keySet());
+                membersMap.putAll(fullMap);
             }
 
             @Override
@@ -94,11 +97,7 @@ public class MembersDataProvider extends AbstractDataProvider {
         keyValueStoragePort = storageService.getMembersStoragePort();
         keyValueStoragePort.addListener(storagePortListener);
 
-        keyValueStoragePort.readAll().whenComplete((map, throwable) -> {
-            if (throwable != null) {
-                log.error("MembersDataProvider storageport read all failed", throwable);
-                return;
-            }
+        readUntilSuccessful("MembersDataProvider storageport read all", keyValueStoragePort::readAll).thenAccept(map -> {
             membersMap = new ConcurrentHashMap<>(map);
             log.debug("MembersDataProvider initialized with {} members", membersMap.size());
             setState(State.Ready);
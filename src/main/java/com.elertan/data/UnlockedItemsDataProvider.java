@@ -1,15 +1,25 @@
 package com.elertan.data;
 
+import com.elertan.ItemUnlockService;
+import com.elertan.models.ISOOffsetDateTime;
 import com.elertan.models.UnlockedItem;
+import com.elertan.remote.ItemIdSetStoragePort;
 import com.elertan.remote.KeyValueStoragePort;
 import com.elertan.remote.StorageService;
+import com.elertan.remote.firebase.FirebaseHttpException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -17,6 +27,9 @@ import lombok.extern.slf4j.Slf4j;
 public class UnlockedItemsDataProvider extends AbstractDataProvider {
 
     private final ConcurrentLinkedQueue<UnlockedItemsMapListener> unlockedItemsMapListeners = new ConcurrentLinkedQueue<>();
+    // Local writes applied optimistically and not yet echoed back by the storage port, by item id
+    private final ConcurrentHashMap<Integer, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private final AtomicLong nextWriteId = new AtomicLong();
 
     @Inject
     private StorageService storageService;
@@ -24,6 +37,12 @@ public class UnlockedItemsDataProvider extends AbstractDataProvider {
     private KeyValueStoragePort<Integer, UnlockedItem> keyValueStoragePort;
     private KeyValueStoragePort.Listener<Integer, UnlockedItem> storagePortListener;
     private ConcurrentHashMap<Integer, UnlockedItem> unlockedItemsMap;
+    // Null when the storage session keeps no summary of unlocked ids
+    private ItemIdSetStoragePort unlockedItemIdsStoragePort;
+    // Bit per unlocked item id, auto-unlocked items included; null until membership is known.
+    // Built from the summary until the full map has loaded, then from the map, and kept in step
+    // with every change to it. Replaced, never modified, so isUnlocked reads it without a lock.
+    private volatile long[] unlockedItemIdBits;
 
     @Override
     protected StorageService getStorageService() {
@@ -38,40 +57,52 @@ public class UnlockedItemsDataProvider extends AbstractDataProvider {
                 if (unlockedItemsMap == null) {
                     return;
                 }
-                unlockedItemsMap = new ConcurrentHashMap<>(map);
+                Map<Integer, UnlockedItem> fullMap = map == null ? Collections.emptyMap() : map;
+                // Update in place, views holding the map keep seeing it. Optimistic writes the
+                // snapshot predates are kept, their echo is still on its way.
+                unlockedItemsMap.keySet().removeIf(key -> !fullMap.containsKey(key) && !pendingWrites.containsKey(key));
+                unlockedItemsMap.putAll(fullMap);
+                resetUnlockedItemIdBits(unlockedItemsMap);
             }
 
             @Override
             public void onUpdate(Integer key, UnlockedItem newUnlockedItem) {
                 if (unlockedItemsMap == null) {
+                    // Still loading, keep the summary's bits current; the full map will contain it
+                    setUnlockedItemIdBit(key, true);
                     return;
                 }
-                unlockedItemsMap.put(key, newUnlockedItem);
+                UnlockedItem previous = unlockedItemsMap.put(key, newUnlockedItem);
+                setUnlockedItemIdBit(key, true);
 
-                for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
-                    try {
-                        listener.onUpdate(newUnlockedItem);
-                    } catch (Exception ex) {
-                        log.error("unlockedItemUpdateListener: onUpdate", ex);
+                PendingWrite pendingWrite = pendingWrites.get(key);
+                if (pendingWrite != null) {
+                    pendingWrites.remove(key, pendingWrite);
+                    if (pendingWrite.isEchoedBy(newUnlockedItem)) {
+                        // Our own write coming back, listeners already saw it when it was applied
+                        return;
                     }
                 }
+                if (previous != null && isSameUnlock(previous, newUnlockedItem)) {
+                    // Rewritten without changing (e.g. in another storage format), not a new unlock
+                    return;
+                }
+
+                notifyUnlockedItemsMapListenersOnUpdate(newUnlockedItem);
             }
 
             @Override
             public void onDelete(Integer key) {
                 if (unlockedItemsMap == null) {
+                    setUnlockedItemIdBit(key, false);
                     return;
                 }
                 UnlockedItem unlockedItem = unlockedItemsMap.get(key);
                 unlockedItemsMap.remove(key);
+                pendingWrites.remove(key);
+                setUnlockedItemIdBit(key, false);
 
-                for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
-                    try {
-                        listener.onDelete(unlockedItem);
-                    } catch (Exception ex) {
-                        log.error("unlockedItemDeleteListener: onDelete", ex);
-                    }
-                }
+                notifyUnlockedItemsMapListenersOnDelete(unlockedItem);
             }
         };
         super.startUp();
@@ -79,29 +110,182 @@ public class UnlockedItemsDataProvider extends AbstractDataProvider {
 
     @Override
     protected void onRemoteStorageReady() {
-        keyValueStoragePort = storageService.getUnlockedItemsStoragePort();
+        KeyValueStoragePort<Integer, UnlockedItem> port = storageService.getUnlockedItemsStoragePort();
+        keyValueStoragePort = port;
         keyValueStoragePort.addListener(storagePortListener);
 
-        keyValueStoragePort.readAll().whenComplete((map, throwable) -> {
+        // The summary is one small request, so membership checks can start long before the full
+        // records (names, times) have loaded
+        ItemIdSetStoragePort idsPort = storageService.getUnlockedItemIdsStoragePort();
+        unlockedItemIdsStoragePort = idsPort;
+        CompletableFuture<BitSet> summaryFuture = idsPort == null
+            ? CompletableFuture.completedFuture(null)
+            : idsPort.read();
+        summaryFuture.whenComplete((ids, throwable) -> {
             if (throwable != null) {
-                log.error("UnlockedItemDataProvider storageport read all failed", throwable);
+                log.warn("UnlockedItemDataProvider could not read the unlocked item id summary", throwable);
                 return;
             }
+            if (ids != null && resetUnlockedItemIdBitsFromSummary(port, ids)) {
+                log.debug("UnlockedItemDataProvider membership ready with {} items", ids.cardinality());
+            }
+        });
+
+        // Retried until it works, a failed read would otherwise leave strict policies locked all session
+        readUntilSuccessful("UnlockedItemDataProvider storageport read all", port::readAll).thenAccept(map -> {
             unlockedItemsMap = new ConcurrentHashMap<>(map);
+            resetUnlockedItemIdBits(unlockedItemsMap);
             log.debug("UnlockedItemDataProvider initialized with {} items", unlockedItemsMap.size());
             setState(State.Ready);
+
+            if (idsPort != null) {
+                summaryFuture.thenAccept(ids -> addMissingToUnlockedItemIds(port, idsPort, ids));
+            }
         });
     }
 
     @Override
     protected void onRemoteStorageNotReady() {
         unlockedItemsMap = null;
+        clearUnlockedItemIdBits();
+        unlockedItemIdsStoragePort = null;
+        pendingWrites.clear();
         if (keyValueStoragePort != null) {
             keyValueStoragePort.removeListener(storagePortListener);
             keyValueStoragePort = null;
         }
     }
 
+    /**
+     * Whether {@link #isUnlocked} can answer: the full map has loaded, or the summary of unlocked
+     * ids has while the full map is still loading.
+     */
+    public boolean isMembershipReady() {
+        return unlockedItemIdBits != null;
+    }
+
+    /**
+     * Whether the (canonical) item is unlocked, auto-unlocked items included. Two array reads and
+     * no allocation, cheap enough for render paths.
+     *
+     * @throws IllegalStateException when not {@link #isMembershipReady()}
+     */
+    public boolean isUnlocked(int itemId) {
+        long[] bits = unlockedItemIdBits;
+        if (bits == null) {
+            throw new IllegalStateException("Unlocked items are not loaded yet");
+        }
+        // Negative ids land far past the end
+        int word = itemId >>> 6;
+        return word < bits.length && (bits[word] & (1L << itemId)) != 0;
+    }
+
+    private synchronized void setUnlockedItemIdBit(int itemId, boolean unlocked) {
+        long[] bits = unlockedItemIdBits;
+        if (bits == null || itemId < 0) {
+            return;
+        }
+        if (!unlocked && ItemUnlockService.AUTO_UNLOCKED_ITEMS.contains(itemId)) {
+            return;
+        }
+        int word = itemId >>> 6;
+        long mask = 1L << itemId;
+        boolean isSet = word < bits.length && (bits[word] & mask) != 0;
+        if (isSet == unlocked) {
+            return;
+        }
+        long[] updated = Arrays.copyOf(bits, Math.max(bits.length, word + 1));
+        if (unlocked) {
+            updated[word] |= mask;
+        } else {
+            updated[word] &= ~mask;
+        }
+        unlockedItemIdBits = updated;
+    }
+
+    private synchronized void resetUnlockedItemIdBits(Map<Integer, UnlockedItem> map) {
+        BitSet ids = new BitSet();
+        for (Integer itemId : map.keySet()) {
+            if (itemId >= 0) {
+                ids.set(itemId);
+            }
+        }
+        resetUnlockedItemIdBits(ids);
+    }
+
+    /**
+     * @return false when the full map has loaded meanwhile (or the session changed), its bits are
+     *         newer than the summary's
+     */
+    private synchronized boolean resetUnlockedItemIdBitsFromSummary(
+        KeyValueStoragePort<Integer, UnlockedItem> port,
+        BitSet ids
+    ) {
+        if (keyValueStoragePort != port || unlockedItemsMap != null) {
+            return false;
+        }
+        resetUnlockedItemIdBits(ids);
+        return true;
+    }
+
+    private synchronized void resetUnlockedItemIdBits(BitSet ids) {
+        BitSet bits = (BitSet) ids.clone();
+        for (int itemId : ItemUnlockService.AUTO_UNLOCKED_ITEMS) {
+            bits.set(itemId);
+        }
+        unlockedItemIdBits = bits.toLongArray();
+    }
+
+    private synchronized void clearUnlockedItemIdBits() {
+        unlockedItemIdBits = null;
+    }
+
+    /**
+     * Adds unlocks the summary lacks, e.g. made by clients that predate it or lost by a failed
+     * update. Ids are never removed here: one missing from the map may just not have arrived yet.
+     */
+    private void addMissingToUnlockedItemIds(
+        KeyValueStoragePort<Integer, UnlockedItem> port,
+        ItemIdSetStoragePort idsPort,
+        BitSet summary
+    ) {
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (summary == null || map == null || keyValueStoragePort != port) {
+            return;
+        }
+        BitSet missing = new BitSet();
+        for (Integer itemId : map.keySet()) {
+            // Pending writes add themselves once stored
+            if (!summary.get(itemId) && !pendingWrites.containsKey(itemId)) {
+                missing.set(itemId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        log.debug("Adding {} missing items to the unlocked item id summary", missing.cardinality());
+        idsPort.add(missing).whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                log.warn("Failed to update the unlocked item id summary", throwable);
+            }
+        });
+    }
+
+    private static void updateUnlockedItemIds(ItemIdSetStoragePort idsPort, int itemId, boolean unlocked) {
+        if (idsPort == null) {
+            return;
+        }
+        BitSet itemIds = new BitSet();
+        itemIds.set(itemId);
+        CompletableFuture<Void> future = unlocked ? idsPort.add(itemIds) : idsPort.remove(itemIds);
+        future.whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                // Fixed up by the next client that loads the full map, see addMissingToUnlockedItemIds
+                log.warn("Failed to update the unlocked item id summary for item {}", itemId, throwable);
+            }
+        });
+    }
+
     public Map<Integer, UnlockedItem> getUnlockedItemsMap() {
         if (unlockedItemsMap == null) {
             return null;
@@ -117,14 +301,129 @@ public class UnlockedItemsDataProvider extends AbstractDataProvider {
         unlockedItemsMapListeners.remove(listener);
     }
 
-    public CompletableFuture<Void> addUnlockedItem(UnlockedItem unlockedItem) {
+    /**
+     * Unlocks an item, unless another member unlocked it first.
+     * <p>
+     * The item is added to the map and listeners (overlay, chat) are told right away, so it counts
+     * as unlocked while the first-writer-wins write is on its way. A member who loses a race then
+     * gets the winner's unlock in place of their own, announced like a rollback would be. A write
+     * that cannot reach the server is retried, conditionally, until it does or the session closes;
+     * only a write the server rejects is rolled back.
+     *
+     * @return the unlock that is stored: {@code unlockedItem}, or the one that won the race
+     */
+    public CompletableFuture<UnlockedItem> addUnlockedItem(UnlockedItem unlockedItem) {
         if (getState().get() != State.Ready) {
-            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<UnlockedItem> future = new CompletableFuture<>();
             future.completeExceptionally(new IllegalStateException("State is not ready"));
             return future;
         }
-        unlockedItemsMap.put(unlockedItem.getId(), unlockedItem);
-        return keyValueStoragePort.update(unlockedItem.getId(), unlockedItem);
+        int itemId = unlockedItem.getId();
+        PendingWrite pendingWrite = new PendingWrite(
+            nextWriteId.incrementAndGet(),
+            unlockedItem,
+            unlockedItemsMap.put(itemId, unlockedItem)
+        );
+        pendingWrites.put(itemId, pendingWrite);
+        setUnlockedItemIdBit(itemId, true);
+        notifyUnlockedItemsMapListenersOnUpdate(unlockedItem);
+
+        KeyValueStoragePort<Integer, UnlockedItem> port = keyValueStoragePort;
+        ItemIdSetStoragePort idsPort = unlockedItemIdsStoragePort;
+        // A retry after a lost response finds our own write stored, which counts as a win
+        return retryUntilSuccessful(
+            "Unlock of item " + itemId,
+            () -> port.putIfAbsent(itemId, unlockedItem),
+            throwable -> !FirebaseHttpException.isRejection(throwable)
+        ).handle((stored, throwable) -> {
+            if (throwable == null) {
+                if (pendingWrite.isEchoedBy(stored)) {
+                    // Only the writer that won adds it to the summary
+                    updateUnlockedItemIds(idsPort, itemId, true);
+                }
+                return resolveWrite(itemId, pendingWrite, stored);
+            }
+            if (FirebaseHttpException.isRejection(throwable)) {
+                rollBack(itemId, pendingWrite);
+            }
+            // Otherwise the session closed, which discards the pending write with the map
+            throw throwable instanceof CompletionException
+                ? (CompletionException) throwable
+                : new CompletionException(throwable);
+        });
+    }
+
+    /**
+     * Applies the outcome of a first-writer-wins write. Ours was announced already; if it lost, the
+     * winner replaces it in the map and listeners are told, the way {@link #rollBack} compensates.
+     */
+    private UnlockedItem resolveWrite(int itemId, PendingWrite pendingWrite, UnlockedItem stored) {
+        if (pendingWrite.isEchoedBy(stored)) {
+            return stored;
+        }
+
+        log.debug("Item {} was unlocked by {} first", itemId, stored.getAcquiredByAccountHash());
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        // The winner's echo is still on its way over the stream, it must not be announced twice
+        PendingWrite winnerWrite = new PendingWrite(
+            nextWriteId.incrementAndGet(),
+            stored,
+            pendingWrite.getPrevious()
+        );
+        if (map == null || !pendingWrites.replace(itemId, pendingWrite, winnerWrite)) {
+            // The stream delivered the winner already (or the session closed)
+            return stored;
+        }
+        map.put(itemId, stored);
+        notifyUnlockedItemsMapListenersOnUpdate(stored);
+        return stored;
+    }
+
+    /**
+     * Undoes an optimistic write the server rejected, unless a newer write or the server already replaced it.
+     */
+    private void rollBack(int itemId, PendingWrite pendingWrite) {
+        if (!pendingWrites.remove(itemId, pendingWrite)) {
+            return;
+        }
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        if (map == null) {
+            return;
+        }
+        log.warn("Unlock of item {} failed to save, rolling back", itemId);
+
+        UnlockedItem previous = pendingWrite.getPrevious();
+        if (previous == null) {
+            map.remove(itemId);
+            setUnlockedItemIdBit(itemId, false);
+        } else {
+            map.put(itemId, previous);
+        }
+        if (previous == null) {
+            notifyUnlockedItemsMapListenersOnDelete(pendingWrite.getUnlockedItem());
+        } else {
+            notifyUnlockedItemsMapListenersOnUpdate(previous);
+        }
+    }
+
+    private void notifyUnlockedItemsMapListenersOnUpdate(UnlockedItem unlockedItem) {
+        for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
+            try {
+                listener.onUpdate(unlockedItem);
+            } catch (Exception ex) {
+                log.error("unlockedItemUpdateListener: onUpdate", ex);
+            }
+        }
+    }
+
+    private void notifyUnlockedItemsMapListenersOnDelete(UnlockedItem unlockedItem) {
+        for (UnlockedItemsMapListener listener : unlockedItemsMapListeners) {
+            try {
+                listener.onDelete(unlockedItem);
+            } catch (Exception ex) {
+                log.error("unlockedItemDeleteListener: onDelete", ex);
+            }
+        }
     }
 
     public CompletableFuture<Void> removeUnlockedItemById(int itemId) {
@@ -133,7 +432,63 @@ public class UnlockedItemsDataProvider extends AbstractDataProvider {
             future.completeExceptionally(new IllegalStateException("State is not ready"));
             return future;
         }
-        return keyValueStoragePort.delete(itemId);
+        ItemIdSetStoragePort idsPort = unlockedItemIdsStoragePort;
+        return keyValueStoragePort.delete(itemId)
+            .thenRun(() -> updateUnlockedItemIds(idsPort, itemId, false));
+    }
+
+    /**
+     * Rewrites every unlocked item, which stores it in the current (compact) format. Only the
+     * known keys are written, so unlocks made meanwhile are kept.
+     *
+     * @return the number of items rewritten
+     */
+    public CompletableFuture<Integer> rewriteAllUnlockedItems() {
+        ConcurrentHashMap<Integer, UnlockedItem> map = unlockedItemsMap;
+        KeyValueStoragePort<Integer, UnlockedItem> port = keyValueStoragePort;
+        if (getState().get() != State.Ready || map == null || port == null) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("State is not ready"));
+            return future;
+        }
+        Map<Integer, UnlockedItem> snapshot = new HashMap<>(map);
+        // Ones still being written are stored in the current format anyway
+        snapshot.keySet().removeAll(pendingWrites.keySet());
+        return port.updateMany(snapshot).thenApply(__ -> snapshot.size());
+    }
+
+    /**
+     * Same item, acquirer and acquisition time, the latter compared to the millisecond since that
+     * is what the storage format keeps (ISOOffsetDateTime has no equals).
+     */
+    private static boolean isSameUnlock(UnlockedItem left, UnlockedItem right) {
+        return left.getId() == right.getId()
+            && left.getAcquiredByAccountHash() == right.getAcquiredByAccountHash()
+            && acquiredAtMillis(left) == acquiredAtMillis(right);
+    }
+
+    private static long acquiredAtMillis(UnlockedItem unlockedItem) {
+        ISOOffsetDateTime acquiredAt = unlockedItem.getAcquiredAt();
+        if (acquiredAt == null || acquiredAt.getValue() == null) {
+            return Long.MIN_VALUE;
+        }
+        return acquiredAt.getValue().toInstant().toEpochMilli();
+    }
+
+    @Value
+    private static class PendingWrite {
+
+        // Client-side id, distinguishes this write from a later one to the same item
+        long writeId;
+        UnlockedItem unlockedItem;
+        UnlockedItem previous;
+
+        /**
+         * The stored model carries no write id, so the echo is recognised by content.
+         */
+        boolean isEchoedBy(UnlockedItem echoed) {
+            return isSameUnlock(echoed, unlockedItem);
+        }
     }
 
     public interface UnlockedItemsMapListener {
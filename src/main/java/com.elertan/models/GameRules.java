@@ -8,7 +8,7 @@ import lombok.Builder;
 import lombok.Value;
 
 @Value
-@Builder
+@Builder(toBuilder = true)
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class GameRules {
 
@@ -26,6 +26,9 @@ public class GameRules {
     boolean shareAchievementNotifications;
     Integer valuableLootNotificationThreshold;
     String partyPassword;
+    // Newest UnlockedItem format every member can read, null for the legacy object only. Set by
+    // ::bu migrate_unlocks, clients on an older release drop it when they save the rules.
+    Integer unlockedItemFormatVersion;
 
     public static GameRules createWithDefaults(Long lastUpdatedByAccountHash,
         ISOOffsetDateTime lastUpdatedAt) {
@@ -1,10 +1,29 @@
 package com.elertan.models;
 
 import com.elertan.gson.AccountHashJsonAdapter;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import lombok.Value;
 
+/**
+ * Stored in a compact, versioned form once the group allows it, see {@link AdapterFactory}.
+ */
 @Value
+@JsonAdapter(UnlockedItem.AdapterFactory.class)
 public class UnlockedItem {
 
     int id;
@@ -13,4 +32,156 @@ public class UnlockedItem {
     long acquiredByAccountHash;
     ISOOffsetDateTime acquiredAt;
     Integer droppedByNPCId;
+
+    /**
+     * The unlocked item format a storage session writes: the newest one every member of its group
+     * can read, from the group's game rules. Each session owns one and builds its Gson around it,
+     * see {@link AdapterFactory#AdapterFactory(WriteFormat)}, so one group's choice never reaches
+     * writes for another.
+     */
+    public static final class WriteFormat {
+
+        private volatile boolean compact = false;
+
+        /**
+         * @param version the group's {@link GameRules#getUnlockedItemFormatVersion()}; null when
+         *                only the legacy object can be read by everyone
+         */
+        public void setGroupFormatVersion(Integer version) {
+            compact = version != null && version >= AdapterFactory.COMPACT_VERSION;
+        }
+
+        boolean isCompact() {
+            return compact;
+        }
+    }
+
+    /**
+     * Writes unlocked items as a positional array instead of an object with long field names:
+     * {@code [1, id, name, "acquiredByAccountHash", acquiredAtEpochMillis, droppedByNPCId,
+     * acquiredAtOffsetSeconds]}, where the leading 1 is the format version and trailing absent
+     * values are left out. The account hash stays a string, a JSON number cannot hold every long.
+     * The offset keeps the time zone the legacy format kept; without it the time is read back in
+     * the local zone.
+     * <p>
+     * Reads both this format and the legacy object format. Writes the legacy format unless built
+     * with a {@link WriteFormat} the group's game rules switched to the compact one: a client on an
+     * older release fails to load the whole map when a single entry is in a format it does not
+     * know. The instance {@link JsonAdapter} creates has none, so plain Gson instances only read it.
+     */
+    public static final class AdapterFactory implements TypeAdapterFactory {
+
+        public static final int COMPACT_VERSION = 1;
+
+        private final WriteFormat writeFormat;
+
+        public AdapterFactory() {
+            this(null);
+        }
+
+        public AdapterFactory(WriteFormat writeFormat) {
+            this.writeFormat = writeFormat;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != UnlockedItem.class) {
+                return null;
+            }
+            // The reflective adapter (or, for a registered factory, the annotation's), for the
+            // legacy object format
+            TypeAdapter<UnlockedItem> legacyAdapter = gson.getDelegateAdapter(
+                this,
+                TypeToken.get(UnlockedItem.class)
+            );
+            TypeAdapter<JsonElement> jsonElementAdapter = gson.getAdapter(JsonElement.class);
+            return (TypeAdapter<T>) new Adapter(writeFormat, legacyAdapter, jsonElementAdapter);
+        }
+    }
+
+    private static final class Adapter extends TypeAdapter<UnlockedItem> {
+
+        private final WriteFormat writeFormat;
+        private final TypeAdapter<UnlockedItem> legacyAdapter;
+        private final TypeAdapter<JsonElement> jsonElementAdapter;
+
+        private Adapter(
+            WriteFormat writeFormat,
+            TypeAdapter<UnlockedItem> legacyAdapter,
+            TypeAdapter<JsonElement> jsonElementAdapter
+        ) {
+            this.writeFormat = writeFormat;
+            this.legacyAdapter = legacyAdapter;
+            this.jsonElementAdapter = jsonElementAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, UnlockedItem value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            if (writeFormat == null || !writeFormat.isCompact()) {
+                legacyAdapter.write(out, value);
+                return;
+            }
+            OffsetDateTime acquiredAt = value.acquiredAt == null ? null : value.acquiredAt.getValue();
+            JsonArray array = new JsonArray();
+            array.add(AdapterFactory.COMPACT_VERSION);
+            array.add(value.id);
+            array.add(value.name);
+            array.add(String.valueOf(value.acquiredByAccountHash));
+            array.add(acquiredAt == null ? null : acquiredAt.toInstant().toEpochMilli());
+            array.add(value.droppedByNPCId);
+            array.add(acquiredAt == null ? null : acquiredAt.getOffset().getTotalSeconds());
+            while (array.get(array.size() - 1).isJsonNull()) {
+                array.remove(array.size() - 1);
+            }
+            jsonElementAdapter.write(out, array);
+        }
+
+        @Override
+        public UnlockedItem read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            if (token != JsonToken.BEGIN_ARRAY) {
+                return legacyAdapter.read(in);
+            }
+
+            JsonArray array = jsonElementAdapter.read(in).getAsJsonArray();
+            int version = array.get(0).getAsInt();
+            if (version != AdapterFactory.COMPACT_VERSION) {
+                throw new JsonParseException("Unsupported unlocked item format version " + version);
+            }
+            JsonElement acquiredAt = elementAt(array, 4);
+            JsonElement droppedByNPCId = elementAt(array, 5);
+            JsonElement offsetSeconds = elementAt(array, 6);
+            return new UnlockedItem(
+                array.get(1).getAsInt(),
+                elementAt(array, 2) == null ? null : array.get(2).getAsString(),
+                Long.parseLong(array.get(3).getAsString()),
+                acquiredAt == null ? null : new ISOOffsetDateTime(OffsetDateTime.ofInstant(
+                    Instant.ofEpochMilli(acquiredAt.getAsLong()),
+                    offsetSeconds == null
+                        ? ZoneId.systemDefault()
+                        : ZoneOffset.ofTotalSeconds(offsetSeconds.getAsInt())
+                )),
+                droppedByNPCId == null ? null : droppedByNPCId.getAsInt()
+            );
+        }
+
+        /**
+         * Returns null for missing and null elements; Firebase drops trailing nulls from arrays.
+         */
+        private static JsonElement elementAt(JsonArray array, int index) {
+            if (index >= array.size() || array.get(index).isJsonNull()) {
+                return null;
+            }
+            return array.get(index);
+        }
+    }
 }
@@ -136,6 +136,9 @@ public class GameRulesEditorViewModel extends BaseViewModel {
 
         GameRules currentGameRules = props.getGameRules();
         String partyPassword = currentGameRules == null ? null : currentGameRules.getPartyPassword();
+        Integer unlockedItemFormatVersion = currentGameRules == null
+            ? null
+            : currentGameRules.getUnlockedItemFormatVersion();
 
         GameRules newGameRules = GameRules.builder()
             .lastUpdatedByAccountHash(props.getAccountHash())
@@ -151,6 +154,7 @@ public class GameRulesEditorViewModel extends BaseViewModel {
             .shareAchievementNotifications(shareAchievementNotificationsProperty.get())
             .valuableLootNotificationThreshold(valuableLootNotificationThresholdProperty.get())
             .partyPassword(partyPassword)
+            .unlockedItemFormatVersion(unlockedItemFormatVersion)
             .build();
         props.onGameRulesChanged.accept(newGameRules);
     }
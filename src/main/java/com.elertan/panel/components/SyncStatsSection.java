@@ -0,0 +1,104 @@
+package com.elertan.panel.components;
+
+import com.elertan.remote.SyncMetrics;
+import com.google.inject.ImplementedBy;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.awt.BorderLayout;
+import java.awt.Font;
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JToggleButton;
+import javax.swing.SwingConstants;
+import javax.swing.Timer;
+
+/**
+ * Collapsible "Sync diagnostics" section showing {@link SyncMetrics}. Collapsed by default; while
+ * expanded the numbers refresh every second.
+ */
+public class SyncStatsSection extends JPanel implements AutoCloseable {
+
+    private static final int REFRESH_INTERVAL_MS = 1000;
+
+    private final SyncMetrics syncMetrics;
+    private final JLabel statsLabel = new JLabel();
+    private final Timer refreshTimer;
+
+    private SyncStatsSection(SyncMetrics syncMetrics) {
+        this.syncMetrics = syncMetrics;
+        setLayout(new BorderLayout());
+        setOpaque(false);
+
+        JToggleButton headerButton = new JToggleButton(createHeaderText(false));
+        headerButton.setFont(headerButton.getFont().deriveFont(Font.BOLD, 13f));
+        headerButton.setFocusPainted(false);
+        headerButton.setContentAreaFilled(false);
+        headerButton.setBorder(BorderFactory.createEmptyBorder(5, 0, 5, 0));
+        headerButton.setHorizontalAlignment(SwingConstants.LEFT);
+        headerButton.setToolTipText("Request, stream and listener statistics, also shown by ::bu stats");
+        add(headerButton, BorderLayout.NORTH);
+
+        statsLabel.setFont(statsLabel.getFont().deriveFont(11f));
+        statsLabel.setVerticalAlignment(SwingConstants.TOP);
+        statsLabel.setVisible(false);
+        add(statsLabel, BorderLayout.CENTER);
+
+        refreshTimer = new Timer(REFRESH_INTERVAL_MS, e -> refresh());
+
+        headerButton.addActionListener(e -> {
+            boolean expanded = headerButton.isSelected();
+            headerButton.setText(createHeaderText(expanded));
+            statsLabel.setVisible(expanded);
+            if (expanded) {
+                refresh();
+                refreshTimer.start();
+            } else {
+                refreshTimer.stop();
+            }
+            revalidate();
+            repaint();
+        });
+    }
+
+    @Override
+    public void close() throws Exception {
+        refreshTimer.stop();
+    }
+
+    private void refresh() {
+        StringBuilder sb = new StringBuilder("<html><div style=\"color:rgb(200,200,200);\">");
+        for (String line : syncMetrics.formatReport()) {
+            sb.append(escapeHtml(line)).append("<br>");
+        }
+        sb.append("</div></html>");
+        statsLabel.setText(sb.toString());
+    }
+
+    private static String createHeaderText(boolean expanded) {
+        return "<html><div style=\"text-align:left;color:rgb(220,138,0);\">"
+            + (expanded ? "- " : "+ ") + "Sync diagnostics</div></html>";
+    }
+
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    @ImplementedBy(FactoryImpl.class)
+    public interface Factory {
+
+        SyncStatsSection create();
+    }
+
+    @Singleton
+    private static final class FactoryImpl implements Factory {
+
+        @Inject
+        private SyncMetrics syncMetrics;
+
+        @Override
+        public SyncStatsSection create() {
+            return new SyncStatsSection(syncMetrics);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.elertan.panel.screens.main;
 import com.elertan.panel.ViewportWidthTrackingPanel;
 import com.elertan.panel.components.GameRulesEditor;
 import com.elertan.panel.components.GameRulesEditorViewModel;
+import com.elertan.panel.components.SyncStatsSection;
 import com.elertan.ui.Bindings;
 import com.elertan.ui.Property;
 import com.google.inject.ImplementedBy;
@@ -31,11 +32,14 @@ public class ConfigScreen extends JPanel implements AutoCloseable {
     private final AutoCloseable errorMessageLabelVisibleBinding;
     private final AutoCloseable errorMessageLabelTextBinding;
     private final GameRulesEditor gameRulesEditor;
+    private final SyncStatsSection syncStatsSection;
 
     private ConfigScreen(ConfigScreenViewModel viewModel,
         GameRulesEditorViewModel gameRulesEditorViewModel,
-        GameRulesEditor.Factory gameRulesEditorFactory) {
+        GameRulesEditor.Factory gameRulesEditorFactory,
+        SyncStatsSection.Factory syncStatsSectionFactory) {
         this.gameRulesEditor = gameRulesEditorFactory.create(gameRulesEditorViewModel);
+        this.syncStatsSection = syncStatsSectionFactory.create();
         setLayout(new GridBagLayout());
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
@@ -163,10 +167,17 @@ public class ConfigScreen extends JPanel implements AutoCloseable {
         );
         add(leaveButton, gbc);
         gbc.gridy++;
+
+        add(Box.createVerticalStrut(10), gbc);
+        gbc.gridy++;
+
+        add(syncStatsSection, gbc);
+        gbc.gridy++;
     }
 
     @Override
     public void close() throws Exception {
+        syncStatsSection.close();
         gameRulesEditor.close();
         leaveButtonEnabledBinding.close();
         errorMessageLabelVisibleBinding.close();
@@ -188,6 +199,8 @@ public class ConfigScreen extends JPanel implements AutoCloseable {
         private GameRulesEditor.Factory gameRulesEditorFactory;
         @Inject
         private GameRulesEditorViewModel.Factory gameRulesEditorViewModelFactory;
+        @Inject
+        private SyncStatsSection.Factory syncStatsSectionFactory;
 
         @Override
         public ConfigScreen create(ConfigScreenViewModel viewModel) {
@@ -203,7 +216,12 @@ public class ConfigScreen extends JPanel implements AutoCloseable {
             // Then explicitly set current value (in case async already completed)
             gameRulesEditorViewModel.setProps(viewModel.gameRulesEditorViewModelPropsProperty.get());
 
-            return new ConfigScreen(viewModel, gameRulesEditorViewModel, gameRulesEditorFactory);
+            return new ConfigScreen(
+                viewModel,
+                gameRulesEditorViewModel,
+                gameRulesEditorFactory,
+                syncStatsSectionFactory
+            );
         }
     }
 }
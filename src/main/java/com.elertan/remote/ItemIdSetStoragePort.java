@@ -0,0 +1,20 @@
+package com.elertan.remote;
+
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A set of item ids kept as one small node, e.g. a summary of which items are unlocked that can
+ * be read in a single request. Changes are merged with concurrent changes of other clients.
+ */
+public interface ItemIdSetStoragePort extends AutoCloseable {
+
+    /**
+     * @return a fresh copy of the stored set, empty if nothing is stored
+     */
+    CompletableFuture<BitSet> read();
+
+    CompletableFuture<Void> add(BitSet itemIds);
+
+    CompletableFuture<Void> remove(BitSet itemIds);
+}
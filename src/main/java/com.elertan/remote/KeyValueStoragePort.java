@@ -11,8 +11,23 @@ public interface KeyValueStoragePort<K, V> extends AutoCloseable {
 
     CompletableFuture<Void> update(K key, V value);
 
+    /**
+     * Stores {@code value} under {@code key} only if the key has no value yet, so when several
+     * clients race for the same key the first writer wins.
+     *
+     * @return the value stored under {@code key} afterwards: {@code value} if it was written,
+     *         otherwise the value that was there first
+     */
+    CompletableFuture<V> putIfAbsent(K key, V value);
+
     CompletableFuture<Void> updateAll(Map<K, V> map);
 
+    /**
+     * Writes the given entries, leaving keys not in {@code map} as they are (unlike
+     * {@link #updateAll}, which replaces everything).
+     */
+    CompletableFuture<Void> updateMany(Map<K, V> map);
+
     CompletableFuture<Void> delete(K key);
 
     void addListener(Listener<K, V> listener);
@@ -31,6 +31,7 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.api.GameState;
+import net.runelite.api.events.GameTick;
 
 @Slf4j
 @Singleton
@@ -57,6 +58,12 @@ public class StorageService implements BUPluginLifecycle {
     private ObjectListStoragePort<BUEvent> lastEventStoragePort;
     @Getter
     private KeyListStoragePort<GroundItemOwnedByKey, GroundItemOwnedByData> groundItemOwnedByStoragePort;
+    // Null when the session keeps no summary
+    @Getter
+    private ItemIdSetStoragePort unlockedItemIdsStoragePort;
+    // Null when the session always writes the legacy format
+    @Getter
+    private UnlockedItem.WriteFormat unlockedItemWriteFormat;
 
     @Inject
     public StorageService(
@@ -89,6 +96,13 @@ public class StorageService implements BUPluginLifecycle {
         }
     }
 
+    public void onGameTick(GameTick event) {
+        StorageSession session = storageSession;
+        if (session != null) {
+            session.flush();
+        }
+    }
+
     public CompletableFuture<State> await(Duration timeout) {
         return waitForValue(state, State.Ready, timeout);
     }
@@ -173,6 +187,8 @@ public class StorageService implements BUPluginLifecycle {
             gameRulesStoragePort = newStorageSession.getGameRulesStoragePort();
             lastEventStoragePort = newStorageSession.getLastEventStoragePort();
             groundItemOwnedByStoragePort = newStorageSession.getGroundItemOwnedByStoragePort();
+            unlockedItemIdsStoragePort = newStorageSession.getUnlockedItemIdsStoragePort();
+            unlockedItemWriteFormat = newStorageSession.getUnlockedItemWriteFormat();
             state.set(State.Ready);
         });
     }
@@ -275,6 +291,8 @@ public class StorageService implements BUPluginLifecycle {
         }
 
         groundItemOwnedByStoragePort = null;
+        unlockedItemIdsStoragePort = null;
+        unlockedItemWriteFormat = null;
         lastEventStoragePort = null;
         membersStoragePort = null;
         unlockedItemsStoragePort = null;
@@ -18,4 +18,28 @@ public interface StorageSession extends AutoCloseable {
     ObjectListStoragePort<BUEvent> getLastEventStoragePort();
 
     KeyListStoragePort<GroundItemOwnedByKey, GroundItemOwnedByData> getGroundItemOwnedByStoragePort();
+
+    /**
+     * Summary of the unlocked item ids, for backends where reading all unlocked items is slow.
+     *
+     * @return null when the backend keeps no summary
+     */
+    default ItemIdSetStoragePort getUnlockedItemIdsStoragePort() {
+        return null;
+    }
+
+    /**
+     * The unlocked item format this session writes, to be kept in step with the group's game rules.
+     *
+     * @return null when the backend always writes the legacy format
+     */
+    default UnlockedItem.WriteFormat getUnlockedItemWriteFormat() {
+        return null;
+    }
+
+    /**
+     * Sends writes buffered since the last flush. Called once per game tick.
+     */
+    default void flush() {
+    }
 }
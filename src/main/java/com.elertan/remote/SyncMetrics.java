@@ -0,0 +1,336 @@
+package com.elertan.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Singleton;
+
+/**
+ * Counters and latency histograms for the sync layer, to tell whether a laggy group is limited by
+ * the backend, the connection or our own listeners.
+ * <p>
+ * Recording is lock-free (or nearly so) and cheap enough for every request and event. Paths are
+ * recorded as given, so callers pass base paths (e.g. "/Members") to keep the number of series
+ * bounded. Shown by {@code ::bu stats} and the diagnostics section of the config screen.
+ */
+@Singleton
+public class SyncMetrics {
+
+    private static final int EVENT_RATE_WINDOW_SECONDS = 60;
+
+    private final long createdNanos = System.nanoTime();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requestFailures = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> requestLatencies = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Map<String, EventRate> eventRates = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> streamConnects = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> streamReconnects = new ConcurrentHashMap<>();
+    private volatile long lastKeepAliveNanos = 0;
+    private final Map<String, LatencyHistogram> dispatchLatencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> queueDepths = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> maxQueueDepths = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> shedRequests = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> dispatchLags = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> dispatchOverflows = new ConcurrentHashMap<>();
+
+    public void recordRequest(String method, String path, long elapsedNanos, boolean success) {
+        String key = method + " " + path;
+        requestCounts.computeIfAbsent(key, __ -> new LongAdder()).increment();
+        if (!success) {
+            requestFailures.computeIfAbsent(key, __ -> new LongAdder()).increment();
+        }
+        requestLatencies.computeIfAbsent(key, __ -> new LatencyHistogram()).record(elapsedNanos);
+    }
+
+    public void recordBytesSent(long bytes) {
+        if (bytes > 0) {
+            bytesSent.add(bytes);
+        }
+    }
+
+    public void recordBytesReceived(long bytes) {
+        if (bytes > 0) {
+            bytesReceived.add(bytes);
+        }
+    }
+
+    /**
+     * Records a server-sent event of the given type (e.g. "put", "keep-alive").
+     */
+    public void recordEvent(String type) {
+        eventRates.computeIfAbsent(type, __ -> new EventRate()).record(System.nanoTime());
+    }
+
+    public void recordKeepAlive() {
+        lastKeepAliveNanos = System.nanoTime();
+    }
+
+    /**
+     * Records that the stream for {@code path} opened; every open after the first is a reconnect.
+     */
+    public void recordStreamConnected(String path, boolean reconnect) {
+        streamConnects.computeIfAbsent(path, __ -> new LongAdder()).increment();
+        if (reconnect) {
+            streamReconnects.computeIfAbsent(path, __ -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Records how long the listeners subscribed at {@code path} took to handle one event.
+     */
+    public void recordDispatch(String path, long elapsedNanos) {
+        dispatchLatencies.computeIfAbsent(path, __ -> new LatencyHistogram()).record(elapsedNanos);
+    }
+
+    /**
+     * Records the current number of requests waiting in an outbound queue (lane).
+     */
+    public void recordQueueDepth(String queue, int depth) {
+        queueDepths.computeIfAbsent(queue, __ -> new AtomicLong()).set(depth);
+        maxQueueDepths.computeIfAbsent(queue, __ -> new AtomicLong()).accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Records a request dropped because its queue was full.
+     */
+    public void recordRequestShed(String queue) {
+        shedRequests.computeIfAbsent(queue, __ -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records how long an event for {@code path} waited in its dispatch queue before delivery.
+     */
+    public void recordDispatchLag(String path, long elapsedNanos) {
+        dispatchLags.computeIfAbsent(path, __ -> new LatencyHistogram()).record(elapsedNanos);
+    }
+
+    /**
+     * Records that the dispatch queue for {@code path} overflowed and was dropped for a resync.
+     */
+    public void recordDispatchOverflow(String path) {
+        dispatchOverflows.computeIfAbsent(path, __ -> new LongAdder()).increment();
+    }
+
+    public void reset() {
+        requestCounts.clear();
+        requestFailures.clear();
+        requestLatencies.clear();
+        bytesSent.reset();
+        bytesReceived.reset();
+        eventRates.clear();
+        streamConnects.clear();
+        streamReconnects.clear();
+        dispatchLatencies.clear();
+        maxQueueDepths.clear();
+        shedRequests.clear();
+        dispatchLags.clear();
+        dispatchOverflows.clear();
+    }
+
+    /**
+     * Formats the current values as short lines, suitable for the chat box.
+     */
+    public List<String> formatReport() {
+        List<String> lines = new ArrayList<>();
+        long uptimeSeconds = (System.nanoTime() - createdNanos) / 1_000_000_000L;
+        lines.add(String.format(
+            "Traffic: %s sent, %s received in %ds",
+            formatBytes(bytesSent.sum()),
+            formatBytes(bytesReceived.sum()),
+            uptimeSeconds
+        ));
+
+        if (requestCounts.isEmpty()) {
+            lines.add("Requests: none");
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(requestCounts).entrySet()) {
+            LongAdder failures = requestFailures.get(entry.getKey());
+            LatencyHistogram histogram = requestLatencies.get(entry.getKey());
+            lines.add(String.format(
+                "%s: %d (%d failed) %s",
+                entry.getKey(),
+                entry.getValue().sum(),
+                failures == null ? 0 : failures.sum(),
+                histogram == null ? "" : histogram.format()
+            ));
+        }
+
+        StringBuilder events = new StringBuilder("Events/s:");
+        if (eventRates.isEmpty()) {
+            events.append(" none");
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, EventRate> entry : new TreeMap<>(eventRates).entrySet()) {
+            events.append(String.format(" %s %.2f", entry.getKey(), entry.getValue().perSecond(now)));
+        }
+        lines.add(events.toString());
+
+        long lastKeepAlive = lastKeepAliveNanos;
+        StringBuilder streams = new StringBuilder("Streams:");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(streamConnects).entrySet()) {
+            LongAdder reconnects = streamReconnects.get(entry.getKey());
+            streams.append(String.format(
+                " %s %d reconnects,",
+                entry.getKey(),
+                reconnects == null ? 0 : reconnects.sum()
+            ));
+        }
+        streams.append(lastKeepAlive == 0
+            ? " no keep-alive yet"
+            : String.format(" last keep-alive %ds ago", (now - lastKeepAlive) / 1_000_000_000L));
+        lines.add(streams.toString());
+
+        if (!queueDepths.isEmpty()) {
+            StringBuilder queues = new StringBuilder("Queues:");
+            for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(queueDepths).entrySet()) {
+                AtomicLong max = maxQueueDepths.get(entry.getKey());
+                LongAdder shed = shedRequests.get(entry.getKey());
+                queues.append(String.format(
+                    " %s %d (max %d, shed %d),",
+                    entry.getKey(),
+                    entry.getValue().get(),
+                    max == null ? 0 : max.get(),
+                    shed == null ? 0 : shed.sum()
+                ));
+            }
+            queues.setLength(queues.length() - 1);
+            lines.add(queues.toString());
+        }
+
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(dispatchLatencies).entrySet()) {
+            lines.add(String.format("Dispatch %s: %s", entry.getKey(), entry.getValue().format()));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(dispatchLags).entrySet()) {
+            LongAdder overflows = dispatchOverflows.get(entry.getKey());
+            lines.add(String.format(
+                "Lag %s: %s (%d overflows)",
+                entry.getKey(),
+                entry.getValue().format(),
+                overflows == null ? 0 : overflows.sum()
+            ));
+        }
+        return lines;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Fixed-bucket histogram; percentiles are reported as the upper bound of their bucket.
+     */
+    static final class LatencyHistogram {
+
+        // Bucket upper bounds in microseconds, roughly 1-2.5-5 per decade from 50us to 10s
+        private static final long[] BOUNDS_MICROS = {
+            50, 100, 250, 500,
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000
+        };
+
+        // Last bucket counts everything above the highest bound
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MICROS.length + 1);
+
+        void record(long elapsedNanos) {
+            long micros = elapsedNanos / 1_000;
+            int bucket = 0;
+            while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * Returns the upper bound in microseconds of the bucket holding the given percentile, or
+         * {@link Long#MAX_VALUE} if it falls above the highest bound, or -1 without samples.
+         */
+        long percentileMicros(double percentile) {
+            long total = count();
+            if (total == 0) {
+                return -1;
+            }
+            long target = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= target) {
+                    return BOUNDS_MICROS[i];
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        String format() {
+            return String.format(
+                "p50 %s p95 %s p99 %s",
+                formatMicros(percentileMicros(0.50)),
+                formatMicros(percentileMicros(0.95)),
+                formatMicros(percentileMicros(0.99))
+            );
+        }
+
+        private static String formatMicros(long micros) {
+            if (micros < 0) {
+                return "-";
+            }
+            if (micros == Long.MAX_VALUE) {
+                return ">10s";
+            }
+            if (micros < 1_000) {
+                return "<" + micros + "us";
+            }
+            return "<" + (micros / 1_000) + "ms";
+        }
+    }
+
+    /**
+     * Events per second over the last minute, counted in one-second slots.
+     */
+    private static final class EventRate {
+
+        private final long[] slotSecond = new long[EVENT_RATE_WINDOW_SECONDS];
+        private final long[] slotCount = new long[EVENT_RATE_WINDOW_SECONDS];
+
+        synchronized void record(long nowNanos) {
+            long second = nowNanos / 1_000_000_000L;
+            int slot = (int) Math.floorMod(second, (long) EVENT_RATE_WINDOW_SECONDS);
+            if (slotSecond[slot] != second) {
+                slotSecond[slot] = second;
+                slotCount[slot] = 0;
+            }
+            slotCount[slot]++;
+        }
+
+        synchronized double perSecond(long nowNanos) {
+            long second = nowNanos / 1_000_000_000L;
+            long total = 0;
+            for (int i = 0; i < EVENT_RATE_WINDOW_SECONDS; i++) {
+                if (second - slotSecond[i] < EVENT_RATE_WINDOW_SECONDS) {
+                    total += slotCount[i];
+                }
+            }
+            return total / (double) EVENT_RATE_WINDOW_SECONDS;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.util.Map;
+
+/**
+ * 64-bit content fingerprints of JSON subtrees, used to tell which children of a resent snapshot
+ * actually changed without deserializing or deep-comparing them.
+ * <p>
+ * Built on FNV-1a. Object members are combined order-independently, so a value merged locally
+ * (which may append keys) fingerprints the same as the server's copy of it.
+ */
+final class FirebaseFingerprints {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private FirebaseFingerprints() {
+    }
+
+    static long of(JsonElement element) {
+        return hash(FNV_OFFSET_BASIS, element);
+    }
+
+    private static long hash(long h, JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return hashByte(h, 'n');
+        }
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            char tag = primitive.isBoolean() ? 'b' : primitive.isNumber() ? 'd' : 's';
+            return hashString(hashByte(h, tag), primitive.getAsString());
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            h = hashByte(h, '[');
+            for (JsonElement item : array) {
+                h = hash(h, item);
+            }
+            return hashByte(h, ']');
+        }
+        long sum = 0;
+        int size = 0;
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            long memberHash = hashString(FNV_OFFSET_BASIS, entry.getKey());
+            sum += hash(memberHash, entry.getValue());
+            size++;
+        }
+        h = hashByte(h, '{');
+        h = hashLong(h, sum);
+        return hashLong(h, size);
+    }
+
+    private static long hashString(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            h = hashByte(h, c >>> 8);
+            h = hashByte(h, c);
+        }
+        // Terminator, so "ab" + "c" and "a" + "bc" differ
+        return hashByte(h, 0);
+    }
+
+    private static long hashLong(long h, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            h = hashByte(h, (int) (value >>> shift));
+        }
+        return h;
+    }
+
+    private static long hashByte(long h, int b) {
+        return (h ^ (b & 0xff)) * FNV_PRIME;
+    }
+}
@@ -0,0 +1,39 @@
+package com.elertan.remote.firebase;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A Firebase request answered with an unsuccessful HTTP status.
+ */
+public class FirebaseHttpException extends IOException {
+
+    private final int statusCode;
+
+    public FirebaseHttpException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Whether sending the same request again can never succeed: a 4xx other than a timeout (408)
+     * or rate limit (429), e.g. a malformed path or a write denied by the database rules.
+     */
+    public boolean isRejection() {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+    }
+
+    /**
+     * Whether {@code throwable}, as completed into a future, is a {@link #isRejection() rejection}.
+     */
+    public static boolean isRejection(Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+            ? throwable.getCause()
+            : throwable;
+        return cause instanceof FirebaseHttpException && ((FirebaseHttpException) cause).isRejection();
+    }
+}
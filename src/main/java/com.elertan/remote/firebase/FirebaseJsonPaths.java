@@ -0,0 +1,63 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+/**
+ * Helpers to apply Firebase writes at a path inside a cached JSON tree.
+ */
+final class FirebaseJsonPaths {
+
+    private FirebaseJsonPaths() {
+    }
+
+    /**
+     * Returns a copy of {@code root} with {@code value} written at {@code segments[offset..]}.
+     * <p>
+     * Follows Firebase semantics: writing null removes the node, and objects left empty by a removal
+     * disappear as well. The result is {@link JsonNull#INSTANCE} when nothing remains.
+     */
+    static JsonElement setAtPath(JsonElement root, String[] segments, int offset, JsonElement value) {
+        if (offset >= segments.length) {
+            return value == null ? JsonNull.INSTANCE : value;
+        }
+        JsonObject copy = root != null && root.isJsonObject()
+            ? root.getAsJsonObject().deepCopy()
+            : new JsonObject();
+        setInPlace(copy, segments, offset, value);
+        if (copy.size() == 0) {
+            return JsonNull.INSTANCE;
+        }
+        return copy;
+    }
+
+    private static void setInPlace(JsonObject obj, String[] segments, int index, JsonElement value) {
+        String key = segments[index];
+        if (index == segments.length - 1) {
+            if (value == null || value.isJsonNull()) {
+                obj.remove(key);
+            } else {
+                obj.add(key, value);
+            }
+            return;
+        }
+
+        JsonElement child = obj.get(key);
+        JsonObject childObj;
+        if (child != null && child.isJsonObject()) {
+            childObj = child.getAsJsonObject();
+        } else {
+            if (value == null || value.isJsonNull()) {
+                // Nothing to remove below a leaf or a missing node
+                return;
+            }
+            childObj = new JsonObject();
+            obj.add(key, childObj);
+        }
+        setInPlace(childObj, segments, index + 1, value);
+        if (childObj.size() == 0) {
+            obj.remove(key);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body that writes a JSON tree straight into the OkHttp sink, instead of rendering it to a
+ * String first. The length is unknown up front, so the body is sent chunked.
+ * <p>
+ * JSON nulls are kept, PATCH uses them for deletes.
+ */
+final class FirebaseJsonRequestBody extends RequestBody {
+
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    private final TypeAdapter<JsonElement> adapter;
+    private final JsonElement data;
+
+    FirebaseJsonRequestBody(TypeAdapter<JsonElement> adapter, JsonElement data) {
+        this.adapter = adapter;
+        this.data = data;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON_MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // Not closed, the sink belongs to OkHttp; may be called again when a call is retried
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+        writer.setSerializeNulls(true);
+        adapter.write(writer, data);
+        writer.flush();
+    }
+}
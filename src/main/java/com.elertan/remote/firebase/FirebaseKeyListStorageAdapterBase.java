@@ -4,10 +4,11 @@ import com.elertan.remote.KeyListStoragePort;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
@@ -28,8 +29,15 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
     private final Function<JsonElement, V> deserializeFromJsonElement;
 
     private final ConcurrentHashMap<K, ConcurrentHashMap<String, V>> localCache = new ConcurrentHashMap<>();
+    // Fingerprint of each cached entry, so a resent snapshot only touches the entries that changed
+    private final ConcurrentHashMap<K, ConcurrentHashMap<String, Long>> entryFingerprints = new ConcurrentHashMap<>();
+    // True once localCache holds a complete snapshot; later snapshots are applied as deltas
+    private volatile boolean cacheComplete = false;
+    // Completed once a live snapshot is in the cache, readAll is served from it
+    private final CompletableFuture<Void> liveSnapshotApplied = new CompletableFuture<>();
 
     private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    private final FirebaseSnapshotListener snapshotListener = new FullUpdateSnapshotListener();
 
     public FirebaseKeyListStorageAdapterBase(
         String basePath,
@@ -56,17 +64,17 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
         this.keyToStringTransformer = keyToStringTransformer;
         this.deserializeFromJsonElement = deserializeFromJsonElement;
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        db.addServerSentEventListener(basePath, sseListener, snapshotListener);
     }
 
     @Override
     public void close() throws Exception {
         listeners.clear();
+        cacheComplete = false;
         localCache.clear();
+        entryFingerprints.clear();
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.removeServerSentEventListener(basePath, sseListener);
     }
 
     @Override
@@ -91,8 +99,11 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
 
     @Override
     public CompletableFuture<Map<K, Map<String, V>>> readAll() {
-        return db.get(basePath)
-            .thenApply(jsonElement -> {
+        return db.readFromSnapshot(
+            basePath,
+            liveSnapshotApplied,
+            this::copyCache,
+            jsonElement -> {
                 if (jsonElement == null || jsonElement.isJsonNull()) {
                     return Collections.emptyMap();
                 }
@@ -121,23 +132,17 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
                 }
 
                 return map;
-            });
+            }
+        );
     }
 
     @Override
     public CompletableFuture<String> add(K key, V value) {
-        String path = basePath + "/" + keyToStringTransformer.apply(key);
+        // Push IDs are generated here so the add can be batched with other writes
+        String entryKey = FirebasePushIds.next();
+        String path = basePath + "/" + keyToStringTransformer.apply(key) + "/" + entryKey;
         JsonElement jsonElement = gson.toJsonTree(value);
-        return db.post(path, jsonElement)
-            .thenApply(response -> {
-                if (response != null && response.isJsonObject()) {
-                    JsonObject obj = response.getAsJsonObject();
-                    if (obj.has("name")) {
-                        return obj.get("name").getAsString();
-                    }
-                }
-                return null;
-            });
+        return db.write(path, jsonElement).thenApply(__ -> entryKey);
     }
 
     @Override
@@ -159,7 +164,7 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
     @Override
     public CompletableFuture<Void> remove(K key, String entryKey) {
         String path = basePath + "/" + keyToStringTransformer.apply(key) + "/" + entryKey;
-        return db.delete(path);
+        return db.write(path, null);
     }
 
     @Override
@@ -178,17 +183,19 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
 
     private void sseListener(FirebaseSSE event) {
         FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
             return;
         }
 
-        String path = event.getPath();
-        if (!path.startsWith(basePath)) {
-            return;
+        // A patch is applied as one put per child, so it yields per-entry adds/removes
+        for (FirebaseSSE put : event.toPuts()) {
+            handlePut(put);
         }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
+    }
+
+    private void handlePut(FirebaseSSE event) {
+        // Routed by path prefix, so the event is always at or below our path
+        String[] pathParts = event.getPathSegments();
         int pathPartsLength = pathParts.length;
 
         if (pathPartsLength == 1) {
@@ -199,81 +206,207 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
             String strKey = pathParts[1];
             K key = stringToKeyTransformer.apply(strKey);
             handleKeyFullUpdate(key, event.getData());
-        } else if (pathPartsLength == 3) {
-            // Single entry add/remove
+        } else {
             String strKey = pathParts[1];
             String entryKey = pathParts[2];
             K key = stringToKeyTransformer.apply(strKey);
-            handleEntryUpdate(key, entryKey, event.getData());
-        } else {
-            log.debug(
-                "FirebaseKeyListStorageAdapterBase ({}): too many path parts, ignoring: {}",
-                basePath,
-                path
-            );
+            JsonElement jsonElement = event.getData();
+            if (pathPartsLength > 3) {
+                // Write below an entry, merge it into the cached entry
+                ConcurrentHashMap<String, V> innerMap = localCache.get(key);
+                V current = innerMap == null ? null : innerMap.get(entryKey);
+                JsonElement currentJson = current == null ? null : gson.toJsonTree(current);
+                jsonElement = FirebaseJsonPaths.setAtPath(currentJson, pathParts, 3, jsonElement);
+            }
+            // Single entry add/remove
+            handleEntryUpdate(key, entryKey, jsonElement);
         }
     }
 
     private void handleFullUpdate(JsonElement jsonElement) {
-        localCache.clear();
-        Map<K, Map<String, V>> fullMap = new HashMap<>();
-
+        // Same path as a sliced snapshot, from an already parsed tree
+        snapshotListener.onSnapshotBegin();
         if (jsonElement != null && !jsonElement.isJsonNull() && jsonElement.isJsonObject()) {
-            JsonObject obj = jsonElement.getAsJsonObject();
-            for (Map.Entry<String, JsonElement> keyEntry : obj.entrySet()) {
-                K key;
+            for (Map.Entry<String, JsonElement> keyEntry : jsonElement.getAsJsonObject().entrySet()) {
+                snapshotListener.onSnapshotChild(keyEntry.getKey(), keyEntry.getValue());
+            }
+        }
+        snapshotListener.onSnapshotEnd();
+    }
+
+    /**
+     * Builds a full update one key at a time; the staged lists replace the cache only once complete.
+     * <p>
+     * When the cache is already complete (i.e. after a reconnect) the snapshot is applied as a
+     * delta: entries whose fingerprint matches the cached one are neither deserialized nor reported.
+     */
+    private final class FullUpdateSnapshotListener implements FirebaseSnapshotListener {
+
+        private Map<K, ConcurrentHashMap<String, V>> staged;
+        private Map<K, ConcurrentHashMap<String, Long>> stagedFingerprints;
+        // Entries that are new or changed compared to the cache, only collected while diffing
+        private List<StagedEntry> changed;
+        private boolean diffing;
+
+        @Override
+        public void onSnapshotBegin() {
+            staged = new HashMap<>();
+            stagedFingerprints = new HashMap<>();
+            changed = new ArrayList<>();
+            diffing = cacheComplete;
+        }
+
+        @Override
+        public void onSnapshotChild(String strKey, JsonElement keyValue) {
+            K key;
+            try {
+                key = stringToKeyTransformer.apply(strKey);
+            } catch (Exception e) {
+                log.error("Failed to parse key: {}", strKey, e);
+                return;
+            }
+
+            if (keyValue == null || keyValue.isJsonNull() || !keyValue.isJsonObject()) {
+                return;
+            }
+
+            ConcurrentHashMap<String, V> innerMap = new ConcurrentHashMap<>();
+            ConcurrentHashMap<String, Long> innerFingerprints = new ConcurrentHashMap<>();
+            Map<String, V> cachedInnerMap = diffing ? localCache.get(key) : null;
+            Map<String, Long> cachedFingerprints = diffing ? entryFingerprints.get(key) : null;
+            JsonObject innerObj = keyValue.getAsJsonObject();
+
+            for (Map.Entry<String, JsonElement> entryEntry : innerObj.entrySet()) {
+                String entryKey = entryEntry.getKey();
+                long fingerprint = FirebaseFingerprints.of(entryEntry.getValue());
+                if (cachedInnerMap != null && cachedFingerprints != null) {
+                    Long cachedFingerprint = cachedFingerprints.get(entryKey);
+                    V cachedValue = cachedInnerMap.get(entryKey);
+                    if (cachedValue != null && cachedFingerprint != null && cachedFingerprint == fingerprint) {
+                        innerMap.put(entryKey, cachedValue);
+                        innerFingerprints.put(entryKey, fingerprint);
+                        continue;
+                    }
+                }
+
+                V value;
                 try {
-                    key = stringToKeyTransformer.apply(keyEntry.getKey());
+                    value = deserializeFromJsonElement.apply(entryEntry.getValue());
                 } catch (Exception e) {
-                    log.error("Failed to parse key: {}", keyEntry.getKey(), e);
+                    log.error("Failed to deserialize value for entry {}/{}", strKey, entryKey, e);
                     continue;
                 }
-
-                JsonElement keyValue = keyEntry.getValue();
-                if (keyValue == null || keyValue.isJsonNull() || !keyValue.isJsonObject()) {
-                    continue;
+                if (value != null) {
+                    innerMap.put(entryKey, value);
+                    innerFingerprints.put(entryKey, fingerprint);
+                    if (diffing) {
+                        changed.add(new StagedEntry(key, entryKey, value));
+                    }
                 }
+            }
 
-                ConcurrentHashMap<String, V> innerMap = new ConcurrentHashMap<>();
-                JsonObject innerObj = keyValue.getAsJsonObject();
+            if (!innerMap.isEmpty()) {
+                staged.put(key, innerMap);
+                stagedFingerprints.put(key, innerFingerprints);
+            }
+        }
 
-                for (Map.Entry<String, JsonElement> entryEntry : innerObj.entrySet()) {
-                    String entryKey = entryEntry.getKey();
-                    V value;
-                    try {
-                        value = deserializeFromJsonElement.apply(entryEntry.getValue());
-                    } catch (Exception e) {
-                        log.error("Failed to deserialize value for entry {}/{}", keyEntry.getKey(), entryKey, e);
-                        continue;
-                    }
-                    if (value != null) {
-                        innerMap.put(entryKey, value);
+        @Override
+        public void onSnapshotEnd() {
+            Map<K, ConcurrentHashMap<String, V>> fullCache = staged;
+            Map<K, ConcurrentHashMap<String, Long>> fullFingerprints = stagedFingerprints;
+            List<StagedEntry> changedEntries = changed;
+            staged = null;
+            stagedFingerprints = null;
+            changed = null;
+
+            List<StagedEntry> removedEntries = new ArrayList<>();
+            if (diffing) {
+                for (Map.Entry<K, ConcurrentHashMap<String, V>> entry : localCache.entrySet()) {
+                    Map<String, V> liveInnerMap = fullCache.get(entry.getKey());
+                    for (String entryKey : entry.getValue().keySet()) {
+                        if (liveInnerMap == null || !liveInnerMap.containsKey(entryKey)) {
+                            removedEntries.add(new StagedEntry(entry.getKey(), entryKey, null));
+                        }
                     }
                 }
+            }
+
+            localCache.clear();
+            localCache.putAll(fullCache);
+            entryFingerprints.clear();
+            entryFingerprints.putAll(fullFingerprints);
+            liveSnapshotApplied.complete(null);
 
-                if (!innerMap.isEmpty()) {
-                    localCache.put(key, innerMap);
-                    fullMap.put(key, new HashMap<>(innerMap));
+            if (diffing) {
+                for (StagedEntry entry : removedEntries) {
+                    notifyListenersOnRemove(entry.key, entry.entryKey);
                 }
+                for (StagedEntry entry : changedEntries) {
+                    notifyListenersOnAdd(entry.key, entry.entryKey, entry.value);
+                }
+                log.debug(
+                    "{}: snapshot applied as delta, {} changed, {} removed",
+                    basePath,
+                    changedEntries.size(),
+                    removedEntries.size()
+                );
+                return;
             }
+            cacheComplete = true;
+
+            Map<K, Map<String, V>> fullMap = new HashMap<>();
+            for (Map.Entry<K, ConcurrentHashMap<String, V>> entry : fullCache.entrySet()) {
+                fullMap.put(entry.getKey(), new HashMap<>(entry.getValue()));
+            }
+            notifyListenersOnFullUpdate(fullMap);
         }
+    }
 
-        notifyListenersOnFullUpdate(fullMap);
+    private Map<K, Map<String, V>> copyCache() {
+        Map<K, Map<String, V>> map = new HashMap<>();
+        for (Map.Entry<K, ConcurrentHashMap<String, V>> entry : localCache.entrySet()) {
+            map.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return map;
     }
 
-    private void handleKeyFullUpdate(K key, JsonElement jsonElement) {
-        localCache.remove(key);
+    private final class StagedEntry {
 
-        if (jsonElement == null || jsonElement.isJsonNull()) {
-            return;
+        private final K key;
+        private final String entryKey;
+        private final V value;
+
+        private StagedEntry(K key, String entryKey, V value) {
+            this.key = key;
+            this.entryKey = entryKey;
+            this.value = value;
+        }
+    }
+
+    private void handleKeyFullUpdate(K key, JsonElement jsonElement) {
+        ConcurrentHashMap<String, V> previous = localCache.remove(key);
+        entryFingerprints.remove(key);
+
+        JsonObject obj = jsonElement != null && jsonElement.isJsonObject()
+            ? jsonElement.getAsJsonObject()
+            : new JsonObject();
+
+        // The list for this key was replaced, entries that are gone have been removed
+        if (previous != null) {
+            for (String entryKey : previous.keySet()) {
+                if (!obj.has(entryKey)) {
+                    notifyListenersOnRemove(key, entryKey);
+                }
+            }
         }
 
-        if (!jsonElement.isJsonObject()) {
+        if (obj.size() == 0) {
             return;
         }
 
         ConcurrentHashMap<String, V> innerMap = new ConcurrentHashMap<>();
-        JsonObject obj = jsonElement.getAsJsonObject();
+        ConcurrentHashMap<String, Long> innerFingerprints = new ConcurrentHashMap<>();
 
         for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
             String entryKey = entry.getKey();
@@ -286,12 +419,14 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
             }
             if (value != null) {
                 innerMap.put(entryKey, value);
+                innerFingerprints.put(entryKey, FirebaseFingerprints.of(entry.getValue()));
                 notifyListenersOnAdd(key, entryKey, value);
             }
         }
 
         if (!innerMap.isEmpty()) {
             localCache.put(key, innerMap);
+            entryFingerprints.put(key, innerFingerprints);
         }
     }
 
@@ -305,6 +440,13 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
                     localCache.remove(key);
                 }
             }
+            ConcurrentHashMap<String, Long> innerFingerprints = entryFingerprints.get(key);
+            if (innerFingerprints != null) {
+                innerFingerprints.remove(entryKey);
+                if (innerFingerprints.isEmpty()) {
+                    entryFingerprints.remove(key);
+                }
+            }
             notifyListenersOnRemove(key, entryKey);
         } else {
             // Entry added/updated
@@ -319,6 +461,8 @@ public class FirebaseKeyListStorageAdapterBase<K, V> implements KeyListStoragePo
             if (value != null) {
                 ConcurrentHashMap<String, V> innerMap = localCache.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
                 innerMap.put(entryKey, value);
+                entryFingerprints.computeIfAbsent(key, k -> new ConcurrentHashMap<>())
+                    .put(entryKey, FirebaseFingerprints.of(jsonElement));
                 notifyListenersOnAdd(key, entryKey, value);
             }
         }
@@ -4,11 +4,11 @@ import com.elertan.remote.KeyValueStoragePort;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -24,8 +24,19 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
     private final Function<String, K> stringToKeyTransformer;
     private final Function<K, String> keyToStringTransformer;
     private final Function<JsonElement, V> deserializeFromJsonElement;
+    // Last known JSON per key, used to apply writes that target a path below a key
+    private final ConcurrentHashMap<String, JsonElement> jsonCache = new ConcurrentHashMap<>();
+    private final FirebaseLocalMirror mirror;
+    // Fingerprint of each cached value, so a resent snapshot only touches the keys that changed
+    private final ConcurrentHashMap<String, Long> fingerprints = new ConcurrentHashMap<>();
+    // True once jsonCache holds a complete state, from the mirror or a live snapshot. Later
+    // snapshots (the live one after the mirror, or any after a reconnect) are applied as deltas.
+    private volatile boolean cacheComplete = false;
+    // Completed once a live snapshot is in the cache, readAll is served from it
+    private final CompletableFuture<Void> liveSnapshotApplied = new CompletableFuture<>();
 
     private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    private final FirebaseSnapshotListener snapshotListener = new FullUpdateSnapshotListener();
 
     public FirebaseKeyValueStorageAdapterBase(
         String basePath,
@@ -34,6 +45,30 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
         Function<String, K> stringToKeyTransformer,
         Function<K, String> keyToStringTransformer,
         Function<JsonElement, V> deserializeFromJsonElement
+    ) {
+        this(
+            basePath,
+            db,
+            gson,
+            stringToKeyTransformer,
+            keyToStringTransformer,
+            deserializeFromJsonElement,
+            null
+        );
+    }
+
+    /**
+     * @param mirror optional local mirror; when present the last known state is served by
+     *               {@link #readAll()} right away and reconciled with the live snapshot later
+     */
+    public FirebaseKeyValueStorageAdapterBase(
+        String basePath,
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        Function<String, K> stringToKeyTransformer,
+        Function<K, String> keyToStringTransformer,
+        Function<JsonElement, V> deserializeFromJsonElement,
+        FirebaseLocalMirror mirror
     ) {
         FirebaseRealtimeDatabase.validateBasePath(basePath);
         this.basePath = basePath;
@@ -42,17 +77,25 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
         this.stringToKeyTransformer = stringToKeyTransformer;
         this.keyToStringTransformer = keyToStringTransformer;
         this.deserializeFromJsonElement = deserializeFromJsonElement;
+        this.mirror = mirror;
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        loadFromMirror();
+        db.addServerSentEventListener(basePath, sseListener, snapshotListener);
     }
 
     @Override
     public void close() throws Exception {
         listeners.clear();
+        if (mirror != null && cacheComplete) {
+            // Capture the final state now, the cache is cleared below
+            JsonObject finalState = cacheToJson();
+            mirror.scheduleSave(basePath, () -> finalState);
+        }
+        cacheComplete = false;
+        jsonCache.clear();
+        fingerprints.clear();
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.removeServerSentEventListener(basePath, sseListener);
     }
 
     @Override
@@ -64,8 +107,15 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
 
     @Override
     public CompletableFuture<Map<K, V>> readAll() {
-        return db.get(basePath)
-            .thenApply(jsonElement -> {
+        if (mirror != null && cacheComplete) {
+            // Stale-while-revalidate: the live snapshot reconciles this state when it arrives
+            return CompletableFuture.completedFuture(deserializeCache());
+        }
+        return db.readFromSnapshot(
+            basePath,
+            liveSnapshotApplied,
+            this::deserializeCache,
+            jsonElement -> {
                 if (jsonElement == null || jsonElement.isJsonNull()) {
                     return Collections.emptyMap();
                 }
@@ -80,14 +130,23 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
                 }
 
                 return map;
-            });
+            }
+        );
     }
 
     @Override
     public CompletableFuture<Void> update(K key, V value) {
         String path = basePath + "/" + keyToStringTransformer.apply(key);
         JsonElement jsonElement = gson.toJsonTree(value);
-        return db.put(path, jsonElement).thenApply(__ -> null);
+        return db.write(path, jsonElement);
+    }
+
+    @Override
+    public CompletableFuture<V> putIfAbsent(K key, V value) {
+        String path = basePath + "/" + keyToStringTransformer.apply(key);
+        JsonElement jsonElement = gson.toJsonTree(value);
+        return db.putIfAbsent(path, jsonElement)
+            .thenApply(stored -> stored == jsonElement ? value : deserializeFromJsonElement.apply(stored));
     }
 
     @Override
@@ -98,13 +157,25 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
         }
         JsonElement jsonElement = gson.toJsonTree(jsonElementMap);
 
-        return db.put(basePath, jsonElement).thenApply(__ -> null);
+        return db.write(basePath, jsonElement);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateMany(Map<K, V> map) {
+        // Per key writes, the coalescer sends them as one multi-path PATCH
+        CompletableFuture<?>[] writes = new CompletableFuture[map.size()];
+        int i = 0;
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            String path = basePath + "/" + keyToStringTransformer.apply(entry.getKey());
+            writes[i++] = db.write(path, gson.toJsonTree(entry.getValue()));
+        }
+        return CompletableFuture.allOf(writes);
     }
 
     @Override
     public CompletableFuture<Void> delete(K key) {
         String path = basePath + "/" + keyToStringTransformer.apply(key);
-        return db.delete(path);
+        return db.write(path, null);
     }
 
     @Override
@@ -119,78 +190,255 @@ public class FirebaseKeyValueStorageAdapterBase<K, V> implements KeyValueStorage
 
     private void sseListener(FirebaseSSE event) {
         FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
             return;
         }
 
-        String path = event.getPath();
-        if (!path.startsWith(basePath)) {
-            return;
+        // A patch is applied as one put per child, so it yields per-key updates
+        for (FirebaseSSE put : event.toPuts()) {
+            handlePut(put);
         }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
+    }
+
+    private void handlePut(FirebaseSSE event) {
+        // Routed by path prefix, so the event is always at or below our path
+        String[] pathParts = event.getPathSegments();
         int pathPartsLength = pathParts.length;
         if (pathPartsLength == 1) {
             // Full update
             JsonElement jsonElement = event.getData();
-            Map<K, V> map = null;
-            if (jsonElement != null && !jsonElement.isJsonNull()) {
-                JsonObject obj = jsonElement.getAsJsonObject();
-                map = new HashMap<>();
-                for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                    K key = stringToKeyTransformer.apply(entry.getKey());
-                    JsonElement entryValue = entry.getValue();
-                    V value;
-                    try {
-                        value = deserializeFromJsonElement.apply(entryValue);
-                    } catch (Exception e) {
-                        log.error(
-                            "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value in full update for key ({}): {}",
-                            basePath,
-                            keyToStringTransformer.apply(key),
-                            jsonElement,
-                            e
-                        );
-                        return;
-                    }
-                    map.put(key, value);
+            if ((jsonElement == null || jsonElement.isJsonNull()) && !cacheComplete) {
+                jsonCache.clear();
+                fingerprints.clear();
+                cacheComplete = true;
+                liveSnapshotApplied.complete(null);
+                saveToMirror();
+                notifyListenersOnFullUpdate(null);
+                return;
+            }
+            // Same path as a sliced snapshot, from an already parsed tree
+            snapshotListener.onSnapshotBegin();
+            if (jsonElement != null && jsonElement.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject().entrySet()) {
+                    snapshotListener.onSnapshotChild(entry.getKey(), entry.getValue());
                 }
             }
-            notifyListenersOnFullUpdate(map);
+            snapshotListener.onSnapshotEnd();
         } else if (pathPartsLength == 2) {
+            handleKeyPut(pathParts[1], event.getData());
+        } else {
+            // Write below a key (from a patch or a nested put), merge it into the cached value
             String strKey = pathParts[1];
-            K key = stringToKeyTransformer.apply(strKey);
+            JsonElement merged = FirebaseJsonPaths.setAtPath(
+                jsonCache.get(strKey),
+                pathParts,
+                2,
+                event.getData()
+            );
+            handleKeyPut(strKey, merged);
+        }
+    }
+
+    private void handleKeyPut(String strKey, JsonElement jsonElement) {
+        K key = stringToKeyTransformer.apply(strKey);
+
+        V value;
+        try {
+            value = deserializeFromJsonElement.apply(jsonElement);
+        } catch (Exception e) {
+            log.error(
+                "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value for key ({}): {}",
+                basePath,
+                strKey,
+                jsonElement,
+                e
+            );
+            return;
+        }
+
+        if (value == null) {
+            // Value deleted
+            jsonCache.remove(strKey);
+            fingerprints.remove(strKey);
+            saveToMirror();
+            notifyListenersOnDelete(key);
+        } else {
+            // Value
+            jsonCache.put(strKey, jsonElement);
+            fingerprints.put(strKey, FirebaseFingerprints.of(jsonElement));
+            saveToMirror();
+            notifyListenersOnUpdate(key, value);
+        }
+    }
+
+    /**
+     * Builds a full update one key at a time; the staged map replaces the cache only once complete.
+     * <p>
+     * When the cache is already complete the snapshot is applied as a delta: children whose
+     * fingerprint matches the cached one are neither deserialized nor reported.
+     */
+    private final class FullUpdateSnapshotListener implements FirebaseSnapshotListener {
+
+        // Deserialized values of the children that changed (all children when not diffing)
+        private Map<K, V> map;
+        private Map<String, JsonElement> json;
+        private Map<String, Long> jsonFingerprints;
+        private boolean diffing;
+        private boolean failed;
+
+        @Override
+        public void onSnapshotBegin() {
+            map = new HashMap<>();
+            json = new HashMap<>();
+            jsonFingerprints = new HashMap<>();
+            diffing = cacheComplete;
+            failed = false;
+        }
+
+        @Override
+        public void onSnapshotChild(String strKey, JsonElement entryValue) {
+            if (failed) {
+                return;
+            }
+            long fingerprint = FirebaseFingerprints.of(entryValue);
+            json.put(strKey, entryValue);
+            jsonFingerprints.put(strKey, fingerprint);
+            if (diffing) {
+                Long cachedFingerprint = fingerprints.get(strKey);
+                if (cachedFingerprint != null && cachedFingerprint == fingerprint) {
+                    return;
+                }
+            }
 
-            JsonElement jsonElement = event.getData();
             V value;
             try {
-                value = deserializeFromJsonElement.apply(jsonElement);
+                value = deserializeFromJsonElement.apply(entryValue);
             } catch (Exception e) {
                 log.error(
-                    "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value for key ({}): {}",
+                    "RepositoryFirebaseStorageAdapterbase ({}): failed to deserialize value in full update for key ({}): {}",
                     basePath,
                     strKey,
-                    jsonElement,
+                    entryValue,
                     e
                 );
+                // Same as before slicing: a bad entry drops the whole full update
+                failed = true;
                 return;
             }
+            map.put(stringToKeyTransformer.apply(strKey), value);
+        }
 
-            if (value == null) {
-                // Value deleted
-                notifyListenersOnDelete(key);
-            } else {
-                // Value
-                notifyListenersOnUpdate(key, value);
+        @Override
+        public void onSnapshotEnd() {
+            Map<K, V> changedMap = map;
+            Map<String, JsonElement> fullJson = json;
+            Map<String, Long> fullFingerprints = jsonFingerprints;
+            map = null;
+            json = null;
+            jsonFingerprints = null;
+            if (failed) {
+                return;
             }
-        } else {
-            log.debug(
-                "RepositoryFirebaseStorageAdapterbase ({}): too many path parts for unlocked items sse event, will ignored: {}",
-                basePath,
-                path
-            );
+            if (diffing) {
+                applySnapshotDelta(changedMap, fullJson, fullFingerprints);
+                return;
+            }
+            jsonCache.clear();
+            jsonCache.putAll(fullJson);
+            fingerprints.clear();
+            fingerprints.putAll(fullFingerprints);
+            cacheComplete = true;
+            liveSnapshotApplied.complete(null);
+            saveToMirror();
+            notifyListenersOnFullUpdate(changedMap);
+        }
+    }
+
+    private void loadFromMirror() {
+        if (mirror == null) {
+            return;
+        }
+        JsonElement mirrored = mirror.load(basePath);
+        if (mirrored == null || !mirrored.isJsonObject()) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> entry : mirrored.getAsJsonObject().entrySet()) {
+            jsonCache.put(entry.getKey(), entry.getValue());
+            fingerprints.put(entry.getKey(), FirebaseFingerprints.of(entry.getValue()));
+        }
+        cacheComplete = true;
+        log.debug("{}: loaded {} entries from local mirror", basePath, jsonCache.size());
+    }
+
+    /**
+     * Applies a snapshot over a complete cache (the mirrored state, or the state from before a
+     * reconnect), emitting per-key updates and deletes for what actually changed instead of a full
+     * update.
+     *
+     * @param changedMap deserialized values of the children whose fingerprint changed
+     */
+    private void applySnapshotDelta(
+        Map<K, V> changedMap,
+        Map<String, JsonElement> liveJson,
+        Map<String, Long> liveFingerprints
+    ) {
+        Map<String, Long> previous = new HashMap<>(fingerprints);
+        jsonCache.keySet().retainAll(liveJson.keySet());
+        jsonCache.putAll(liveJson);
+        fingerprints.clear();
+        fingerprints.putAll(liveFingerprints);
+        cacheComplete = true;
+        liveSnapshotApplied.complete(null);
+        saveToMirror();
+
+        for (String strKey : liveJson.keySet()) {
+            previous.remove(strKey);
+        }
+        for (Map.Entry<K, V> entry : changedMap.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            notifyListenersOnUpdate(entry.getKey(), entry.getValue());
+        }
+        for (String removedKey : previous.keySet()) {
+            notifyListenersOnDelete(stringToKeyTransformer.apply(removedKey));
+        }
+        log.debug(
+            "{}: snapshot applied as delta, {} changed, {} removed",
+            basePath,
+            changedMap.size(),
+            previous.size()
+        );
+    }
+
+    private Map<K, V> deserializeCache() {
+        Map<K, V> map = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : jsonCache.entrySet()) {
+            try {
+                V value = deserializeFromJsonElement.apply(entry.getValue());
+                if (value != null) {
+                    map.put(stringToKeyTransformer.apply(entry.getKey()), value);
+                }
+            } catch (Exception e) {
+                log.warn("{}: skipping undecodable cached value for key {}", basePath, entry.getKey(), e);
+            }
+        }
+        return map;
+    }
+
+    private JsonObject cacheToJson() {
+        JsonObject obj = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : jsonCache.entrySet()) {
+            obj.add(entry.getKey(), entry.getValue());
+        }
+        return obj;
+    }
+
+    private void saveToMirror() {
+        if (mirror == null) {
+            return;
         }
+        mirror.scheduleSave(basePath, () -> cacheComplete ? cacheToJson() : null);
     }
 
     private void notifyListenersOnFullUpdate(Map<K, V> map) {
@@ -0,0 +1,161 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.client.RuneLite;
+
+/**
+ * On-disk copy of the subtrees a client streams from one Firebase database.
+ * <p>
+ * Adapters load their last known state from here at startup so data providers can become ready
+ * without waiting for the network, then reconcile once the live snapshot arrives. Each base path is
+ * stored as one JSON file under {@code RUNELITE_DIR/bronzeman-unleashed/firebase-<db-hash>/}. Saves
+ * are debounced, since SSE deltas can arrive in bursts.
+ */
+@Slf4j
+public class FirebaseLocalMirror implements AutoCloseable {
+
+    private static final String PLUGIN_DIRECTORY = "bronzeman-unleashed";
+    private static final long SAVE_DELAY_MILLIS = 2000;
+
+    private final Path directory;
+    private final Gson gson;
+    private final ScheduledExecutorService executor;
+    // Base path -> producer of the JSON to write, coalesced until the delayed save runs
+    private final Map<String, Supplier<JsonElement>> pendingSaves = new LinkedHashMap<>();
+    private boolean saveScheduled = false;
+    private final Object saveLock = new Object();
+
+    public FirebaseLocalMirror(Path directory, Gson gson) {
+        this.directory = directory;
+        this.gson = gson;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "firebase-local-mirror");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static FirebaseLocalMirror forDatabase(FirebaseRealtimeDatabaseURL url, Gson gson) {
+        return new FirebaseLocalMirror(getDatabaseMirrorDir(url), gson);
+    }
+
+    public static Path getDatabaseMirrorDir(FirebaseRealtimeDatabaseURL url) {
+        return RuneLite.RUNELITE_DIR.toPath()
+            .resolve(PLUGIN_DIRECTORY)
+            .resolve("firebase-" + hash(url.getBaseUrl()));
+    }
+
+    /**
+     * Returns the mirrored JSON for a base path, or null when there is none or it cannot be read.
+     */
+    public JsonElement load(String basePath) {
+        Path filePath = filePathFor(basePath);
+        if (!Files.exists(filePath)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, JsonElement.class);
+        } catch (Exception e) {
+            // The mirror is only a cache; the live snapshot will replace it
+            log.warn("Ignoring unreadable Firebase mirror {}", filePath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Schedules a save of {@code basePath}. The supplier is called on the mirror thread when the save
+     * runs, so repeated calls within the delay cost one write. It may return JSON null to delete the
+     * mirrored file, or null to skip the save.
+     */
+    public synchronized void scheduleSave(String basePath, Supplier<JsonElement> snapshot) {
+        pendingSaves.put(basePath, snapshot);
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        executor.schedule(this::savePending, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        // Persist what is still pending so the next startup sees the latest state
+        savePending();
+    }
+
+    private void savePending() {
+        // Serializes the delayed save with the final save from close()
+        synchronized (saveLock) {
+            Map<String, Supplier<JsonElement>> saves;
+            synchronized (this) {
+                saves = new LinkedHashMap<>(pendingSaves);
+                pendingSaves.clear();
+                saveScheduled = false;
+            }
+
+            for (Map.Entry<String, Supplier<JsonElement>> entry : saves.entrySet()) {
+                Path filePath = filePathFor(entry.getKey());
+                try {
+                    JsonElement json = entry.getValue().get();
+                    if (json == null) {
+                        // The owner has nothing complete to save
+                        continue;
+                    }
+                    if (json.isJsonNull()) {
+                        Files.deleteIfExists(filePath);
+                        continue;
+                    }
+                    write(filePath, json);
+                } catch (Exception e) {
+                    log.warn("Failed to save Firebase mirror {}", filePath, e);
+                }
+            }
+        }
+    }
+
+    private void write(Path filePath, JsonElement json) throws IOException {
+        Files.createDirectories(filePath.getParent());
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            gson.toJson(json, writer);
+        }
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path filePathFor(String basePath) {
+        FirebaseRealtimeDatabase.validateBasePath(basePath);
+        return directory.resolve(basePath.substring(1) + ".json");
+    }
+
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            // 8 bytes are plenty to keep databases apart
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", bytes[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.elertan.remote.firebase;
+
+import com.elertan.remote.SyncMetrics;
+import java.io.IOException;
+import java.util.List;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Network interceptor feeding {@link SyncMetrics}: bytes on the wire, and per base path request
+ * counts and latencies. A request's latency runs until its body has been read, so large GETs are
+ * not under-reported. Event streams only count bytes, their "latency" is the session length.
+ */
+final class FirebaseMetricsInterceptor implements Interceptor {
+
+    private final SyncMetrics metrics;
+
+    FirebaseMetricsInterceptor(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = countRequestBody(chain.request());
+
+        boolean isStream = "text/event-stream".equals(request.header("Accept"));
+        String key = basePathOf(request);
+        long startNanos = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            if (!isStream) {
+                metrics.recordRequest(request.method(), key, System.nanoTime() - startNanos, false);
+            }
+            throw e;
+        }
+
+        ResponseBody body = response.body();
+        if (body == null) {
+            if (!isStream) {
+                metrics.recordRequest(
+                    request.method(),
+                    key,
+                    System.nanoTime() - startNanos,
+                    response.isSuccessful()
+                );
+            }
+            return response;
+        }
+        Runnable onBodyDone = isStream ? null : () -> metrics.recordRequest(
+            request.method(),
+            key,
+            System.nanoTime() - startNanos,
+            response.isSuccessful()
+        );
+        return response.newBuilder()
+            .body(new CountingResponseBody(body, onBodyDone))
+            .build();
+    }
+
+    private Request countRequestBody(Request request) throws IOException {
+        RequestBody requestBody = request.body();
+        if (requestBody == null) {
+            return request;
+        }
+        long contentLength = requestBody.contentLength();
+        if (contentLength >= 0) {
+            metrics.recordBytesSent(contentLength);
+            return request;
+        }
+        // Streamed (chunked) bodies are counted as they are written
+        return request.newBuilder()
+            .method(request.method(), new CountingRequestBody(requestBody))
+            .build();
+    }
+
+    /**
+     * "/Members/123.json" -> "/Members", and the root ("/.json", used by batched writes) -> "/".
+     */
+    private static String basePathOf(Request request) {
+        List<String> segments = request.url().pathSegments();
+        if (segments.isEmpty()) {
+            return "/";
+        }
+        String first = segments.get(0);
+        if (first.endsWith(".json")) {
+            first = first.substring(0, first.length() - ".json".length());
+        }
+        return first.isEmpty() ? "/" : "/" + first;
+    }
+
+    private final class CountingRequestBody extends RequestBody {
+
+        private final RequestBody delegate;
+
+        private CountingRequestBody(RequestBody delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink countingSink = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    metrics.recordBytesSent(byteCount);
+                }
+            });
+            delegate.writeTo(countingSink);
+            // Pushes the bytes on to the real sink without closing it
+            countingSink.emit();
+        }
+    }
+
+    private final class CountingResponseBody extends ResponseBody {
+
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+        private Runnable onDone;
+
+        private CountingResponseBody(ResponseBody delegate, Runnable onDone) {
+            this.delegate = delegate;
+            this.onDone = onDone;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read == -1) {
+                        done();
+                    } else {
+                        metrics.recordBytesReceived(read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    done();
+                    super.close();
+                }
+            });
+        }
+
+        private void done() {
+            Runnable callback = onDone;
+            onDone = null;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.elertan.remote.firebase;
 import com.elertan.remote.ObjectListStoragePort;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,8 +23,11 @@ public class FirebaseObjectListStorageAdapterBase<V> implements ObjectListStorag
     private final ConcurrentLinkedQueue<Listener<V>> listeners = new ConcurrentLinkedQueue<>();
 
     private final ConcurrentHashMap<String, V> localCache = new ConcurrentHashMap<>();
+    // Completed once a live snapshot is in the cache, readAll is served from it
+    private final CompletableFuture<Void> liveSnapshotApplied = new CompletableFuture<>();
 
     private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    private final FirebaseSnapshotListener snapshotListener = new FullUpdateSnapshotListener();
 
     public FirebaseObjectListStorageAdapterBase(
         String basePath,
@@ -39,8 +41,7 @@ public class FirebaseObjectListStorageAdapterBase<V> implements ObjectListStorag
         this.serializer = serializer;
         this.deserializer = deserializer;
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        db.addServerSentEventListener(basePath, sseListener, snapshotListener);
     }
 
     @Override
@@ -48,14 +49,16 @@ public class FirebaseObjectListStorageAdapterBase<V> implements ObjectListStorag
         listeners.clear();
         localCache.clear();
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.removeServerSentEventListener(basePath, sseListener);
     }
 
     @Override
     public CompletableFuture<Map<String, V>> readAll() {
-        return db.get(basePath)
-            .thenApply(jsonElement -> {
+        return db.readFromSnapshot(
+            basePath,
+            liveSnapshotApplied,
+            () -> new HashMap<>(localCache),
+            jsonElement -> {
                 if (jsonElement == null || jsonElement.isJsonNull()) {
                     return Collections.emptyMap();
                 }
@@ -71,28 +74,22 @@ public class FirebaseObjectListStorageAdapterBase<V> implements ObjectListStorag
                 }
 
                 return map;
-            });
+            }
+        );
     }
 
     @Override
     public CompletableFuture<String> add(V value) {
+        // Push IDs are generated here so the add can be batched with other writes
+        String entryKey = FirebasePushIds.next();
         JsonElement jsonElement = serializer.apply(value);
-        return db.post(basePath, jsonElement)
-            .thenApply(response -> {
-                if (response != null && response.isJsonObject()) {
-                    JsonObject obj = response.getAsJsonObject();
-                    if (obj.has("name")) {
-                        return obj.get("name").getAsString();
-                    }
-                }
-                return null;
-            });
+        return db.write(basePath + "/" + entryKey, jsonElement).thenApply(__ -> entryKey);
     }
 
     @Override
     public CompletableFuture<Void> remove(String entryKey) {
         String path = basePath + "/" + entryKey;
-        return db.delete(path);
+        return db.write(path, null);
     }
 
     @Override
@@ -111,58 +108,86 @@ public class FirebaseObjectListStorageAdapterBase<V> implements ObjectListStorag
 
     private void sseListener(FirebaseSSE event) {
         FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
             return;
         }
 
-        String path = event.getPath();
-        if (!path.startsWith(basePath)) {
-            return;
+        // A patch is applied as one put per child, so it yields per-entry adds/removes
+        for (FirebaseSSE put : event.toPuts()) {
+            handlePut(put);
         }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
+    }
+
+    private void handlePut(FirebaseSSE event) {
+        // Routed by path prefix, so the event is always at or below our path
+        String[] pathParts = event.getPathSegments();
         int pathPartsLength = pathParts.length;
 
         if (pathPartsLength == 1) {
             // Full update of entire collection
             handleFullUpdate(event.getData());
-        } else if (pathPartsLength == 2) {
-            // Single entry add/remove
-            String entryKey = pathParts[1];
-            handleEntryUpdate(entryKey, event.getData());
-        } else {
-            log.debug(
-                "FirebaseObjectListStorageAdapterBase ({}): too many path parts, ignoring: {}",
-                basePath,
-                path
-            );
+            return;
         }
+
+        String entryKey = pathParts[1];
+        JsonElement jsonElement = event.getData();
+        if (pathPartsLength > 2) {
+            // Write below an entry, merge it into the cached entry
+            V current = localCache.get(entryKey);
+            JsonElement currentJson = current == null ? null : serializer.apply(current);
+            jsonElement = FirebaseJsonPaths.setAtPath(currentJson, pathParts, 2, jsonElement);
+        }
+        // Single entry add/remove
+        handleEntryUpdate(entryKey, jsonElement);
     }
 
     private void handleFullUpdate(JsonElement jsonElement) {
-        localCache.clear();
-        Map<String, V> fullMap = new HashMap<>();
-
+        // Same path as a sliced snapshot, from an already parsed tree
+        snapshotListener.onSnapshotBegin();
         if (jsonElement != null && !jsonElement.isJsonNull() && jsonElement.isJsonObject()) {
-            JsonObject obj = jsonElement.getAsJsonObject();
-            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                String entryKey = entry.getKey();
-                V value;
-                try {
-                    value = deserializer.apply(entry.getValue());
-                } catch (Exception e) {
-                    log.error("Failed to deserialize value for entry {}", entryKey, e);
-                    continue;
-                }
-                if (value != null) {
-                    localCache.put(entryKey, value);
-                    fullMap.put(entryKey, value);
-                }
+            for (Map.Entry<String, JsonElement> entry : jsonElement.getAsJsonObject().entrySet()) {
+                snapshotListener.onSnapshotChild(entry.getKey(), entry.getValue());
             }
         }
+        snapshotListener.onSnapshotEnd();
+    }
+
+    /**
+     * Builds a full update one entry at a time; the staged map replaces the cache only once complete.
+     */
+    private final class FullUpdateSnapshotListener implements FirebaseSnapshotListener {
 
-        notifyListenersOnFullUpdate(fullMap);
+        private Map<String, V> staged;
+
+        @Override
+        public void onSnapshotBegin() {
+            staged = new HashMap<>();
+        }
+
+        @Override
+        public void onSnapshotChild(String entryKey, JsonElement entryValue) {
+            V value;
+            try {
+                value = deserializer.apply(entryValue);
+            } catch (Exception e) {
+                log.error("Failed to deserialize value for entry {}", entryKey, e);
+                return;
+            }
+            if (value != null) {
+                staged.put(entryKey, value);
+            }
+        }
+
+        @Override
+        public void onSnapshotEnd() {
+            Map<String, V> fullMap = staged;
+            staged = null;
+
+            localCache.clear();
+            localCache.putAll(fullMap);
+            liveSnapshotApplied.complete(null);
+            notifyListenersOnFullUpdate(new HashMap<>(fullMap));
+        }
     }
 
     private void handleEntryUpdate(String entryKey, JsonElement jsonElement) {
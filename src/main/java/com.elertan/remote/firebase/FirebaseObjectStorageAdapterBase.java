@@ -2,7 +2,6 @@ package com.elertan.remote.firebase;
 
 import com.elertan.remote.ObjectStoragePort;
 import com.google.gson.JsonElement;
-import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
@@ -18,49 +17,80 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
     private final Function<JsonElement, T> deserializer;
     private final ConcurrentLinkedQueue<Listener<T>> listeners = new ConcurrentLinkedQueue<>();
     private final Consumer<FirebaseSSE> sseListener = this::sseListener;
+    // Last known JSON of the object, used to apply writes that target a path below it
+    private volatile JsonElement lastJsonElement;
+    private final FirebaseLocalMirror mirror;
+    // True while lastJsonElement came from the mirror and no live value has been seen yet
+    private volatile boolean reconcilePending = false;
+    // Completed once a live value has been seen, read is served from it
+    private final CompletableFuture<Void> liveValueSeen = new CompletableFuture<>();
 
     public FirebaseObjectStorageAdapterBase(
         String path,
         FirebaseRealtimeDatabase db,
         Function<T, JsonElement> serializer,
         Function<JsonElement, T> deserializer
+    ) {
+        this(path, db, serializer, deserializer, null);
+    }
+
+    /**
+     * @param mirror optional local mirror; when present the last known value is served by
+     *               {@link #read()} right away and replaced by the live value when it arrives
+     */
+    public FirebaseObjectStorageAdapterBase(
+        String path,
+        FirebaseRealtimeDatabase db,
+        Function<T, JsonElement> serializer,
+        Function<JsonElement, T> deserializer,
+        FirebaseLocalMirror mirror
     ) {
         FirebaseRealtimeDatabase.validateBasePath(path);
         this.path = path;
         this.db = db;
         this.serializer = serializer;
         this.deserializer = deserializer;
+        this.mirror = mirror;
 
-        FirebaseSSEStream stream = db.getStream();
-        stream.addServerSentEventListener(sseListener);
+        if (mirror != null) {
+            lastJsonElement = mirror.load(path);
+            reconcilePending = lastJsonElement != null;
+        }
+        db.addServerSentEventListener(path, sseListener);
     }
 
     @Override
     public void close() throws Exception {
-        FirebaseSSEStream stream = db.getStream();
-        stream.removeServerSentEventListener(sseListener);
+        db.removeServerSentEventListener(path, sseListener);
     }
 
     @Override
     public CompletableFuture<T> read() {
-        CompletableFuture<T> future = new CompletableFuture<>();
-        db.get(path).whenComplete((jsonElement, throwable) -> {
-            if (throwable != null) {
-                future.completeExceptionally(throwable);
-                return;
-            }
-            boolean isJsonNull = jsonElement.isJsonNull();
-            T value = this.deserializer.apply(jsonElement);
-            if (value == null && !isJsonNull) {
-                Exception ex = new IllegalStateException("deserialisation failed when reading value");
-                log.error("deserialisation failed when reading value: {}", jsonElement, ex);
-                future.completeExceptionally(ex);
-                return;
-            }
+        JsonElement cached = lastJsonElement;
+        if (mirror != null && cached != null) {
+            // Stale-while-revalidate: the live value replaces this one through the listeners
+            return CompletableFuture.completedFuture(
+                cached.isJsonNull() ? null : this.deserializer.apply(cached)
+            );
+        }
 
-            future.complete(value);
-        });
-        return future;
+        return db.readFromSnapshot(
+            path,
+            liveValueSeen,
+            () -> deserializeRead(lastJsonElement),
+            this::deserializeRead
+        );
+    }
+
+    private T deserializeRead(JsonElement jsonElement) {
+        boolean isJsonNull = jsonElement == null || jsonElement.isJsonNull();
+        T value = isJsonNull ? null : this.deserializer.apply(jsonElement);
+        if (value == null && !isJsonNull) {
+            IllegalStateException ex = new IllegalStateException("deserialisation failed when reading value");
+            log.error("deserialisation failed when reading value: {}", jsonElement, ex);
+            throw ex;
+        }
+        return value;
     }
 
     @Override
@@ -74,7 +104,7 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
             return future;
         }
 
-        db.put(path, jsonElement).whenComplete((__, throwable) -> {
+        db.write(path, jsonElement).whenComplete((__, throwable) -> {
             if (throwable != null) {
                 future.completeExceptionally(throwable);
                 return;
@@ -88,7 +118,7 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
 
     @Override
     public CompletableFuture<Void> delete() {
-        return db.delete(path);
+        return db.write(path, null);
     }
 
     @Override
@@ -103,24 +133,33 @@ public class FirebaseObjectStorageAdapterBase<T> implements ObjectStoragePort<T>
 
     private void sseListener(FirebaseSSE event) {
         FirebaseSSEType type = event.getType();
-        if (type != FirebaseSSEType.Put) {
+        if (type != FirebaseSSEType.Put && type != FirebaseSSEType.Patch) {
             return;
         }
 
-        String path = event.getPath();
-        if (!path.startsWith(this.path)) {
-            return;
-        }
-        String[] pathParts = Arrays.stream(path.split("/"))
-            .filter(part -> !part.isEmpty())
-            .toArray(String[]::new);
-        int pathPartsLength = pathParts.length;
-        if (pathPartsLength != 1) {
-            log.warn("put received but at a deeper level than just the object store, ignoring");
-            return;
+        // Merge every put a patch decomposes into, then notify once with the resulting object
+        JsonElement previous = lastJsonElement;
+        JsonElement jsonElement = previous;
+        for (FirebaseSSE put : event.toPuts()) {
+            // Routed by path prefix, so the event is always at or below our path
+            String[] pathParts = put.getPathSegments();
+            jsonElement = FirebaseJsonPaths.setAtPath(jsonElement, pathParts, 1, put.getData());
         }
+        lastJsonElement = jsonElement;
+        // Every stream starts with a put of the whole path, so this is the live value
+        liveValueSeen.complete(null);
 
-        JsonElement jsonElement = event.getData();
+        if (mirror != null) {
+            JsonElement saved = jsonElement;
+            mirror.scheduleSave(path, () -> saved);
+        }
+        if (reconcilePending) {
+            reconcilePending = false;
+            if (jsonElement.equals(previous)) {
+                // The mirrored value was current, nothing changed for listeners
+                return;
+            }
+        }
 
         if (jsonElement == null || jsonElement.isJsonNull()) {
             notifyListenersOnDelete();
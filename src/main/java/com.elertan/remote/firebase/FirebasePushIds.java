@@ -0,0 +1,57 @@
+package com.elertan.remote.firebase;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates Firebase push IDs on the client, in the same format the server uses for POST.
+ * <p>
+ * An ID is 8 characters of timestamp followed by 12 random characters, all from an alphabet that
+ * sorts lexicographically in ASCII order, so IDs sort chronologically. IDs generated within the same
+ * millisecond increment the random part to stay unique and ordered.
+ */
+public final class FirebasePushIds {
+
+    private static final String PUSH_CHARS =
+        "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static long lastPushTime = 0L;
+    private static final int[] lastRandChars = new int[12];
+
+    private FirebasePushIds() {
+    }
+
+    public static synchronized String next() {
+        long now = System.currentTimeMillis();
+        boolean duplicateTime = now == lastPushTime;
+        lastPushTime = now;
+
+        char[] timeStampChars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            timeStampChars[i] = PUSH_CHARS.charAt((int) (now % 64));
+            now = now / 64;
+        }
+
+        StringBuilder id = new StringBuilder(20);
+        id.append(timeStampChars);
+
+        if (!duplicateTime) {
+            for (int i = 0; i < 12; i++) {
+                lastRandChars[i] = RANDOM.nextInt(64);
+            }
+        } else {
+            // Same millisecond: increment the previous random part by one
+            int i;
+            for (i = 11; i >= 0 && lastRandChars[i] == 63; i--) {
+                lastRandChars[i] = 0;
+            }
+            if (i >= 0) {
+                lastRandChars[i]++;
+            }
+        }
+        for (int i = 0; i < 12; i++) {
+            id.append(PUSH_CHARS.charAt(lastRandChars[i]));
+        }
+        return id.toString();
+    }
+}
@@ -1,40 +1,123 @@
 package com.elertan.remote.firebase;
 
+import com.elertan.remote.SyncMetrics;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
 import java.io.IOException;
 import java.io.Reader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import lombok.Getter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Call;
 import okhttp3.HttpUrl;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 
 @Slf4j
 public class FirebaseRealtimeDatabase implements AutoCloseable {
 
-    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse(
-        "application/json; charset=utf-8");
+    // One game tick; the storage session also flushes on every tick
+    static final Duration WRITE_COALESCE_WINDOW = Duration.ofMillis(600);
+    // Includes the time spent queued in a priority lane
+    static final Duration REQUEST_DEADLINE = Duration.ofSeconds(15);
+    // For bootstrap reads of a whole base path, which can be megabytes on a slow connection
+    static final Duration BULK_READ_DEADLINE = Duration.ofSeconds(90);
+    // The ETag Firebase gives a location without a value
+    private static final String NULL_ETAG = "null_etag";
+    private static final int CONDITIONAL_WRITE_ATTEMPTS = 3;
 
     private final OkHttpClient httpClient;
+    private final OkHttpClient sseClient;
     private final Gson gson;
+    private final TypeAdapter<JsonElement> jsonElementAdapter;
 
     @Getter
     private final FirebaseRealtimeDatabaseURL databaseURL;
+    // Parsed once, every request URL is built from it
+    private final HttpUrl baseHttpUrl;
+    // One stream per subscribed base path, so clients only receive the subtrees they read
+    private final Map<String, FirebaseSSEStream> streams = new ConcurrentHashMap<>();
+    private final FirebaseSSERouter router;
+    // Decodes and delivers stream events, so listeners never hold up a stream's reader thread
+    private final FirebaseSSEDispatcher sseDispatcher;
+    private boolean streaming = false;
+    // One coalescer per priority class, so a batch of housekeeping writes never holds up an unlock
+    private final Map<FirebaseRequestPriority, FirebaseWriteCoalescer> writeCoalescers =
+        new EnumMap<>(FirebaseRequestPriority.class);
+    private final ScheduledExecutorService writeCoalescerScheduler = FirebaseWriteCoalescer.newScheduler();
+    private final FirebaseRequestScheduler requestScheduler;
+    private volatile Duration requestDeadline = REQUEST_DEADLINE;
+    private volatile Duration bulkReadDeadline = BULK_READ_DEADLINE;
+    // Requests not completed yet, cancelled in bulk when the session closes
+    private final Set<CompletableFuture<?>> outstandingRequests = ConcurrentHashMap.newKeySet();
+    // Optional, when set every write is journaled and replayed after reconnecting until confirmed
+    private final FirebaseWriteJournal writeJournal;
+    private final AtomicBoolean replayInFlight = new AtomicBoolean(false);
     @Getter
-    private final FirebaseSSEStream stream;
+    private final SyncMetrics metrics;
 
     public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
         FirebaseRealtimeDatabaseURL databaseURL) {
-        this.httpClient = httpClient;
+        this(httpClient, gson, databaseURL, WRITE_COALESCE_WINDOW, null);
+    }
+
+    public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
+        FirebaseRealtimeDatabaseURL databaseURL, FirebaseWriteJournal writeJournal) {
+        this(httpClient, gson, databaseURL, WRITE_COALESCE_WINDOW, writeJournal);
+    }
+
+    public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
+        FirebaseRealtimeDatabaseURL databaseURL, Duration writeCoalesceWindow,
+        FirebaseWriteJournal writeJournal) {
+        this(httpClient, gson, databaseURL, writeCoalesceWindow, writeJournal, new SyncMetrics());
+    }
+
+    public FirebaseRealtimeDatabase(OkHttpClient httpClient, Gson gson,
+        FirebaseRealtimeDatabaseURL databaseURL, Duration writeCoalesceWindow,
+        FirebaseWriteJournal writeJournal, SyncMetrics metrics) {
+        this.metrics = metrics;
+        // Shares the pool and dispatcher of the given client, only adds the metrics interceptor
+        this.httpClient = httpClient.newBuilder()
+            .addNetworkInterceptor(new FirebaseMetricsInterceptor(metrics))
+            .build();
+        this.writeJournal = writeJournal;
+        this.sseClient = FirebaseSSEStream.newSseClient(this.httpClient);
+        this.router = new FirebaseSSERouter(metrics);
+        this.sseDispatcher = new FirebaseSSEDispatcher(metrics);
         this.gson = gson;
+        this.jsonElementAdapter = gson.getAdapter(JsonElement.class);
         this.databaseURL = databaseURL;
-        this.stream = new FirebaseSSEStream(httpClient, gson, databaseURL);
+        this.baseHttpUrl = HttpUrl.parse(databaseURL.getBaseUrl());
+        if (baseHttpUrl == null) {
+            throw new IllegalArgumentException("Invalid base URL: " + databaseURL.getBaseUrl());
+        }
+        this.requestScheduler = new FirebaseRequestScheduler(metrics);
+        for (FirebaseRequestPriority priority : FirebaseRequestPriority.values()) {
+            writeCoalescers.put(priority, new FirebaseWriteCoalescer(
+                // Nothing reads the merged result, so let the server skip echoing it
+                body -> executeVoidRequest(buildJsonRequestWithBody("/?print=silent", "PATCH", body), priority),
+                writeCoalesceWindow,
+                writeCoalescerScheduler
+            ));
+        }
     }
 
     public static CompletableFuture<Boolean> canConnectTo(OkHttpClient httpClient,
@@ -58,6 +141,11 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
             .header("User-Agent", "BronzemanUnleashedPlugin");
     }
 
+    private static Request.Builder getRequestBuilder(HttpUrl url) {
+        return new Request.Builder().url(url)
+            .header("User-Agent", "BronzemanUnleashedPlugin");
+    }
+
     /**
      * Validates that a base path is a single-level resource path (e.g., "/Resource").
      * @throws IllegalArgumentException if path is null, doesn't start with '/', or has multiple levels
@@ -105,35 +193,380 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        FirebaseSSEStream stream = getStream();
-        stream.stop();
+        // Nobody is waiting for the answers anymore; journaled writes are replayed next session
+        cancelOutstandingRequests();
+        // Send whatever is still buffered before tearing down
+        for (FirebaseWriteCoalescer writeCoalescer : writeCoalescers.values()) {
+            writeCoalescer.close();
+        }
+        writeCoalescerScheduler.shutdown();
+        if (writeJournal != null) {
+            writeJournal.close();
+        }
+        stopStreaming();
+        streams.clear();
+        sseDispatcher.close();
+    }
+
+    /**
+     * Subscribes a listener to the subtree at {@code path}. The first listener for a path opens a
+     * stream for it (once streaming is started); events are routed to listeners by path prefix and
+     * carry absolute paths.
+     */
+    public void addServerSentEventListener(String path, Consumer<FirebaseSSE> listener) {
+        addServerSentEventListener(path, listener, null);
+    }
+
+    /**
+     * Like {@link #addServerSentEventListener(String, Consumer)}, additionally receiving puts that
+     * replace {@code path} as a sliced snapshot instead of one fully parsed event, see
+     * {@link FirebaseSnapshotListener}.
+     */
+    public synchronized void addServerSentEventListener(
+        String path,
+        Consumer<FirebaseSSE> listener,
+        FirebaseSnapshotListener snapshotListener
+    ) {
+        router.addListener(path, listener, snapshotListener);
+        FirebaseSSEStream stream = streams.computeIfAbsent(path, p -> {
+            FirebaseSSEStream newStream = new FirebaseSSEStream(sseClient, gson, databaseURL, p);
+            newStream.addServerSentEventListener(router::dispatch);
+            newStream.setSnapshotListenerResolver(router::snapshotListenerFor);
+            newStream.setMetrics(metrics);
+            newStream.setDispatcher(sseDispatcher);
+            newStream.addIsConnectedListener(() -> {
+                if (newStream.isConnected()) {
+                    replayJournal();
+                }
+            });
+            return newStream;
+        });
+        if (streaming) {
+            stream.start();
+        }
+    }
+
+    /**
+     * Detaches a listener. When the last listener of a path is removed its stream is closed.
+     */
+    public synchronized void removeServerSentEventListener(String path, Consumer<FirebaseSSE> listener) {
+        router.removeListener(path, listener);
+        if (router.hasListeners(path)) {
+            return;
+        }
+        FirebaseSSEStream stream = streams.remove(path);
+        if (stream != null) {
+            stream.stop();
+        }
+    }
+
+    /**
+     * Returns the stream for a subscribed path, or null if nothing is subscribed to it.
+     */
+    public FirebaseSSEStream getStream(String path) {
+        return streams.get(path);
+    }
+
+    public synchronized void startStreaming() {
+        streaming = true;
+        for (FirebaseSSEStream stream : streams.values()) {
+            stream.start();
+        }
+    }
+
+    public synchronized void stopStreaming() {
+        streaming = false;
+        for (FirebaseSSEStream stream : streams.values()) {
+            stream.stop();
+        }
+    }
+
+    public synchronized boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Reads a subscribed path for bootstrapping from the snapshot its stream starts with, instead of
+     * downloading and parsing the same data again with a GET. Falls back to a GET when the path is
+     * not being streamed, or when no snapshot arrives within the bulk read deadline. The GET has
+     * the bulk read deadline as well.
+     *
+     * @param snapshotApplied completed by the adapter once a snapshot of {@code path} is in its cache
+     * @param fromSnapshot    reads the result from the adapter's cache
+     * @param fromResponse    decodes the response of the fallback GET
+     */
+    public <T> CompletableFuture<T> readFromSnapshot(
+        String path,
+        CompletableFuture<Void> snapshotApplied,
+        Supplier<T> fromSnapshot,
+        Function<JsonElement, T> fromResponse
+    ) {
+        boolean streamed;
+        synchronized (this) {
+            streamed = streaming && streams.containsKey(path);
+        }
+        Duration deadline = bulkReadDeadline;
+        if (!snapshotApplied.isDone() && !streamed) {
+            return get(path, deadline).thenApply(fromResponse);
+        }
+
+        // Derived, so the deadline and a cancel never complete the adapter's future
+        CompletableFuture<T> fromStream = withDeadline(
+            snapshotApplied.thenApply(__ -> fromSnapshot.get()),
+            deadline
+        );
+        return fromStream
+            .handle((value, throwable) -> {
+                if (throwable == null) {
+                    return CompletableFuture.completedFuture(value);
+                }
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause()
+                    : throwable;
+                if (!(cause instanceof TimeoutException)) {
+                    return CompletableFuture.<T>failedFuture(cause);
+                }
+                log.debug("No snapshot of {} within {}, reading it instead", path, deadline);
+                return get(path, deadline).thenApply(fromResponse);
+            })
+            .thenCompose(future -> future);
     }
 
     public CompletableFuture<JsonElement> get(String path) {
-        String url = getUrlForPath(path);
+        return get(path, requestDeadline);
+    }
+
+    /**
+     * Like {@link #get(String)}, failing after {@code deadline} instead of the request deadline.
+     */
+    public CompletableFuture<JsonElement> get(String path, Duration deadline) {
+        HttpUrl url = getUrlForPath(path);
         Request request = getRequestBuilder(url)
             .get()
             .build();
-        return executeJsonRequest(request);
+        return withDeadline(
+            requestScheduler.submit(FirebaseRequestPriority.forPath(path), () -> sendJsonRequest(request)),
+            deadline
+        );
     }
 
     public CompletableFuture<JsonElement> post(String path, JsonElement data) {
-        return executeJsonRequest(buildJsonRequestWithBody(path, "POST", data));
+        return executeJsonRequest(
+            buildJsonRequestWithBody(path, "POST", data),
+            FirebaseRequestPriority.forPath(path)
+        );
     }
 
     public CompletableFuture<JsonElement> put(String path, JsonElement data) {
-        return executeJsonRequest(buildJsonRequestWithBody(path, "PUT", data));
+        return executeJsonRequest(
+            buildJsonRequestWithBody(path, "PUT", data),
+            FirebaseRequestPriority.forPath(path)
+        );
+    }
+
+    public CompletableFuture<JsonElement> patch(String path, JsonElement data) {
+        return executeJsonRequest(
+            buildJsonRequestWithBody(path, "PATCH", data),
+            FirebaseRequestPriority.forPath(path)
+        );
+    }
+
+    /**
+     * Writes {@code data} at {@code path} only if nothing is stored there yet, so the first writer
+     * wins. Sent right away as an ETag-conditional PUT ({@code if-match: null_etag}) rather than
+     * through the write coalescer: one round trip when the location is empty, and on a conflict the
+     * server answers with the value that won. Only retried when that value was deleted in between.
+     *
+     * @return the value stored at {@code path} afterwards: {@code data} if this write won,
+     *         otherwise the value written first by someone else
+     */
+    public CompletableFuture<JsonElement> putIfAbsent(String path, JsonElement data) {
+        return putIfAbsent(path, data, NULL_ETAG, CONDITIONAL_WRITE_ATTEMPTS);
+    }
+
+    private CompletableFuture<JsonElement> putIfAbsent(
+        String path,
+        JsonElement data,
+        String etag,
+        int attemptsLeft
+    ) {
+        return putIfMatch(path, data, etag).thenCompose(result -> {
+            if (result.isMatched()) {
+                return CompletableFuture.completedFuture(data);
+            }
+            JsonElement current = result.getValue();
+            if (current != null && !current.isJsonNull()) {
+                return CompletableFuture.completedFuture(current);
+            }
+            if (attemptsLeft <= 1) {
+                return CompletableFuture.failedFuture(
+                    new IOException("Conditional write to " + path + " kept conflicting"));
+            }
+            // Empty again by now, retry against the ETag the server just gave us
+            return putIfAbsent(path, data, result.getEtag(), attemptsLeft - 1);
+        });
+    }
+
+    /**
+     * Reads the value at {@code path} together with its ETag, for a later {@link #putIfMatch}.
+     */
+    public CompletableFuture<ETaggedValue> getWithETag(String path) {
+        Request request = getRequestBuilder(getUrlForPath(path))
+            .header("X-Firebase-ETag", "true")
+            .get()
+            .build();
+        return withDeadline(requestScheduler.submit(
+            FirebaseRequestPriority.forPath(path),
+            () -> sendETaggedRequest(request)
+        ));
+    }
+
+    /**
+     * PUTs {@code data} at {@code path} only if its ETag is still {@code etag}, i.e. nobody wrote
+     * there since it was read (compare-and-set). Sent right away, not through the write coalescer.
+     *
+     * @return matched with the new ETag when written; otherwise not matched, with the value and
+     *         ETag that are stored instead, ready for another attempt
+     */
+    public CompletableFuture<ETaggedValue> putIfMatch(String path, JsonElement data, String etag) {
+        Request request = buildJsonRequestWithBody(path, "PUT", data).newBuilder()
+            .header("X-Firebase-ETag", "true")
+            .header("if-match", etag)
+            .build();
+        return withDeadline(requestScheduler.submit(
+            FirebaseRequestPriority.forPath(path),
+            () -> sendETaggedRequest(request)
+        ));
+    }
+
+    /**
+     * Queues a write of {@code data} at {@code path} (null deletes) to be sent with other writes as
+     * one multi-path PATCH, see {@link FirebaseWriteCoalescer}.
+     */
+    public CompletableFuture<Void> write(String path, JsonElement data) {
+        if (writeJournal == null) {
+            return writeCoalescers.get(FirebaseRequestPriority.forPath(path)).write(path, data);
+        }
+        return writeJournal.append(path, data, seq -> writeJournaled(seq, path, data));
+    }
+
+    /**
+     * Queues a journaled write, and settles its journal entry once the write is answered: confirmed
+     * and rejected writes are done with, others (I/O errors, timeouts, 5xx) stay for a replay.
+     */
+    private CompletableFuture<Void> writeJournaled(long seq, String path, JsonElement data) {
+        return writeCoalescers.get(FirebaseRequestPriority.forPath(path))
+            .write(path, data)
+            .whenComplete((__, throwable) -> {
+                if (throwable == null) {
+                    writeJournal.acknowledge(seq, path);
+                } else if (FirebaseHttpException.isRejection(throwable)) {
+                    writeJournal.discard(seq, path);
+                }
+            });
+    }
+
+    /**
+     * Re-sends journaled writes that were never confirmed. They are queued like any other write, so
+     * a backlog goes out as one batched PATCH. Queued under the journal's lock, so a write made
+     * meanwhile is always queued after them and never overwritten by an older value.
+     */
+    private void replayJournal() {
+        if (writeJournal == null || !writeJournal.hasPendingEntries()) {
+            return;
+        }
+        if (!replayInFlight.compareAndSet(false, true)) {
+            return;
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int replayed = writeJournal.replay(entry -> futures.add(
+            writeJournaled(entry.getSeq(), entry.getPath(), entry.getValue())
+        ));
+        log.info("Replaying {} journaled Firebase write(s)", replayed);
+        flushWrites();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .whenComplete((__, throwable) -> replayInFlight.set(false));
+    }
+
+    /**
+     * Sends all writes queued with {@link #write} now.
+     */
+    public void flushWrites() {
+        // Highest priority first
+        for (FirebaseWriteCoalescer writeCoalescer : writeCoalescers.values()) {
+            writeCoalescer.flush();
+        }
     }
 
     public CompletableFuture<Void> delete(String path) {
-        String url = getUrlForPath(path);
+        HttpUrl url = getUrlForPath(withSilentPrint(path));
         Request request = getRequestBuilder(url)
             .delete()
             .build();
-        return executeVoidRequest(request);
+        return executeVoidRequest(request, FirebaseRequestPriority.forPath(path));
+    }
+
+    /**
+     * Sets how long a request may take, queueing included, before it fails with a
+     * {@link java.util.concurrent.TimeoutException} and its call is aborted. Applies to requests
+     * made from now on.
+     */
+    public void setRequestDeadline(Duration requestDeadline) {
+        if (requestDeadline == null || requestDeadline.isNegative() || requestDeadline.isZero()) {
+            throw new IllegalArgumentException("requestDeadline must be positive");
+        }
+        this.requestDeadline = requestDeadline;
+    }
+
+    /**
+     * Sets the deadline of {@link #readFromSnapshot} bootstrap reads, see
+     * {@link #setRequestDeadline}.
+     */
+    public void setBulkReadDeadline(Duration bulkReadDeadline) {
+        if (bulkReadDeadline == null || bulkReadDeadline.isNegative() || bulkReadDeadline.isZero()) {
+            throw new IllegalArgumentException("bulkReadDeadline must be positive");
+        }
+        this.bulkReadDeadline = bulkReadDeadline;
     }
 
-    private CompletableFuture<JsonElement> executeJsonRequest(Request request) {
+    /**
+     * Cancels every request that has not completed yet. Their calls are aborted and late responses
+     * are dropped, so callbacks do not run with state from a session that has gone away.
+     */
+    public void cancelOutstandingRequests() {
+        for (CompletableFuture<?> future : outstandingRequests) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Sends the request through its priority lane, see {@link FirebaseRequestScheduler}.
+     */
+    private CompletableFuture<JsonElement> executeJsonRequest(
+        Request request,
+        FirebaseRequestPriority priority
+    ) {
+        return withDeadline(requestScheduler.submit(priority, () -> sendJsonRequest(request)));
+    }
+
+    private CompletableFuture<Void> executeVoidRequest(Request request, FirebaseRequestPriority priority) {
+        return withDeadline(requestScheduler.submit(priority, () -> sendVoidRequest(request)));
+    }
+
+    private <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future) {
+        return withDeadline(future, requestDeadline);
+    }
+
+    private <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, Duration deadline) {
+        // Failing the future also cancels the call, see FirebaseRequestScheduler
+        future.orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS);
+        outstandingRequests.add(future);
+        future.whenComplete((__, throwable) -> outstandingRequests.remove(future));
+        return future;
+    }
+
+    private CompletableFuture<JsonElement> sendJsonRequest(Request request) {
         final long startNanos = System.nanoTime();
         final CompletableFuture<JsonElement> future = new CompletableFuture<>();
         final okhttp3.Call call = httpClient.newCall(request);
@@ -176,7 +609,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
                         );
                         if (!future.isDone()) {
                             log.error(msg);
-                            future.completeExceptionally(new IOException(msg));
+                            future.completeExceptionally(new FirebaseHttpException(msg, res.code()));
                         }
                         return;
                     }
@@ -212,7 +645,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         return future;
     }
 
-    private CompletableFuture<Void> executeVoidRequest(Request request) {
+    private CompletableFuture<Void> sendVoidRequest(Request request) {
         final long startNanos = System.nanoTime();
         final CompletableFuture<Void> future = new CompletableFuture<>();
         final okhttp3.Call call = httpClient.newCall(request);
@@ -255,7 +688,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
                         );
                         if (!future.isDone()) {
                             log.error(msg);
-                            future.completeExceptionally(new IOException(msg));
+                            future.completeExceptionally(new FirebaseHttpException(msg, res.code()));
                         }
                         return;
                     }
@@ -271,22 +704,84 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
         return future;
     }
 
+    /**
+     * Like {@link #sendJsonRequest} but keeps the response's ETag, and a 412 (precondition failed)
+     * completes normally, not matched, with the current value and ETag from the response.
+     */
+    private CompletableFuture<ETaggedValue> sendETaggedRequest(Request request) {
+        final CompletableFuture<ETaggedValue> future = new CompletableFuture<>();
+        final okhttp3.Call call = httpClient.newCall(request);
+
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+        });
+
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(Call c, IOException e) {
+                if (!future.isDone()) {
+                    log.error("{} {} failed", request.method(), request.url());
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onResponse(okhttp3.Call c, okhttp3.Response response) {
+                try (okhttp3.Response res = response) {
+                    boolean matched = res.isSuccessful();
+                    if (!matched && res.code() != 412) {
+                        String msg = String.format(
+                            "%s %s -> HTTP %d %s",
+                            request.method(), request.url(), res.code(), res.message()
+                        );
+                        if (!future.isDone()) {
+                            log.error(msg);
+                            future.completeExceptionally(new FirebaseHttpException(msg, res.code()));
+                        }
+                        return;
+                    }
+
+                    JsonElement value = null;
+                    ResponseBody body = res.body();
+                    if (body != null) {
+                        try (Reader reader = body.charStream()) {
+                            value = gson.fromJson(reader, JsonElement.class);
+                        } catch (Exception parseErr) {
+                            if (!future.isDone()) {
+                                future.completeExceptionally(parseErr);
+                            }
+                            return;
+                        }
+                    }
+                    if (!future.isDone()) {
+                        String etag = res.header("ETag");
+                        future.complete(new ETaggedValue(matched, value, etag == null ? NULL_ETAG : etag));
+                    }
+                }
+            }
+        });
+
+        return future;
+    }
+
     private Request buildJsonRequestWithBody(String path, String method, JsonElement data) {
-        String url = getUrlForPath(path);
-        String jsonPayload = gson.toJson(data);
-        RequestBody body = RequestBody.create(JSON_MEDIA_TYPE, jsonPayload);
+        HttpUrl url = getUrlForPath(path);
+        // Streamed from the tree into the connection, no intermediate String
         return getRequestBuilder(url)
-            .header("Content-Type", "application/json")
-            .method(method, body)
+            .method(method, new FirebaseJsonRequestBody(jsonElementAdapter, data))
             .build();
     }
 
-    private String getUrlForPath(String path) {
-        HttpUrl base = HttpUrl.parse(databaseURL.getBaseUrl());
-        if (base == null) {
-            throw new IllegalArgumentException("Invalid base URL: " + databaseURL.getBaseUrl());
-        }
+    /**
+     * Adds {@code print=silent}, for requests whose response body is never read.
+     */
+    private static String withSilentPrint(String path) {
+        return path + (path.indexOf('?') >= 0 ? "&" : "?") + "print=silent";
+    }
 
+    private HttpUrl getUrlForPath(String path) {
         String rawPath = path;
         String rawQuery = null;
         int q = path.indexOf('?');
@@ -305,7 +800,7 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
             rawPath = rawPath + ".json";
         }
 
-        HttpUrl.Builder b = base.newBuilder();
+        HttpUrl.Builder b = baseHttpUrl.newBuilder();
         // add each segment to avoid double slashes
         if (!rawPath.isEmpty()) {
             for (String seg : rawPath.split("/")) {
@@ -324,6 +819,18 @@ public class FirebaseRealtimeDatabase implements AutoCloseable {
                 b.addEncodedQueryParameter(k, v);
             }
         }
-        return b.build().toString();
+        return b.build();
+    }
+
+    /**
+     * A value with the ETag Firebase gave it, see {@link #getWithETag} and {@link #putIfMatch}.
+     */
+    @Value
+    public static class ETaggedValue {
+
+        // False when an if-match precondition failed, value and etag are then the stored ones
+        boolean matched;
+        JsonElement value;
+        String etag;
     }
 }
@@ -31,6 +31,10 @@ public final class FirebaseRealtimeDatabaseURL {
      *                                  is not a Firebase host
      */
     public FirebaseRealtimeDatabaseURL(URL url) throws IllegalArgumentException {
+        this(url, false);
+    }
+
+    private FirebaseRealtimeDatabaseURL(URL url, boolean allowLoopback) {
         this.url = Objects.requireNonNull(url, "url");
 
         final String protocol = this.url.getProtocol();
@@ -38,7 +42,8 @@ public final class FirebaseRealtimeDatabaseURL {
             throw new IllegalArgumentException("Protocol must be http or https");
         }
 
-        if (!isFirebaseHost(this.url.getHost())) {
+        if (!isFirebaseHost(this.url.getHost())
+            && !(allowLoopback && "127.0.0.1".equals(this.url.getHost()))) {
             throw new IllegalArgumentException(
                 "The provided URL is not a valid FirebaseRealtimeDatabaseURL");
         }
@@ -55,6 +60,18 @@ public final class FirebaseRealtimeDatabaseURL {
         this(new URL(urlString));
     }
 
+    /**
+     * Endpoint of a database stand-in listening on the loopback interface, as used by tests. Not
+     * reachable from user input, which always goes through the Firebase host check.
+     */
+    static FirebaseRealtimeDatabaseURL forLoopback(int port) {
+        try {
+            return new FirebaseRealtimeDatabaseURL(new URL("http", "127.0.0.1", port, ""), true);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     private static boolean isDefaultPort(String protocol, int port) {
         return ("http".equalsIgnoreCase(protocol) && port == 80)
             || ("https".equalsIgnoreCase(protocol) && port == 443);
@@ -0,0 +1,51 @@
+package com.elertan.remote.firebase;
+
+/**
+ * Priority classes of outbound Firebase requests, highest first. Each class has its own lane in
+ * {@link FirebaseRequestScheduler}, so housekeeping traffic cannot delay unlocks.
+ */
+public enum FirebaseRequestPriority {
+    // Unlocks and members: what players see and wait for
+    CRITICAL(2, 64),
+    GAME_RULES(1, 16),
+    EVENTS(1, 32),
+    // Ground item ownership bookkeeping and cleanups
+    HOUSEKEEPING(1, 32);
+
+    private final int defaultConcurrency;
+    private final int queueCapacity;
+
+    FirebaseRequestPriority(int defaultConcurrency, int queueCapacity) {
+        this.defaultConcurrency = defaultConcurrency;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getDefaultConcurrency() {
+        return defaultConcurrency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Classifies a request by the base path it targets, e.g. "/UnlockedItems/123" -> CRITICAL.
+     * Unknown paths (and the root) are treated as critical so they are never starved.
+     */
+    public static FirebaseRequestPriority forPath(String path) {
+        String[] segments = FirebaseSSE.splitPath(path);
+        if (segments.length == 0) {
+            return CRITICAL;
+        }
+        switch (segments[0]) {
+            case "GameRules":
+                return GAME_RULES;
+            case "LastEvent":
+                return EVENTS;
+            case "GroundItemOwnedBy":
+                return HOUSEKEEPING;
+            default:
+                return CRITICAL;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.elertan.remote.firebase;
+
+import com.elertan.remote.SyncMetrics;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Admits outbound requests per {@link FirebaseRequestPriority} lane before they reach OkHttp.
+ * <p>
+ * Every lane has its own concurrency limit and a bounded queue. The limits add up to OkHttp's
+ * per-host limit (5), so OkHttp never has to queue and a lane cannot take slots from another: a
+ * burst of housekeeping requests waits in its own lane while unlocks go straight out. A request
+ * arriving at a full queue is shed, i.e. failed with {@link RejectedExecutionException}. Writes
+ * rarely queue here, they are merged per lane by {@link FirebaseWriteCoalescer} instead.
+ */
+@Slf4j
+public class FirebaseRequestScheduler {
+
+    private final SyncMetrics metrics;
+    private final Map<FirebaseRequestPriority, Lane> lanes = new EnumMap<>(FirebaseRequestPriority.class);
+
+    public FirebaseRequestScheduler(SyncMetrics metrics) {
+        this(metrics, new EnumMap<>(FirebaseRequestPriority.class));
+    }
+
+    /**
+     * @param concurrency per lane overrides of {@link FirebaseRequestPriority#getDefaultConcurrency()}
+     */
+    public FirebaseRequestScheduler(SyncMetrics metrics, Map<FirebaseRequestPriority, Integer> concurrency) {
+        this.metrics = metrics;
+        for (FirebaseRequestPriority priority : FirebaseRequestPriority.values()) {
+            int maxRunning = concurrency.getOrDefault(priority, priority.getDefaultConcurrency());
+            if (maxRunning < 1) {
+                throw new IllegalArgumentException("concurrency must be at least 1 for " + priority);
+            }
+            lanes.put(priority, new Lane(priority, maxRunning));
+        }
+    }
+
+    /**
+     * Starts the request now if its lane has a free slot, otherwise queues it.
+     *
+     * @param starter sends the request and returns its completion
+     * @return completes like the request; fails right away when the lane's queue is full
+     */
+    public <T> CompletableFuture<T> submit(
+        FirebaseRequestPriority priority,
+        Supplier<CompletableFuture<T>> starter
+    ) {
+        return lanes.get(priority).submit(starter);
+    }
+
+    public int getQueueDepth(FirebaseRequestPriority priority) {
+        return lanes.get(priority).queueDepth();
+    }
+
+    private final class Lane {
+
+        private final FirebaseRequestPriority priority;
+        private final String name;
+        private final int maxRunning;
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private int running = 0;
+
+        private Lane(FirebaseRequestPriority priority, int maxRunning) {
+            this.priority = priority;
+            this.name = priority.name().toLowerCase();
+            this.maxRunning = maxRunning;
+        }
+
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> starter) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable task = () -> start(starter, result);
+            synchronized (this) {
+                if (running < maxRunning) {
+                    running++;
+                } else if (queue.size() >= priority.getQueueCapacity()) {
+                    metrics.recordRequestShed(name);
+                    metrics.recordQueueDepth(name, queue.size());
+                    log.warn("Firebase {} request queue full ({}), shedding request", name, queue.size());
+                    result.completeExceptionally(new RejectedExecutionException(
+                        "Firebase " + name + " request queue is full"));
+                    return result;
+                } else {
+                    queue.addLast(task);
+                    metrics.recordQueueDepth(name, queue.size());
+                    return result;
+                }
+            }
+            task.run();
+            return result;
+        }
+
+        synchronized int queueDepth() {
+            return queue.size();
+        }
+
+        private <T> void start(Supplier<CompletableFuture<T>> starter, CompletableFuture<T> result) {
+            if (result.isDone()) {
+                // Cancelled by the caller while queued
+                release();
+                return;
+            }
+            CompletableFuture<T> started;
+            try {
+                started = starter.get();
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                release();
+                return;
+            }
+            // Let a cancel or deadline of the result reach the request
+            result.whenComplete((__, throwable) -> {
+                if (!started.isDone()) {
+                    started.cancel(false);
+                }
+            });
+            started.whenComplete((value, throwable) -> {
+                release();
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            });
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = queue.pollFirst();
+                if (next == null) {
+                    running--;
+                }
+                metrics.recordQueueDepth(name, queue.size());
+            }
+            // The slot passes straight to the next queued request
+            if (next != null) {
+                next.run();
+            }
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.elertan.remote.firebase;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 
@@ -11,11 +16,60 @@ public final class FirebaseSSE {
     private final FirebaseSSEType type;
     private final String path;
     private final JsonElement data;
+    // Non-empty segments of path, split once so listeners do not have to re-split per event
+    @EqualsAndHashCode.Exclude
+    private final String[] pathSegments;
 
     public FirebaseSSE(FirebaseSSEType type, String path, JsonElement data) {
         this.type = type;
         this.path = path;
         this.data = data;
+        this.pathSegments = splitPath(path);
+    }
+
+    /**
+     * Expresses this event as a list of puts. A put is returned as is; a patch is decomposed into one
+     * put per child key, which is how Firebase applies it (each key may itself be a multi-segment
+     * path, and a null value deletes that child).
+     */
+    public List<FirebaseSSE> toPuts() {
+        if (type == FirebaseSSEType.Put) {
+            return Collections.singletonList(this);
+        }
+        if (type != FirebaseSSEType.Patch || data == null || !data.isJsonObject()) {
+            return Collections.emptyList();
+        }
+
+        JsonObject obj = data.getAsJsonObject();
+        List<FirebaseSSE> puts = new ArrayList<>(obj.size());
+        String prefix = path.endsWith("/") ? path : path + "/";
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            puts.add(new FirebaseSSE(FirebaseSSEType.Put, prefix + entry.getKey(), entry.getValue()));
+        }
+        return puts;
+    }
+
+    /**
+     * Splits a slash separated path into its non-empty segments, e.g. "/a//b/" -> [a, b].
+     */
+    public static String[] splitPath(String path) {
+        if (path == null || path.isEmpty()) {
+            return new String[0];
+        }
+        List<String> segments = new ArrayList<>();
+        int length = path.length();
+        int start = 0;
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments.toArray(new String[0]);
     }
 
     @Override
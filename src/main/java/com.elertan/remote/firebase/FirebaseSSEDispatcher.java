@@ -0,0 +1,167 @@
+package com.elertan.remote.firebase;
+
+import com.elertan.remote.SyncMetrics;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decodes and delivers server-sent events off the stream reader threads, so a stream's socket is
+ * read at full speed however long its listeners take.
+ * <p>
+ * Every stream gets its own bounded {@link Queue}. A queue's events are decoded and delivered in
+ * order on a small shared worker pool, and queues of different streams are worked on in parallel,
+ * so a slow adapter only delays its own events. A queue that fills up is not shed event by event:
+ * dropping single events would leave its adapter silently out of date. Instead all its queued
+ * events are dropped and the stream is told to resync, i.e. reconnect, which sends a fresh snapshot
+ * that adapters apply as a delta.
+ */
+@Slf4j
+public class FirebaseSSEDispatcher implements AutoCloseable {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int DEFAULT_THREADS = 2;
+    // Events delivered per turn before the worker moves on, so one busy queue cannot starve others
+    private static final int BATCH_SIZE = 64;
+
+    private final SyncMetrics metrics;
+    private final int queueCapacity;
+    private final ExecutorService workers;
+
+    public FirebaseSSEDispatcher(SyncMetrics metrics) {
+        this(metrics, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public FirebaseSSEDispatcher(SyncMetrics metrics, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("threads and queueCapacity must be at least 1");
+        }
+        this.metrics = metrics;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "firebase-sse-dispatch-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param onOverflow called (on the submitting thread) when the queue overflowed, should make
+     *                   the stream resync
+     */
+    public Queue newQueue(String path, Runnable onOverflow) {
+        return new Queue(path, onOverflow);
+    }
+
+    @Override
+    public void close() {
+        // Undelivered events are for a session that is going away
+        workers.shutdownNow();
+    }
+
+    public final class Queue {
+
+        private final String path;
+        private final String name;
+        private final Runnable onOverflow;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        // True while a worker owns the queue, only that worker delivers, which keeps events in order
+        private boolean draining = false;
+        // True from an overflow until the stream has reconnected, events meanwhile are dropped
+        private boolean resyncing = false;
+
+        private Queue(String path, Runnable onOverflow) {
+            this.path = path;
+            this.name = "sse " + path;
+            this.onOverflow = onOverflow;
+        }
+
+        /**
+         * Queues the decoding and delivery of one event.
+         */
+        public void submit(Runnable delivery) {
+            boolean startDraining = false;
+            boolean overflowed = false;
+            synchronized (this) {
+                if (resyncing) {
+                    return;
+                }
+                if (tasks.size() >= queueCapacity) {
+                    int dropped = tasks.size();
+                    tasks.clear();
+                    resyncing = true;
+                    metrics.recordDispatchOverflow(path);
+                    metrics.recordQueueDepth(name, 0);
+                    log.warn("Firebase {} dispatch queue full, dropped {} events to resync", path, dropped);
+                    overflowed = true;
+                } else {
+                    tasks.addLast(new Task(delivery, System.nanoTime()));
+                    metrics.recordQueueDepth(name, tasks.size());
+                    startDraining = !draining;
+                    draining = true;
+                }
+            }
+            if (overflowed) {
+                onOverflow.run();
+            } else if (startDraining) {
+                schedule();
+            }
+        }
+
+        /**
+         * Called once the stream has reconnected, after which events are accepted again.
+         */
+        public synchronized void onResynced() {
+            resyncing = false;
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Closed
+                synchronized (this) {
+                    tasks.clear();
+                    draining = false;
+                }
+            }
+        }
+
+        private void drain() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Task task;
+                synchronized (this) {
+                    task = tasks.pollFirst();
+                    if (task == null) {
+                        draining = false;
+                        return;
+                    }
+                    metrics.recordQueueDepth(name, tasks.size());
+                }
+                metrics.recordDispatchLag(path, System.nanoTime() - task.enqueuedNanos);
+                try {
+                    task.delivery.run();
+                } catch (Exception e) {
+                    log.warn("Firebase {} event delivery failed", path, e);
+                }
+            }
+            // Still draining, the next batch queues behind other streams' work
+            schedule();
+        }
+    }
+
+    private static final class Task {
+
+        private final Runnable delivery;
+        private final long enqueuedNanos;
+
+        private Task(Runnable delivery, long enqueuedNanos) {
+            this.delivery = delivery;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
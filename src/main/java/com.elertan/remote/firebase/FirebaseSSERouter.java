@@ -0,0 +1,237 @@
+package com.elertan.remote.firebase;
+
+import com.elertan.remote.SyncMetrics;
+import com.google.gson.JsonElement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dispatches server-sent events to the listeners subscribed to a prefix of the event path.
+ * <p>
+ * Listeners are stored in a trie keyed by path segment. An event is split into segments once (see
+ * {@link FirebaseSSE#getPathSegments()}) and walked down the trie, so dispatch cost is bounded by
+ * the depth of the event path rather than by the number of registered listeners.
+ * <p>
+ * The time listeners take is recorded per subscribed path, which in practice is per adapter.
+ */
+@Slf4j
+public final class FirebaseSSERouter {
+
+    private final Node root = new Node("/");
+    private final SyncMetrics metrics;
+
+    public FirebaseSSERouter() {
+        this(null);
+    }
+
+    /**
+     * @param metrics optional, receives the listener dispatch time per subscribed path
+     */
+    public FirebaseSSERouter(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void addListener(String path, Consumer<FirebaseSSE> listener) {
+        addListener(path, listener, null);
+    }
+
+    /**
+     * Registers a listener that can also take puts replacing {@code path} as a sliced snapshot.
+     */
+    public void addListener(
+        String path,
+        Consumer<FirebaseSSE> listener,
+        FirebaseSnapshotListener snapshotListener
+    ) {
+        Node node = root;
+        for (String segment : FirebaseSSE.splitPath(path)) {
+            Node parent = node;
+            node = node.children.computeIfAbsent(
+                segment,
+                __ -> new Node(parent == root ? "/" + segment : parent.path + "/" + segment)
+            );
+        }
+        node.listeners.add(listener);
+        if (snapshotListener != null) {
+            node.snapshotListeners.put(listener, snapshotListener);
+        }
+    }
+
+    public void removeListener(String path, Consumer<FirebaseSSE> listener) {
+        Node node = root;
+        for (String segment : FirebaseSSE.splitPath(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+        }
+        node.listeners.remove(listener);
+        node.snapshotListeners.remove(listener);
+    }
+
+    public boolean hasListeners(String path) {
+        Node node = root;
+        for (String segment : FirebaseSSE.splitPath(path)) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        return !node.listeners.isEmpty();
+    }
+
+    /**
+     * Returns a listener receiving a sliced snapshot of {@code path}, or null when some listener that
+     * would receive a put at {@code path} needs the event as a whole (or nobody listens at all).
+     */
+    public FirebaseSnapshotListener snapshotListenerFor(String path) {
+        Node node = root;
+        if (!node.listeners.isEmpty()) {
+            return null;
+        }
+        String[] segments = FirebaseSSE.splitPath(path);
+        for (int i = 0; i < segments.length; i++) {
+            node = node.children.get(segments[i]);
+            if (node == null) {
+                return null;
+            }
+            if (i < segments.length - 1 && !node.listeners.isEmpty()) {
+                // An ancestor listener expects the whole put
+                return null;
+            }
+        }
+
+        List<FirebaseSnapshotListener> snapshotListeners = new ArrayList<>();
+        for (Consumer<FirebaseSSE> listener : node.listeners) {
+            FirebaseSnapshotListener snapshotListener = node.snapshotListeners.get(listener);
+            if (snapshotListener == null) {
+                return null;
+            }
+            snapshotListeners.add(snapshotListener);
+        }
+        if (snapshotListeners.isEmpty()) {
+            return null;
+        }
+        FirebaseSnapshotListener snapshotListener = snapshotListeners.size() == 1
+            ? snapshotListeners.get(0)
+            : new CompositeSnapshotListener(snapshotListeners);
+        return metrics == null ? snapshotListener : new TimedSnapshotListener(node.path, snapshotListener);
+    }
+
+    /**
+     * Delivers the event to every listener registered on the event path or one of its ancestors.
+     */
+    public void dispatch(FirebaseSSE event) {
+        String[] segments = event.getPathSegments();
+        Node node = root;
+        notifyListeners(node, event);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+            notifyListeners(node, event);
+        }
+    }
+
+    private void notifyListeners(Node node, FirebaseSSE event) {
+        if (node.listeners.isEmpty()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        for (Consumer<FirebaseSSE> listener : node.listeners) {
+            try {
+                listener.accept(event);
+            } catch (Exception e) {
+                log.error("Firebase SSE listener failed for {}", event.getPath(), e);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordDispatch(node.path, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static final class Node {
+
+        private final String path;
+
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final CopyOnWriteArrayList<Consumer<FirebaseSSE>> listeners = new CopyOnWriteArrayList<>();
+        private final Map<Consumer<FirebaseSSE>, FirebaseSnapshotListener> snapshotListeners = new ConcurrentHashMap<>();
+
+        private Node(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Sums the time spent in the wrapped listener over one snapshot and records it as one dispatch.
+     */
+    private final class TimedSnapshotListener implements FirebaseSnapshotListener {
+
+        private final String path;
+        private final FirebaseSnapshotListener listener;
+        private long elapsedNanos;
+
+        private TimedSnapshotListener(String path, FirebaseSnapshotListener listener) {
+            this.path = path;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSnapshotBegin() {
+            long startNanos = System.nanoTime();
+            listener.onSnapshotBegin();
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void onSnapshotChild(String key, JsonElement value) {
+            long startNanos = System.nanoTime();
+            listener.onSnapshotChild(key, value);
+            elapsedNanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void onSnapshotEnd() {
+            long startNanos = System.nanoTime();
+            listener.onSnapshotEnd();
+            metrics.recordDispatch(path, elapsedNanos + System.nanoTime() - startNanos);
+        }
+    }
+
+    private static final class CompositeSnapshotListener implements FirebaseSnapshotListener {
+
+        private final List<FirebaseSnapshotListener> listeners;
+
+        private CompositeSnapshotListener(List<FirebaseSnapshotListener> listeners) {
+            this.listeners = listeners;
+        }
+
+        @Override
+        public void onSnapshotBegin() {
+            for (FirebaseSnapshotListener listener : listeners) {
+                listener.onSnapshotBegin();
+            }
+        }
+
+        @Override
+        public void onSnapshotChild(String key, JsonElement value) {
+            for (FirebaseSnapshotListener listener : listeners) {
+                listener.onSnapshotChild(key, value);
+            }
+        }
+
+        @Override
+        public void onSnapshotEnd() {
+            for (FirebaseSnapshotListener listener : listeners) {
+                listener.onSnapshotEnd();
+            }
+        }
+    }
+}
@@ -1,18 +1,22 @@
 package com.elertan.remote.firebase;
 
+import com.elertan.remote.SyncMetrics;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
-import java.io.BufferedReader;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Call;
@@ -21,45 +25,76 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
 
 @Slf4j
 public class FirebaseSSEStream {
 
+    // Firebase sends a keep-alive every ~30s, so a socket silent for this long is dead
     private static final int READ_TIMEOUT_SECONDS = 90;
 
-    private static final String EVENT_PREFIX = "event:";
-    private static final int EVENT_PREFIX_LENGTH = EVENT_PREFIX.length();
-    private static final String DATA_PREFIX = "data:";
-    private static final int DATA_PREFIX_LENGTH = DATA_PREFIX.length();
+    private static final ByteString EVENT_PREFIX = ByteString.encodeUtf8("event:");
+    private static final ByteString DATA_PREFIX = ByteString.encodeUtf8("data:");
+    private static final ByteString KEEP_ALIVE_EVENT_LINE = ByteString.encodeUtf8("event: keep-alive");
 
-    private final Gson gson;
+    private final TypeAdapter<JsonElement> jsonElementAdapter;
     private final FirebaseRealtimeDatabaseURL databaseURL;
+    @Getter
+    private final String path;
 
     private final CopyOnWriteArrayList<Consumer<FirebaseSSE>> serverSentEventListeners = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<Runnable> isRunningListeners = new CopyOnWriteArrayList<>();
+    // Resolves who can take a put replacing the stream path as a sliced snapshot, null if nobody
+    private volatile Function<String, FirebaseSnapshotListener> snapshotListenerResolver = p -> null;
     private final OkHttpClient sseClient;
     private ExecutorService streamExecutor;
-    private ExecutorService readExecutor;
     private volatile Call currentCall;
 
     @Getter
     private volatile boolean isRunning = false;
-
-    // Watchdog: reconnect if no successful read for this long
-    private static final long WATCHDOG_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
-    // Tracks last successful line read time for watchdog
-    private volatile long lastReadNano = System.nanoTime();
-
-    public FirebaseSSEStream(OkHttpClient httpClient, Gson gson,
-        FirebaseRealtimeDatabaseURL databaseURL) {
-        this.gson = gson;
+    // True while an event stream response is open, i.e. the server is reachable
+    @Getter
+    private volatile boolean isConnected = false;
+    private final CopyOnWriteArrayList<Runnable> isConnectedListeners = new CopyOnWriteArrayList<>();
+    private volatile SyncMetrics metrics;
+    private boolean hasConnected = false;
+    // Optional; when set events are decoded and delivered off the reader thread
+    private volatile FirebaseSSEDispatcher.Queue dispatchQueue;
+    // Set when the stream is reconnected on purpose, to get a fresh snapshot without backing off
+    private volatile boolean resyncRequested = false;
+
+    /**
+     * Creates a stream scoped to a single resource path, e.g. "/UnlockedItems".
+     * <p>
+     * Firebase reports event paths relative to the streamed location, so every event is re-rooted
+     * onto {@code path} before it reaches listeners. Listeners therefore see the same absolute paths
+     * regardless of which location the stream was opened on.
+     *
+     * @param sseClient a client configured for long-lived streaming, see {@link #newSseClient}
+     */
+    public FirebaseSSEStream(OkHttpClient sseClient, Gson gson,
+        FirebaseRealtimeDatabaseURL databaseURL, String path) {
+        FirebaseRealtimeDatabase.validateBasePath(path);
+        this.jsonElementAdapter = gson.getAdapter(JsonElement.class);
         this.databaseURL = databaseURL;
-        this.sseClient = httpClient.newBuilder()
+        this.path = path;
+        this.sseClient = sseClient;
+    }
+
+    /**
+     * Builds the client shared by all streams of a database. Sharing one connection pool lets the
+     * per-path streams multiplex over the same HTTP/2 connection instead of each opening its own.
+     */
+    public static OkHttpClient newSseClient(OkHttpClient httpClient) {
+        return httpClient.newBuilder()
             .connectionPool(new ConnectionPool())
             .retryOnConnectionFailure(true)
             // Keep the TCP/TLS connection alive and detect dead HTTP/2 sockets after sleep
             .pingInterval(Duration.ofSeconds(30))
-            .readTimeout(Duration.ZERO)
+            // Reads block on the socket; a silent connection surfaces as a timeout and reconnects
+            .readTimeout(Duration.ofSeconds(READ_TIMEOUT_SECONDS))
             .build();
     }
 
@@ -72,21 +107,6 @@ public class FirebaseSSEStream {
         });
     }
 
-    private synchronized ExecutorService ensureReadExecutor() {
-        if (readExecutor == null || readExecutor.isShutdown()) {
-            readExecutor = newSingleThreadExecutor("firebase-sse-read");
-        }
-        return readExecutor;
-    }
-
-    private synchronized void recreateReadExecutor() {
-        if (readExecutor != null) {
-            readExecutor.shutdownNow();
-        }
-        readExecutor = newSingleThreadExecutor("firebase-sse-read");
-        log.warn("Firebase read executor recreated");
-    }
-
     private void sleepWithJitterSeconds(int baseSeconds) {
         long jitterMillis = ThreadLocalRandom.current().nextLong(250, 1250);
         long totalMillis = baseSeconds * 1000L + jitterMillis;
@@ -110,6 +130,40 @@ public class FirebaseSSEStream {
         serverSentEventListeners.remove(listener);
     }
 
+    public boolean hasServerSentEventListeners() {
+        return !serverSentEventListeners.isEmpty();
+    }
+
+    public void setSnapshotListenerResolver(Function<String, FirebaseSnapshotListener> resolver) {
+        this.snapshotListenerResolver = resolver;
+    }
+
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Hands decoding and delivery of this stream's events to {@code dispatcher}, on a queue of its
+     * own, so the reader thread only reads. When the queue overflows the stream resyncs.
+     */
+    public void setDispatcher(FirebaseSSEDispatcher dispatcher) {
+        this.dispatchQueue = dispatcher.newQueue(path, this::resync);
+    }
+
+    /**
+     * Reconnects, which makes the server resend the full state as a snapshot. Used when events were
+     * lost, e.g. dropped from an overflowing dispatch queue.
+     */
+    public void resync() {
+        Call call = currentCall;
+        if (!isRunning || call == null) {
+            return;
+        }
+        log.info("Firebase SSE stream {} resyncing", path);
+        resyncRequested = true;
+        call.cancel();
+    }
+
     public void addIsRunningListener(Runnable listener) {
         isRunningListeners.add(listener);
     }
@@ -118,6 +172,14 @@ public class FirebaseSSEStream {
         isRunningListeners.remove(listener);
     }
 
+    public void addIsConnectedListener(Runnable listener) {
+        isConnectedListeners.add(listener);
+    }
+
+    public void removeIsConnectedListener(Runnable listener) {
+        isConnectedListeners.remove(listener);
+    }
+
     public synchronized void start() {
         if (isRunning) {
             return;
@@ -125,7 +187,6 @@ public class FirebaseSSEStream {
         if (streamExecutor == null || streamExecutor.isShutdown()) {
             streamExecutor = newSingleThreadExecutor("firebase-sse-stream");
         }
-        ensureReadExecutor();
         setIsRunning(true);
         streamExecutor.submit(this::loop);
     }
@@ -143,12 +204,8 @@ public class FirebaseSSEStream {
             streamExecutor.shutdownNow();
             streamExecutor = null;
         }
-        if (readExecutor != null) {
-            readExecutor.shutdownNow();
-            readExecutor = null;
-        }
 
-        log.info("Firebase SSE stream stopped");
+        log.info("Firebase SSE stream stopped for {}", path);
     }
 
     private void setIsRunning(boolean running) {
@@ -166,13 +223,28 @@ public class FirebaseSSEStream {
         }
     }
 
+    private void setIsConnected(boolean connected) {
+        boolean changed = this.isConnected != connected;
+        this.isConnected = connected;
+        if (!changed) {
+            return;
+        }
+        for (Runnable listener : isConnectedListeners) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                log.warn("isConnected listener error", t);
+            }
+        }
+    }
+
     private void loop() {
         int backoffSeconds = 1;       // start small
         final int maxBackoffSeconds = 30;
         boolean loggedStart = false;
 
         while (isRunning) {
-            final String url = databaseURL.getBaseUrl() + "/.json";
+            final String url = databaseURL.getBaseUrl() + path + ".json";
 
             Request request = FirebaseRealtimeDatabase.getRequestBuilder(url)
                 .header("Accept", "text/event-stream")
@@ -185,7 +257,7 @@ public class FirebaseSSEStream {
                 currentCall = call;
                 try (Response response = call.execute()) {
                     if (!response.isSuccessful()) {
-                        log.warn("Firebase stream HTTP {}. Will retry.", response.code());
+                        log.warn("Firebase stream {} HTTP {}. Will retry.", path, response.code());
                         if (!isRunning) {
                             break;
                         }
@@ -197,7 +269,7 @@ public class FirebaseSSEStream {
                     }
 
                     if (!loggedStart) {
-                        log.debug("Firebase SSE stream connected");
+                        log.debug("Firebase SSE stream connected for {}", path);
                         loggedStart = true;
                     }
 
@@ -213,21 +285,44 @@ public class FirebaseSSEStream {
                         continue;
                     }
 
-                    lastReadNano = System.nanoTime();
-
-                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(body.byteStream()))) {
-                        // read loop; timeouts are treated as keep-alives
-                        readStream(reader);
+                    FirebaseSSEDispatcher.Queue queue = dispatchQueue;
+                    if (queue != null) {
+                        // This connection starts with a full snapshot, events can be accepted again
+                        queue.onResynced();
+                    }
+                    resyncRequested = false;
+                    setIsConnected(true);
+                    SyncMetrics currentMetrics = metrics;
+                    if (currentMetrics != null) {
+                        currentMetrics.recordStreamConnected(path, hasConnected);
+                    }
+                    hasConnected = true;
+                    try (BufferedSource source = body.source()) {
+                        readStream(source);
+                    } finally {
+                        setIsConnected(false);
                     }
 
                     // successful session; reset backoff
                     backoffSeconds = 1;
                 }
+            } catch (InterruptedIOException e) {
+                if (!isRunning) {
+                    break;
+                }
+                // Read timeout: no keep-alive within READ_TIMEOUT_SECONDS, reconnect right away
+                log.warn("Firebase stream {} idle for {}s; reconnecting", path, READ_TIMEOUT_SECONDS);
+                // Ensure we do not reuse a stale connection after system sleep
+                sseClient.connectionPool().evictAll();
             } catch (Exception e) {
                 if (!isRunning) {
                     break;
                 }
-                log.warn("Firebase stream error. Will retry.", e);
+                if (resyncRequested) {
+                    resyncRequested = false;
+                    continue;
+                }
+                log.warn("Firebase stream {} error. Will retry.", path, e);
                 // After sleep, TLS sockets in the pool may be invalid. Clear them.
                 sseClient.connectionPool().evictAll();
                 sleepWithJitterSeconds(backoffSeconds);
@@ -239,88 +334,79 @@ public class FirebaseSSEStream {
         setIsRunning(false);
     }
 
-    private void readStream(BufferedReader reader) throws Exception {
+    /**
+     * Reads SSE lines straight from the response buffer. Each line is located by scanning for '\n' in
+     * the buffered bytes; prefixes are matched on bytes, so keep-alives and blank separator lines are
+     * skipped without creating Strings. Event names and data payloads are decoded as UTF-8.
+     */
+    private void readStream(BufferedSource source) throws IOException {
         FirebaseSSEType eventType = null;
-        int consecutiveTimeouts = 0;
 
         while (isRunning) {
-            try {
-                String line = readLineWithTimeout(reader, READ_TIMEOUT_SECONDS);
-                if (line == null) {
-                    log.warn("Firebase stream closed by server");
-                    break;
-                }
-
-                // successful read
-                consecutiveTimeouts = 0;
-                lastReadNano = System.nanoTime();
+            // Blocks until a full line is buffered; a silent socket throws a read timeout
+            long newline = source.indexOf((byte) '\n');
+            if (newline == -1) {
+                log.warn("Firebase stream {} closed by server", path);
+                break;
+            }
 
-                if (line.startsWith(EVENT_PREFIX)) {
-                    eventType = parseEventType(line);
-                    if (eventType == null) {
-                        break;
-                    }
-                    continue;
-                }
+            if (newline >= KEEP_ALIVE_EVENT_LINE.size()
+                && source.rangeEquals(0, KEEP_ALIVE_EVENT_LINE)) {
+                eventType = FirebaseSSEType.KeepAlive;
+                recordEvent(eventType);
+                source.skip(newline + 1);
+                continue;
+            }
 
-                if (line.startsWith(DATA_PREFIX)) {
-                    handleDataLine(line, eventType);
-                }
-            } catch (TimeoutException te) {
-                consecutiveTimeouts++;
-                // expected idle timeout; treat as liveness check
-                log.debug("Firebase stream read timeout; continuing");
-
-                // Watchdog: if no successful read for too long, force reconnect
-                long idle = System.nanoTime() - lastReadNano;
-                if (idle > WATCHDOG_IDLE_NANOS) {
-                    log.warn(
-                        "Firebase stream watchdog tripped after {} ms idle; reconnecting",
-                        TimeUnit.NANOSECONDS.toMillis(idle)
-                    );
-                    Call call = currentCall;
-                    if (call != null) {
-                        call.cancel();
-                    }
-                    // Ensure we do not reuse a stale connection after system sleep
-                    sseClient.connectionPool().evictAll();
-                    break; // exit read loop to allow outer loop to reconnect
+            if (newline >= EVENT_PREFIX.size() && source.rangeEquals(0, EVENT_PREFIX)) {
+                source.skip(EVENT_PREFIX.size());
+                eventType = parseEventType(readLineRemainder(source, newline - EVENT_PREFIX.size()));
+                if (eventType == null) {
+                    break;
                 }
+                recordEvent(eventType);
+                continue;
+            }
 
-                // Harden: if the read executor is misbehaving, recreate it
-                if (consecutiveTimeouts >= 4) { // ~6 minutes with 90s timeouts
-                    log.warn(
-                        "Firebase read timeouts consecutive={} – recreating read executor",
-                        consecutiveTimeouts
-                    );
-                    recreateReadExecutor();
-                    consecutiveTimeouts = 0;
+            if (newline >= DATA_PREFIX.size() && source.rangeEquals(0, DATA_PREFIX)) {
+                if (eventType == FirebaseSSEType.KeepAlive) {
+                    log.debug("Firebase KeepAlive received");
+                    source.skip(newline + 1);
+                    continue;
                 }
+                source.skip(DATA_PREFIX.size());
+                // Keep the payload as bytes, it is decoded incrementally by handleDataLine
+                Buffer data = new Buffer();
+                source.readFully(data, newline - DATA_PREFIX.size());
+                source.skip(1);
+                handleDataLine(data, eventType);
                 continue;
             }
+
+            // Blank separator line or a field we do not use
+            source.skip(newline + 1);
         }
     }
 
-    private String readLineWithTimeout(BufferedReader reader, int timeoutSeconds) throws Exception {
-        ExecutorService exec = ensureReadExecutor();
-        Future<String> futureLine;
-        try {
-            futureLine = exec.submit(reader::readLine);
-        } catch (java.util.concurrent.RejectedExecutionException rex) {
-            log.warn("Firebase read executor rejected task; recreating and retrying once");
-            recreateReadExecutor();
-            futureLine = readExecutor.submit(reader::readLine);
+    private void recordEvent(FirebaseSSEType eventType) {
+        SyncMetrics currentMetrics = metrics;
+        if (currentMetrics == null) {
+            return;
         }
-        try {
-            return futureLine.get(timeoutSeconds, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            futureLine.cancel(true);
-            throw new TimeoutException("Firebase stream read timeout");
+        currentMetrics.recordEvent(eventType.raw());
+        if (eventType == FirebaseSSEType.KeepAlive) {
+            currentMetrics.recordKeepAlive();
         }
     }
 
-    private FirebaseSSEType parseEventType(String line) {
-        String eventTypeString = line.substring(EVENT_PREFIX_LENGTH).trim();
+    private static String readLineRemainder(BufferedSource source, long byteCount) throws IOException {
+        String value = source.readUtf8(byteCount);
+        // Consume the '\n' terminating the line
+        source.skip(1);
+        return value.trim();
+    }
+
+    private FirebaseSSEType parseEventType(String eventTypeString) {
         FirebaseSSEType type = FirebaseSSEType.fromRaw(eventTypeString);
         if (type == null) {
             log.error("Unknown Firebase event type: {}", eventTypeString);
@@ -328,7 +414,7 @@ public class FirebaseSSEStream {
         return type;
     }
 
-    private void handleDataLine(String line, FirebaseSSEType eventType) {
+    private void handleDataLine(Buffer data, FirebaseSSEType eventType) throws IOException {
         if (eventType == null) {
             log.warn("Received data before event type");
             return;
@@ -348,37 +434,107 @@ public class FirebaseSSEStream {
                 break;
         }
 
-        String jsonStr = line.substring(DATA_PREFIX_LENGTH).trim();
-        if (jsonStr.isEmpty()) {
+        if (data.size() == 0) {
             log.warn("Firebase data line empty");
             return;
         }
 
-        FirebaseSSEDataLine dataLine = gson.fromJson(jsonStr, FirebaseSSEDataLine.class);
-        if (dataLine == null) {
-            log.error("Failed to parse firebase data line");
+        FirebaseSSEDispatcher.Queue queue = dispatchQueue;
+        if (queue == null) {
+            deliverDataLine(data, eventType);
             return;
         }
+        queue.submit(() -> {
+            try {
+                deliverDataLine(data, eventType);
+            } catch (IOException | RuntimeException e) {
+                // Reading it on the stream thread would have ended the connection, do the same
+                log.warn("Firebase stream {} sent an event that could not be decoded", path, e);
+                resync();
+            }
+        });
+    }
+
+    private void deliverDataLine(Buffer data, FirebaseSSEType eventType) throws IOException {
+        String eventPath = null;
+        JsonElement eventData = null;
+        try (JsonReader reader = new JsonReader(
+            new InputStreamReader(data.inputStream(), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("path".equals(name)) {
+                    eventPath = reader.nextString();
+                } else if ("data".equals(name)) {
+                    FirebaseSnapshotListener snapshotListener = resolveSnapshotListener(
+                        eventType,
+                        eventPath,
+                        reader.peek()
+                    );
+                    if (snapshotListener != null) {
+                        readSnapshot(reader, snapshotListener);
+                        // Delivered child by child, there is no event to dispatch
+                        return;
+                    }
+                    eventData = jsonElementAdapter.read(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
 
-        FirebaseSSE eventData = new FirebaseSSE(eventType, dataLine.path, dataLine.data);
+        FirebaseSSE event = new FirebaseSSE(eventType, toAbsolutePath(eventPath), eventData);
         for (Consumer<FirebaseSSE> listener : serverSentEventListeners) {
             try {
-                listener.accept(eventData);
+                listener.accept(event);
             } catch (Exception e) {
                 log.warn("Firebase listener failed", e);
             }
         }
     }
 
-    private class FirebaseSSEDataLine {
+    /**
+     * A put of an object at the stream path replaces the whole subscribed subtree (this is what a
+     * (re)connect sends). Such a put can be sliced when every listener supports snapshots. Firebase
+     * writes "path" before "data", so the path is known by the time the data starts.
+     */
+    private FirebaseSnapshotListener resolveSnapshotListener(
+        FirebaseSSEType eventType,
+        String eventPath,
+        JsonToken dataToken
+    ) {
+        if (eventType != FirebaseSSEType.Put || eventPath == null || dataToken != JsonToken.BEGIN_OBJECT) {
+            return null;
+        }
+        if (!toAbsolutePath(eventPath).equals(path)) {
+            return null;
+        }
+        return snapshotListenerResolver.apply(path);
+    }
 
-        private final String path;
-        private final JsonElement data;
+    private void readSnapshot(JsonReader reader, FirebaseSnapshotListener snapshotListener)
+        throws IOException {
+        snapshotListener.onSnapshotBegin();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            // Only this child's tree is materialized at a time
+            JsonElement value = jsonElementAdapter.read(reader);
+            snapshotListener.onSnapshotChild(key, value);
+        }
+        reader.endObject();
+        snapshotListener.onSnapshotEnd();
+    }
 
-        public FirebaseSSEDataLine(String path, JsonElement data) {
-            this.path = path;
-            this.data = data;
+    private String toAbsolutePath(String eventPath) {
+        if (eventPath == null || eventPath.isEmpty() || eventPath.equals("/")) {
+            return path;
+        }
+        if (eventPath.startsWith("/")) {
+            return path + eventPath;
         }
+        return path + "/" + eventPath;
     }
 
 }
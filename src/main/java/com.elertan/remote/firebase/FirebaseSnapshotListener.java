@@ -0,0 +1,20 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Receives a put that replaces a subscribed path one top-level child at a time.
+ * <p>
+ * {@link FirebaseSSEStream} decodes such a put incrementally, so the full tree is never held in
+ * memory: {@link #onSnapshotBegin()} is followed by one {@link #onSnapshotChild} per child and then
+ * {@link #onSnapshotEnd()}. If decoding fails midway the snapshot is abandoned and no end is
+ * signalled; the next begin starts over.
+ */
+public interface FirebaseSnapshotListener {
+
+    void onSnapshotBegin();
+
+    void onSnapshotChild(String key, JsonElement value);
+
+    void onSnapshotEnd();
+}
@@ -6,15 +6,18 @@ import com.elertan.models.GroundItemOwnedByData;
 import com.elertan.models.GroundItemOwnedByKey;
 import com.elertan.models.Member;
 import com.elertan.models.UnlockedItem;
+import com.elertan.remote.ItemIdSetStoragePort;
 import com.elertan.remote.KeyListStoragePort;
 import com.elertan.remote.KeyValueStoragePort;
 import com.elertan.remote.ObjectListStoragePort;
 import com.elertan.remote.ObjectStoragePort;
 import com.elertan.remote.StorageSession;
+import com.elertan.remote.SyncMetrics;
 import com.elertan.remote.firebase.storageAdapters.GameRulesFirebaseObjectStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.GroundItemOwnedByKeyListStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.LastEventFirebaseObjectListStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.MembersFirebaseKeyValueStorageAdapter;
+import com.elertan.remote.firebase.storageAdapters.UnlockedItemIdsFirebaseStorageAdapter;
 import com.elertan.remote.firebase.storageAdapters.UnlockedItemsFirebaseKeyValueStorageAdapter;
 import com.google.gson.Gson;
 import javax.inject.Inject;
@@ -24,41 +27,74 @@ import okhttp3.OkHttpClient;
 public class FirebaseStorageSession implements StorageSession {
 
     private final FirebaseRealtimeDatabase firebaseRealtimeDatabase;
+    private final FirebaseLocalMirror localMirror;
     private final KeyValueStoragePort<Long, Member> membersStoragePort;
     private final KeyValueStoragePort<Integer, UnlockedItem> unlockedItemsStoragePort;
     private final ObjectStoragePort<GameRules> gameRulesStoragePort;
     private final ObjectListStoragePort<BUEvent> lastEventStoragePort;
     private final KeyListStoragePort<GroundItemOwnedByKey, GroundItemOwnedByData> groundItemOwnedByStoragePort;
+    private final ItemIdSetStoragePort unlockedItemIdsStoragePort;
+    private final UnlockedItem.WriteFormat unlockedItemWriteFormat = new UnlockedItem.WriteFormat();
 
     public FirebaseStorageSession(
         OkHttpClient httpClient,
         Gson gson,
         FirebaseRealtimeDatabaseURL url
     ) {
-        firebaseRealtimeDatabase = new FirebaseRealtimeDatabase(httpClient, gson, url);
+        this(httpClient, gson, url, new SyncMetrics());
+    }
+
+    public FirebaseStorageSession(
+        OkHttpClient httpClient,
+        Gson gson,
+        FirebaseRealtimeDatabaseURL url,
+        SyncMetrics metrics
+    ) {
+        // This session's own Gson, writing unlocked items in the format its group agreed on
+        Gson sessionGson = gson.newBuilder()
+            .registerTypeAdapterFactory(new UnlockedItem.AdapterFactory(unlockedItemWriteFormat))
+            .create();
+
+        // Writes are journaled so ones made offline are replayed once the database is reachable
+        firebaseRealtimeDatabase = new FirebaseRealtimeDatabase(
+            httpClient,
+            sessionGson,
+            url,
+            FirebaseRealtimeDatabase.WRITE_COALESCE_WINDOW,
+            FirebaseWriteJournal.forDatabase(url, sessionGson),
+            metrics
+        );
+        // Durable group state is mirrored on disk so it is available before the network answers
+        localMirror = FirebaseLocalMirror.forDatabase(url, sessionGson);
 
         groundItemOwnedByStoragePort = new GroundItemOwnedByKeyListStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            sessionGson
         );
         lastEventStoragePort = new LastEventFirebaseObjectListStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            sessionGson
         );
         membersStoragePort = new MembersFirebaseKeyValueStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            sessionGson,
+            localMirror
         );
         unlockedItemsStoragePort = new UnlockedItemsFirebaseKeyValueStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            sessionGson,
+            localMirror
         );
         gameRulesStoragePort = new GameRulesFirebaseObjectStorageAdapter(
             firebaseRealtimeDatabase,
-            gson
+            sessionGson,
+            localMirror
         );
+        unlockedItemIdsStoragePort = new UnlockedItemIdsFirebaseStorageAdapter(firebaseRealtimeDatabase);
 
-        firebaseRealtimeDatabase.getStream().start();
+        // Started once every adapter is subscribed: the snapshot each stream opens with is what
+        // their readAll calls are served from, see FirebaseRealtimeDatabase.readFromSnapshot
+        firebaseRealtimeDatabase.startStreaming();
     }
 
     @Override
@@ -86,6 +122,21 @@ public class FirebaseStorageSession implements StorageSession {
         return groundItemOwnedByStoragePort;
     }
 
+    @Override
+    public ItemIdSetStoragePort getUnlockedItemIdsStoragePort() {
+        return unlockedItemIdsStoragePort;
+    }
+
+    @Override
+    public UnlockedItem.WriteFormat getUnlockedItemWriteFormat() {
+        return unlockedItemWriteFormat;
+    }
+
+    @Override
+    public void flush() {
+        firebaseRealtimeDatabase.flushWrites();
+    }
+
     @Override
     public void close() throws Exception {
         groundItemOwnedByStoragePort.close();
@@ -93,9 +144,12 @@ public class FirebaseStorageSession implements StorageSession {
         membersStoragePort.close();
         unlockedItemsStoragePort.close();
         gameRulesStoragePort.close();
+        unlockedItemIdsStoragePort.close();
 
-        firebaseRealtimeDatabase.getStream().stop();
+        firebaseRealtimeDatabase.stopStreaming();
         firebaseRealtimeDatabase.close();
+        localMirror.close();
+        unlockedItemWriteFormat.setGroupFormatVersion(null);
     }
 
     @Singleton
@@ -103,15 +157,17 @@ public class FirebaseStorageSession implements StorageSession {
 
         private final OkHttpClient httpClient;
         private final Gson gson;
+        private final SyncMetrics metrics;
 
         @Inject
-        public Factory(OkHttpClient httpClient, Gson gson) {
+        public Factory(OkHttpClient httpClient, Gson gson, SyncMetrics metrics) {
             this.httpClient = httpClient;
             this.gson = gson;
+            this.metrics = metrics;
         }
 
         public FirebaseStorageSession create(FirebaseRealtimeDatabaseURL url) {
-            return new FirebaseStorageSession(httpClient, gson, url);
+            return new FirebaseStorageSession(httpClient, gson, url, metrics);
         }
     }
 }
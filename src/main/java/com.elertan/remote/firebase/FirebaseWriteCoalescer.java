@@ -0,0 +1,264 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Buffers writes and sends them as one multi-path PATCH at the database root.
+ * <p>
+ * Writes made within a flush window are merged into a single path map: a write replaces any pending
+ * write below it, and a write below a pending path is folded into that path's value, so the map never
+ * holds both a path and one of its ancestors. A batch is flushed when {@link #flush()} is called
+ * (once per game tick by the storage session) or, at the latest, when the window elapses. Every caller
+ * of a batch is completed with the outcome of that one request. When the server rejects a batch
+ * outright (see {@link FirebaseHttpException#isRejection()}), its paths are sent again one at a
+ * time, so a single bad write only fails its own callers.
+ * <p>
+ * At most one batch is in flight. While it is, further writes keep merging into the next batch,
+ * which is sent as soon as the previous one completes. Under pressure (a slow connection, or a
+ * burst of writes) this trades request count for batch size, and batches apply in order.
+ */
+@Slf4j
+public class FirebaseWriteCoalescer implements AutoCloseable {
+
+    private final Function<JsonObject, CompletableFuture<?>> sender;
+    private final Duration window;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+
+    private NavigableMap<String, JsonElement> pendingWrites = new TreeMap<>();
+    // Completed with the outcome of the write at each pending path
+    private Map<String, CompletableFuture<Void>> pendingFutures = new HashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed = false;
+    private boolean inFlight = false;
+
+    /**
+     * @param sender sends the merged path map (keys are paths without leading slash) as a root PATCH
+     * @param window the longest a write waits before it is sent when no explicit flush happens
+     */
+    public FirebaseWriteCoalescer(Function<JsonObject, CompletableFuture<?>> sender, Duration window) {
+        this(sender, window, newScheduler(), true);
+    }
+
+    /**
+     * @param scheduler runs window flushes; shared with other coalescers and not shut down on close
+     */
+    public FirebaseWriteCoalescer(
+        Function<JsonObject, CompletableFuture<?>> sender,
+        Duration window,
+        ScheduledExecutorService scheduler
+    ) {
+        this(sender, window, scheduler, false);
+    }
+
+    private FirebaseWriteCoalescer(
+        Function<JsonObject, CompletableFuture<?>> sender,
+        Duration window,
+        ScheduledExecutorService scheduler,
+        boolean ownsScheduler
+    ) {
+        this.sender = sender;
+        this.window = window;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "firebase-write-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a write of {@code value} at {@code path}; a null value deletes the path.
+     *
+     * @return a future completed when the batch containing this write has been applied, or failed
+     *         when it was not
+     */
+    public synchronized CompletableFuture<Void> write(String path, JsonElement value) {
+        String[] segments = FirebaseSSE.splitPath(path);
+        if (segments.length == 0) {
+            throw new IllegalArgumentException("path must not be the database root");
+        }
+        if (closed) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("write coalescer is closed"));
+            return future;
+        }
+
+        JsonElement jsonValue = value == null ? JsonNull.INSTANCE : value;
+        String normalizedPath = "/" + String.join("/", segments);
+
+        String ancestor = findPendingAncestor(segments);
+        CompletableFuture<Void> future;
+        if (ancestor != null) {
+            int depth = FirebaseSSE.splitPath(ancestor).length;
+            JsonElement merged = FirebaseJsonPaths.setAtPath(
+                pendingWrites.get(ancestor),
+                segments,
+                depth,
+                jsonValue
+            );
+            pendingWrites.put(ancestor, merged);
+            future = pendingFutures.get(ancestor);
+        } else {
+            future = pendingFutures.computeIfAbsent(normalizedPath, __ -> new CompletableFuture<>());
+            // This write replaces everything pending below it, which is applied when this is
+            Map<String, JsonElement> replaced =
+                pendingWrites.subMap(normalizedPath + "/", true, normalizedPath + "0", false);
+            for (String replacedPath : replaced.keySet()) {
+                propagate(future, pendingFutures.remove(replacedPath));
+            }
+            replaced.clear();
+            pendingWrites.put(normalizedPath, jsonValue);
+        }
+
+        if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, window.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        return future.thenApply(__ -> null);
+    }
+
+    /**
+     * Sends all pending writes as one request. Does nothing when no writes are pending.
+     */
+    public void flush() {
+        NavigableMap<String, JsonElement> writes;
+        Map<String, CompletableFuture<Void>> futures;
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pendingWrites.isEmpty() || inFlight) {
+                // A batch in flight sends the pending writes when it completes
+                return;
+            }
+            inFlight = true;
+            writes = pendingWrites;
+            futures = pendingFutures;
+            pendingWrites = new TreeMap<>();
+            pendingFutures = new HashMap<>();
+        }
+
+        send(writes).whenComplete((__, throwable) -> {
+            if (throwable == null) {
+                complete(futures.values(), null);
+            } else if (writes.size() > 1 && FirebaseHttpException.isRejection(throwable)) {
+                log.warn("Batch of {} coalesced writes was rejected, sending them one at a time", writes.size());
+                sendSeparately(new ArrayList<>(writes.entrySet()).iterator(), futures);
+                return;
+            } else {
+                log.error("Failed to flush {} coalesced write(s)", writes.size(), throwable);
+                complete(futures.values(), throwable);
+            }
+            onBatchDone();
+        });
+    }
+
+    /**
+     * Sends the writes one after another, still as the batch in flight so later batches keep
+     * applying after them.
+     */
+    private void sendSeparately(
+        Iterator<Map.Entry<String, JsonElement>> writes,
+        Map<String, CompletableFuture<Void>> futures
+    ) {
+        if (!writes.hasNext()) {
+            onBatchDone();
+            return;
+        }
+        Map.Entry<String, JsonElement> write = writes.next();
+        NavigableMap<String, JsonElement> single = new TreeMap<>();
+        single.put(write.getKey(), write.getValue());
+        send(single).whenComplete((__, throwable) -> {
+            if (throwable != null) {
+                log.error("Failed to write {}", write.getKey(), throwable);
+            }
+            complete(List.of(futures.get(write.getKey())), throwable);
+            sendSeparately(writes, futures);
+        });
+    }
+
+    private CompletableFuture<?> send(NavigableMap<String, JsonElement> writes) {
+        JsonObject body = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : writes.entrySet()) {
+            body.add(entry.getKey().substring(1), entry.getValue());
+        }
+        try {
+            return sender.apply(body);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static void complete(Iterable<CompletableFuture<Void>> futures, Throwable throwable) {
+        for (CompletableFuture<Void> future : futures) {
+            if (throwable == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(throwable);
+            }
+        }
+    }
+
+    private static void propagate(CompletableFuture<Void> from, CompletableFuture<Void> to) {
+        if (to != null) {
+            from.whenComplete((__, throwable) -> complete(List.of(to), throwable));
+        }
+    }
+
+    private void onBatchDone() {
+        synchronized (this) {
+            inFlight = false;
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+        }
+        if (ownsScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    private String findPendingAncestor(String[] segments) {
+        StringBuilder prefix = new StringBuilder();
+        // Proper ancestors only, the path itself is handled as a replacement
+        for (int i = 0; i < segments.length - 1; i++) {
+            prefix.append('/').append(segments[i]);
+            String candidate = prefix.toString();
+            if (pendingWrites.containsKey(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,415 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-ahead log of outbound Firebase writes that have not been confirmed by the server.
+ * <p>
+ * Every write is recorded before it is sent and acknowledged once its batch succeeds. Writes that
+ * are still pending (e.g. made while offline, or lost to a crash) are replayed on the next
+ * connection. Each write sets a full path to a value, and adds use client-generated push IDs, so
+ * the path doubles as idempotency key: replaying a write that did reach the server is harmless.
+ * A newer write to a path supersedes older pending writes at or below it, so a replay can never
+ * restore an older value over a newer one. Writes the server rejects are discarded, replaying
+ * them could only fail again.
+ * <p>
+ * The file holds one JSON object per line: {@code {"seq":1,"path":"/a","value":...}} for writes
+ * and {@code {"ack":1}} for acknowledgements. Lines are appended by a background thread, those
+ * recorded within {@link #SYNC_WINDOW_MILLIS} with one fsync, so callers never wait for the disk.
+ * The file is rewritten from memory when acks dominate.
+ */
+@Slf4j
+public class FirebaseWriteJournal implements AutoCloseable {
+
+    private static final String FILE_NAME = "outbound-writes.jsonl";
+    static final long SYNC_WINDOW_MILLIS = 20;
+    // Rewrite the file once it holds this many lines per pending entry
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_LINES = 256;
+    private static final long CLOSE_TIMEOUT_MILLIS = 2_000;
+
+    private final Path filePath;
+    private final Gson gson;
+    // Path -> pending write; sorted, so the writes below a path are one range
+    private final NavigableMap<String, Entry> pending = new TreeMap<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "firebase-write-journal");
+        t.setDaemon(true);
+        return t;
+    });
+    // Lines recorded but not handed to the writer yet
+    private List<String> unwritten = new ArrayList<>();
+    // Set when the file is to be replaced by the pending entries instead of appended to
+    private boolean rewriteScheduled = false;
+    private boolean writeScheduled = false;
+    private boolean closed = false;
+    private long nextSeq = 1;
+    // Lines in the file once everything recorded is written
+    private int fileLines = 0;
+    // Only used on the writer thread
+    private FileChannel channel;
+
+    public FirebaseWriteJournal(Path directory, Gson gson) {
+        this.filePath = directory.resolve(FILE_NAME);
+        this.gson = gson;
+        load();
+    }
+
+    public static FirebaseWriteJournal forDatabase(FirebaseRealtimeDatabaseURL url, Gson gson) {
+        return new FirebaseWriteJournal(FirebaseLocalMirror.getDatabaseMirrorDir(url), gson);
+    }
+
+    /**
+     * Records a write and hands it to {@code sender} with its sequence number, to
+     * {@link #acknowledge} once the write is confirmed. Both happen under the journal's lock, so a
+     * concurrent {@link #replay} queues its writes either entirely before or after this one.
+     *
+     * @return what {@code sender} returned
+     */
+    public synchronized <T> T append(String path, JsonElement value, LongFunction<T> sender) {
+        long seq = nextSeq++;
+        Entry entry = new Entry(seq, path, value == null ? JsonNull.INSTANCE : value);
+        supersede(path);
+        pending.put(path, entry);
+        record(toLine(entry));
+        return sender.apply(seq);
+    }
+
+    /**
+     * Marks a write as applied by the server. Does nothing if a newer write replaced it.
+     */
+    public synchronized void acknowledge(long seq, String path) {
+        if (!remove(seq, path)) {
+            return;
+        }
+        if (pending.isEmpty() || fileLines >= COMPACT_MIN_LINES && fileLines > pending.size() * COMPACT_RATIO) {
+            // Deletes the file when nothing is pending
+            scheduleRewrite();
+            return;
+        }
+        JsonObject line = new JsonObject();
+        line.addProperty("ack", seq);
+        record(line.toString());
+    }
+
+    /**
+     * Drops a write the server refused, so it is not replayed. Does nothing if a newer write
+     * replaced it.
+     */
+    public synchronized void discard(long seq, String path) {
+        Entry entry = pending.get(path);
+        if (entry != null && entry.getSeq() == seq) {
+            log.warn("Discarding journaled write to {}, the server rejected it", path);
+            acknowledge(seq, path);
+        }
+    }
+
+    /**
+     * Hands every write that still needs to reach the server to {@code sender}, oldest first, under
+     * the journal's lock: no {@link #append} can come between them, and none of them was superseded.
+     *
+     * @return the number of writes replayed
+     */
+    public synchronized int replay(Consumer<Entry> sender) {
+        List<Entry> entries = new ArrayList<>(pending.values());
+        entries.sort(Comparator.comparingLong(Entry::getSeq));
+        entries.forEach(sender);
+        return entries.size();
+    }
+
+    public synchronized boolean hasPendingEntries() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Writes out what is recorded and stops the writer thread. Writes recorded afterwards are only
+     * kept in memory.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            writer.execute(() -> {
+                writeRecorded();
+                closeChannel();
+            });
+        } catch (RejectedExecutionException e) {
+            // Already shut down
+        }
+        writer.shutdown();
+        try {
+            // Another journal may be opened on the same file right after
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("Firebase write journal {} did not finish writing in time", filePath);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean remove(long seq, String path) {
+        Entry entry = pending.get(path);
+        if (entry == null || entry.getSeq() != seq) {
+            return false;
+        }
+        pending.remove(path);
+        return true;
+    }
+
+    private void supersede(String path) {
+        pending.remove(path);
+        pending.subMap(path + "/", true, path + "0", false).clear();
+    }
+
+    private void record(String line) {
+        if (rewriteScheduled) {
+            // The rewrite writes the entries as they are by then, which includes this line
+            scheduleWrite();
+            return;
+        }
+        unwritten.add(line);
+        fileLines++;
+        scheduleWrite();
+    }
+
+    private void scheduleRewrite() {
+        rewriteScheduled = true;
+        unwritten = new ArrayList<>();
+        fileLines = pending.size();
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled || closed) {
+            return;
+        }
+        writeScheduled = true;
+        try {
+            writer.schedule(this::writeRecorded, SYNC_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            writeScheduled = false;
+        }
+    }
+
+    /**
+     * Runs on the writer thread: appends the recorded lines, or rewrites the file, with one fsync.
+     */
+    private void writeRecorded() {
+        List<String> lines;
+        List<Entry> entries = null;
+        synchronized (this) {
+            writeScheduled = false;
+            lines = unwritten;
+            unwritten = new ArrayList<>();
+            if (rewriteScheduled) {
+                rewriteScheduled = false;
+                entries = new ArrayList<>(pending.values());
+                entries.sort(Comparator.comparingLong(Entry::getSeq));
+                fileLines = entries.size();
+            }
+        }
+        try {
+            if (entries != null) {
+                rewrite(entries);
+            } else if (!lines.isEmpty()) {
+                FileChannel appendChannel = openChannel();
+                writeLines(appendChannel, lines);
+                appendChannel.force(false);
+            }
+        } catch (IOException e) {
+            // The writes are still sent; they just are not protected against a crash
+            log.error("Failed to write Firebase write journal {}", filePath, e);
+            closeChannel();
+        }
+    }
+
+    private void rewrite(List<Entry> entries) throws IOException {
+        closeChannel();
+        if (entries.isEmpty()) {
+            Files.deleteIfExists(filePath);
+            return;
+        }
+        Path tempPath = filePath.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(
+            tempPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            List<String> lines = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                lines.add(toLine(entry));
+            }
+            writeLines(tempChannel, lines);
+            tempChannel.force(true);
+        }
+        try {
+            // Replaces the target in one step, a plain replacing move deletes it first
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(filePath.getParent());
+            channel = FileChannel.open(
+                filePath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+            );
+        }
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close Firebase write journal {}", filePath, e);
+        }
+        channel = null;
+    }
+
+    private static void writeLines(FileChannel target, List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static String toLine(Entry entry) {
+        JsonObject line = new JsonObject();
+        line.addProperty("seq", entry.getSeq());
+        line.addProperty("path", entry.getPath());
+        line.add("value", entry.getValue());
+        // toString keeps JSON nulls (deletes), Gson.toJson would drop them
+        return line.toString();
+    }
+
+    private void load() {
+        if (!Files.exists(filePath)) {
+            return;
+        }
+        Map<Long, String> pathsBySeq = new LinkedHashMap<>();
+        boolean torn = false;
+        try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
+            String rawLine;
+            while ((rawLine = reader.readLine()) != null) {
+                fileLines++;
+                JsonObject line;
+                try {
+                    line = gson.fromJson(rawLine, JsonObject.class);
+                } catch (Exception e) {
+                    // A torn last line from a crash mid-append, everything before it is intact
+                    log.warn("Skipping unreadable line in {}", filePath);
+                    torn = true;
+                    continue;
+                }
+                if (line == null) {
+                    continue;
+                }
+                if (line.has("ack")) {
+                    JsonElement ack = line.get("ack");
+                    if (!isNumber(ack)) {
+                        log.warn("Skipping malformed line in {}", filePath);
+                        torn = true;
+                        continue;
+                    }
+                    long seq = ack.getAsLong();
+                    String path = pathsBySeq.remove(seq);
+                    if (path != null) {
+                        remove(seq, path);
+                    }
+                    continue;
+                }
+                JsonElement seqElement = line.get("seq");
+                JsonElement pathElement = line.get("path");
+                if (!isNumber(seqElement) || !isString(pathElement)) {
+                    // Valid JSON but not a write, treated like a torn line rather than failing the session
+                    log.warn("Skipping malformed line in {}", filePath);
+                    torn = true;
+                    continue;
+                }
+                long seq = seqElement.getAsLong();
+                String path = pathElement.getAsString();
+                supersede(path);
+                JsonElement value = line.get("value");
+                pending.put(path, new Entry(seq, path, value == null ? JsonNull.INSTANCE : value));
+                pathsBySeq.put(seq, path);
+                nextSeq = Math.max(nextSeq, seq + 1);
+            }
+        } catch (IOException e) {
+            log.error("Failed to read Firebase write journal {}", filePath, e);
+        } catch (RuntimeException e) {
+            // Keep what was read so far, the rewrite below drops the rest
+            log.error("Failed to load Firebase write journal {}", filePath, e);
+            torn = true;
+        }
+        if (!pending.isEmpty()) {
+            log.info("Firebase write journal has {} pending write(s) to replay", pending.size());
+        }
+        if (torn) {
+            // Appending after a torn line would glue the next line onto it
+            scheduleRewrite();
+        }
+    }
+
+    private static boolean isNumber(JsonElement element) {
+        return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber();
+    }
+
+    private static boolean isString(JsonElement element) {
+        return element != null && element.isJsonPrimitive() && element.getAsJsonPrimitive().isString();
+    }
+
+    @Value
+    public static class Entry {
+
+        long seq;
+        String path;
+        JsonElement value;
+    }
+}
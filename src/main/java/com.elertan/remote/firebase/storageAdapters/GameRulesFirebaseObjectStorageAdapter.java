@@ -1,6 +1,7 @@
 package com.elertan.remote.firebase.storageAdapters;
 
 import com.elertan.models.GameRules;
+import com.elertan.remote.firebase.FirebaseLocalMirror;
 import com.elertan.remote.firebase.FirebaseObjectStorageAdapterBase;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.google.gson.Gson;
@@ -11,11 +12,20 @@ public class GameRulesFirebaseObjectStorageAdapter extends
     private final static String PATH = "/GameRules";
 
     public GameRulesFirebaseObjectStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+        this(db, gson, null);
+    }
+
+    public GameRulesFirebaseObjectStorageAdapter(
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        FirebaseLocalMirror mirror
+    ) {
         super(
             PATH,
             db,
             gson::toJsonTree,
-            jsonElement -> gson.fromJson(jsonElement, GameRules.class)
+            jsonElement -> gson.fromJson(jsonElement, GameRules.class),
+            mirror
         );
     }
 }
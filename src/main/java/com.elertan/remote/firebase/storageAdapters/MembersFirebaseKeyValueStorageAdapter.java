@@ -2,6 +2,7 @@ package com.elertan.remote.firebase.storageAdapters;
 
 import com.elertan.models.Member;
 import com.elertan.remote.firebase.FirebaseKeyValueStorageAdapterBase;
+import com.elertan.remote.firebase.FirebaseLocalMirror;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.google.gson.Gson;
 import java.util.function.Function;
@@ -14,7 +15,11 @@ public class MembersFirebaseKeyValueStorageAdapter extends
     private final static Function<String, Long> stringToKey = Long::parseLong;
     private final static Function<Long, String> keyToString = Object::toString;
 
-    public MembersFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+    public MembersFirebaseKeyValueStorageAdapter(
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        FirebaseLocalMirror mirror
+    ) {
         super(
             BASE_PATH, db, gson, stringToKey, keyToString, (jsonElement) -> {
                 if (jsonElement == null || jsonElement.isJsonNull()) {
@@ -22,7 +27,8 @@ public class MembersFirebaseKeyValueStorageAdapter extends
                 }
 
                 return gson.fromJson(jsonElement, Member.class);
-            }
+            },
+            mirror
         );
     }
 }
@@ -0,0 +1,150 @@
+package com.elertan.remote.firebase.storageAdapters;
+
+import com.elertan.remote.ItemIdSetStoragePort;
+import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
+import com.elertan.remote.firebase.FirebaseRealtimeDatabase.ETaggedValue;
+import com.elertan.utils.ItemIdRunLengthCodec;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the ids of all unlocked items as one run-length encoded string at /UnlockedItemIds, see
+ * {@link ItemIdRunLengthCodec}. Changes are collected for a short window and written as a single
+ * compare-and-set on the node's ETag, so a bank scan that unlocks many items costs one round trip.
+ * Only an ETag mismatch (412) is retried, against the value the server answers with.
+ */
+public class UnlockedItemIdsFirebaseStorageAdapter implements ItemIdSetStoragePort {
+
+    private final static String PATH = "/UnlockedItemIds";
+    private final static int MAX_ATTEMPTS = 5;
+    private final static Duration FLUSH_WINDOW = Duration.ofMillis(600);
+
+    private final FirebaseRealtimeDatabase db;
+    private final Executor flushExecutor;
+    // Last value and ETag seen, so a change usually needs no read first
+    private volatile ETaggedValue last;
+    // Changes not sent yet, an id is in at most one of them
+    private final BitSet pendingAdds = new BitSet();
+    private final BitSet pendingRemoves = new BitSet();
+    // Completes once the pending changes are written, null when nothing is pending
+    private CompletableFuture<Void> pendingResult;
+    // Batches go out one after another, so this client never conflicts with itself
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    public UnlockedItemIdsFirebaseStorageAdapter(FirebaseRealtimeDatabase db) {
+        this(db, FLUSH_WINDOW);
+    }
+
+    public UnlockedItemIdsFirebaseStorageAdapter(FirebaseRealtimeDatabase db, Duration flushWindow) {
+        this.db = db;
+        this.flushExecutor = CompletableFuture.delayedExecutor(flushWindow.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletableFuture<BitSet> read() {
+        return db.getWithETag(PATH).thenApply(value -> {
+            last = value;
+            return decode(value.getValue());
+        });
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> add(BitSet itemIds) {
+        pendingAdds.or(itemIds);
+        pendingRemoves.andNot(itemIds);
+        return pending();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> remove(BitSet itemIds) {
+        pendingRemoves.or(itemIds);
+        pendingAdds.andNot(itemIds);
+        return pending();
+    }
+
+    @Override
+    public void close() {
+        last = null;
+    }
+
+    private CompletableFuture<Void> pending() {
+        if (pendingResult == null) {
+            pendingResult = new CompletableFuture<>();
+            CompletableFuture<Void> previous = tail;
+            // The batch is taken once the window is over and the previous batch is answered,
+            // changes made until then still join it
+            tail = CompletableFuture.runAsync(() -> { }, flushExecutor)
+                .thenCombine(previous.handle((__, throwable) -> null), (a, b) -> null)
+                .thenCompose(__ -> flush());
+        }
+        return pendingResult;
+    }
+
+    private CompletableFuture<Void> flush() {
+        BitSet adds;
+        BitSet removes;
+        CompletableFuture<Void> result;
+        synchronized (this) {
+            adds = (BitSet) pendingAdds.clone();
+            removes = (BitSet) pendingRemoves.clone();
+            result = pendingResult;
+            pendingAdds.clear();
+            pendingRemoves.clear();
+            pendingResult = null;
+        }
+        CompletableFuture<Void> attempt = attempt(adds, removes, MAX_ATTEMPTS);
+        attempt.whenComplete((__, throwable) -> {
+            if (throwable == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(throwable);
+            }
+        });
+        return attempt;
+    }
+
+    private CompletableFuture<Void> attempt(BitSet adds, BitSet removes, int attemptsLeft) {
+        ETaggedValue known = last;
+        CompletableFuture<ETaggedValue> current = known == null
+            ? db.getWithETag(PATH)
+            : CompletableFuture.completedFuture(known);
+        return current.thenCompose(value -> {
+            BitSet before = decode(value.getValue());
+            BitSet after = (BitSet) before.clone();
+            after.or(adds);
+            after.andNot(removes);
+            if (after.equals(before)) {
+                last = value;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            JsonPrimitive encoded = new JsonPrimitive(ItemIdRunLengthCodec.encode(after));
+            return db.putIfMatch(PATH, encoded, value.getEtag()).thenCompose(result -> {
+                if (result.isMatched()) {
+                    last = new ETaggedValue(true, encoded, result.getEtag());
+                    return CompletableFuture.completedFuture(null);
+                }
+                // 412, changed by someone else; the response carries what is stored now
+                last = result;
+                if (attemptsLeft <= 1) {
+                    return CompletableFuture.failedFuture(
+                        new IOException("Update of " + PATH + " kept conflicting"));
+                }
+                return attempt(adds, removes, attemptsLeft - 1);
+            });
+        });
+    }
+
+    private static BitSet decode(JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            return new BitSet();
+        }
+        return ItemIdRunLengthCodec.decode(value.getAsString());
+    }
+}
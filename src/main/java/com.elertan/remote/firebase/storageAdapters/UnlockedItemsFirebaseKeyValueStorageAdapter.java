@@ -2,6 +2,7 @@ package com.elertan.remote.firebase.storageAdapters;
 
 import com.elertan.models.UnlockedItem;
 import com.elertan.remote.firebase.FirebaseKeyValueStorageAdapterBase;
+import com.elertan.remote.firebase.FirebaseLocalMirror;
 import com.elertan.remote.firebase.FirebaseRealtimeDatabase;
 import com.google.gson.Gson;
 import java.util.function.Function;
@@ -15,7 +16,11 @@ public class UnlockedItemsFirebaseKeyValueStorageAdapter
     private final static Function<String, Integer> stringToKey = Integer::parseInt;
     private final static Function<Integer, String> keyToString = Object::toString;
 
-    public UnlockedItemsFirebaseKeyValueStorageAdapter(FirebaseRealtimeDatabase db, Gson gson) {
+    public UnlockedItemsFirebaseKeyValueStorageAdapter(
+        FirebaseRealtimeDatabase db,
+        Gson gson,
+        FirebaseLocalMirror mirror
+    ) {
         super(
             BASE_PATH, db, gson, stringToKey, keyToString, (jsonElement) -> {
                 if (jsonElement == null || jsonElement.isJsonNull()) {
@@ -23,7 +28,8 @@ public class UnlockedItemsFirebaseKeyValueStorageAdapter
                 }
 
                 return gson.fromJson(jsonElement, UnlockedItem.class);
-            }
+            },
+            mirror
         );
     }
 }
@@ -0,0 +1,176 @@
+package com.elertan.remote.local;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only file of records, each written as its payload length and CRC32 (big-endian ints)
+ * followed by the payload.
+ * <p>
+ * Appends are not synced one by one; callers batch them and call {@link #sync()} once per group.
+ * A crash can therefore leave a partly written last record, which {@link #readAll()} detects by
+ * length and checksum and cuts off.
+ */
+@Slf4j
+final class LocalJournal implements AutoCloseable {
+
+    private static final int HEADER_BYTES = 8;
+    // Anything larger can only be a corrupt length field
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path filePath;
+    private FileChannel channel;
+    private long size = 0;
+    private boolean dirty = false;
+
+    LocalJournal(Path filePath) {
+        this.filePath = filePath;
+    }
+
+    Path getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * Bytes of intact records in the file.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the payloads of all intact records, oldest first, and truncates whatever follows the
+     * last one (a record torn by a crash mid-append). Must be called before the first append.
+     */
+    List<byte[]> readAll() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        size = 0;
+        if (!Files.exists(filePath)) {
+            return records;
+        }
+        try (FileChannel readChannel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = readChannel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            long position = 0;
+            while (position + HEADER_BYTES <= fileSize) {
+                header.clear();
+                readFully(readChannel, header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > fileSize) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(readChannel, payload, position + HEADER_BYTES);
+                if (checksum(payload.array()) != checksum) {
+                    break;
+                }
+                records.add(payload.array());
+                position += HEADER_BYTES + length;
+            }
+            if (position < fileSize) {
+                log.warn("Dropping {} bytes of incomplete records at the end of {}", fileSize - position, filePath);
+                readChannel.truncate(position);
+                readChannel.force(true);
+            }
+            size = position;
+        }
+        return records;
+    }
+
+    void append(byte[] payload) throws IOException {
+        FileChannel writeChannel = open();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                writeChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            // Cut off the partial record, the next append would otherwise follow it and be lost
+            try {
+                writeChannel.truncate(size);
+                writeChannel.position(size);
+            } catch (IOException truncateException) {
+                e.addSuppressed(truncateException);
+            }
+            throw e;
+        }
+        size += HEADER_BYTES + payload.length;
+        dirty = true;
+    }
+
+    /**
+     * Makes every record appended so far durable, with one fsync.
+     */
+    void sync() throws IOException {
+        if (!dirty || channel == null) {
+            return;
+        }
+        channel.force(false);
+        dirty = false;
+    }
+
+    /**
+     * Empties the journal, once its records are contained in a durable snapshot.
+     */
+    void reset() throws IOException {
+        close();
+        Files.deleteIfExists(filePath);
+        size = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null) {
+            Path parent = filePath.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Appends go after the intact records, over a cut off tail if there was one
+            channel.position(size);
+        }
+        return channel;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -4,17 +4,24 @@ import com.elertan.remote.KeyListStoragePort;
 import com.elertan.remote.KeyValueStoragePort;
 import com.elertan.remote.ObjectStoragePort;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.Writer;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -22,9 +29,14 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -49,15 +61,61 @@ public final class LocalStorageAdapters {
         }
     }
 
+    /**
+     * A faster to load copy of a JSON snapshot file, kept next to it. The JSON file stays the
+     * source of truth: a binary snapshot that does not match it is ignored and rewritten.
+     */
+    public interface BinarySnapshotFormat<K, V> {
+
+        /**
+         * @return the snapshot, or null when there is none that matches the JSON file as it is now
+         */
+        Map<K, V> read(Path jsonPath) throws IOException;
+
+        /**
+         * Writes {@code snapshot}, which must be what the JSON file at {@code jsonPath} was just
+         * written with.
+         */
+        void write(Path jsonPath, Map<K, V> snapshot) throws IOException;
+
+        void delete(Path jsonPath) throws IOException;
+    }
+
+    /**
+     * Keeps a key-value map in a JSON snapshot file plus a {@link LocalJournal} of the changes made
+     * since, so a change costs one appended record instead of rewriting the whole file.
+     * <p>
+     * Changes arriving within {@link #COMMIT_WINDOW_MILLIS} are group-committed with one fsync;
+     * their futures complete once that sync is done, listeners are told right away. Once the
+     * journal outgrows the snapshot it is compacted: the snapshot is rewritten from memory and the
+     * journal emptied. Loading reads the snapshot and replays the journal over it.
+     * <p>
+     * With a {@link BinarySnapshotFormat}, the snapshot is also kept in that format and loaded
+     * from it instead of parsing the JSON.
+     */
     public static final class JsonFileKeyValueStorageAdapter<K, V> implements KeyValueStoragePort<K, V> {
 
+        static final long COMMIT_WINDOW_MILLIS = 20;
+        // Compact once the journal is this many times the size of the snapshot...
+        private static final int COMPACT_RATIO = 1;
+        // ...but not while it is this small, rewriting a tiny snapshot on every few records
+        private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
         private final Path filePath;
         private final Gson gson;
         private final Function<K, String> keyToString;
         private final Function<String, K> stringToKey;
         private final Type valueType;
+        private final BinarySnapshotFormat<K, V> binarySnapshotFormat;
         private final ConcurrentLinkedQueue<Listener<K, V>> listeners = new ConcurrentLinkedQueue<>();
-        private final ExecutorService executor = newSingleThreadExecutor("local-key-value");
+        private final ScheduledExecutorService executor = newSingleThreadScheduledExecutor("local-key-value");
+        private final LocalJournal journal;
+        // Completions waiting for the next group commit, given the failure or null; only touched
+        // on the executor
+        private final List<Consumer<Throwable>> awaitingCommit = new ArrayList<>();
+        private boolean commitScheduled;
+        private long snapshotBytes;
+        private boolean closed;
         private Map<K, V> cache;
 
         public JsonFileKeyValueStorageAdapter(
@@ -66,12 +124,32 @@ public final class LocalStorageAdapters {
             Function<K, String> keyToString,
             Function<String, K> stringToKey,
             Type valueType
+        ) {
+            this(filePath, gson, keyToString, stringToKey, valueType, null);
+        }
+
+        /**
+         * @param binarySnapshotFormat optional format the snapshot is also kept in, for faster loading
+         */
+        public JsonFileKeyValueStorageAdapter(
+            Path filePath,
+            Gson gson,
+            Function<K, String> keyToString,
+            Function<String, K> stringToKey,
+            Type valueType,
+            BinarySnapshotFormat<K, V> binarySnapshotFormat
         ) {
             this.filePath = filePath;
             this.gson = gson;
             this.keyToString = keyToString;
             this.stringToKey = stringToKey;
             this.valueType = valueType;
+            this.binarySnapshotFormat = binarySnapshotFormat;
+            this.journal = new LocalJournal(journalPathFor(filePath));
+        }
+
+        public static Path journalPathFor(Path filePath) {
+            return filePath.resolveSibling(filePath.getFileName() + ".journal");
         }
 
         @Override
@@ -89,24 +167,53 @@ public final class LocalStorageAdapters {
 
         @Override
         public CompletableFuture<Void> update(K key, V value) {
-            return CompletableFuture.runAsync(() -> {
+            return mutate(() -> {
                 ensureLoaded();
+                // Recorded first, a failed append must not leave the cache ahead of the journal
+                appendRecord(key, value);
                 cache.put(key, value);
-                flush();
 
                 notifyKeyValueListeners(
                     listeners,
                     listener -> listener.onUpdate(key, value),
                     "Local key-value listener failed during update"
                 );
-            }, executor);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<V> putIfAbsent(K key, V value) {
+            return mutate(() -> {
+                ensureLoaded();
+                V existing = cache.get(key);
+                if (existing != null) {
+                    return existing;
+                }
+                appendRecord(key, value);
+                cache.put(key, value);
+
+                notifyKeyValueListeners(
+                    listeners,
+                    listener -> listener.onUpdate(key, value),
+                    "Local key-value listener failed during update"
+                );
+                return value;
+            });
         }
 
         @Override
         public CompletableFuture<Void> updateAll(Map<K, V> map) {
-            return CompletableFuture.runAsync(() -> {
+            return mutate(() -> {
+                Map<K, V> previous = cache;
                 cache = new HashMap<>(map);
-                flush();
+                try {
+                    // Replaces everything, so it goes straight into a new snapshot
+                    compact();
+                } catch (RuntimeException e) {
+                    cache = previous;
+                    throw e;
+                }
                 Map<K, V> snapshot = new HashMap<>(cache);
 
                 notifyKeyValueListeners(
@@ -114,22 +221,49 @@ public final class LocalStorageAdapters {
                     listener -> listener.onFullUpdate(Collections.unmodifiableMap(snapshot)),
                     "Local key-value listener failed during full update"
                 );
-            }, executor);
+                return null;
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> updateMany(Map<K, V> map) {
+            return mutate(() -> {
+                ensureLoaded();
+                List<Map.Entry<K, V>> applied = new ArrayList<>(map.size());
+                try {
+                    for (Map.Entry<K, V> entry : map.entrySet()) {
+                        appendRecord(entry.getKey(), entry.getValue());
+                        cache.put(entry.getKey(), entry.getValue());
+                        applied.add(entry);
+                    }
+                } finally {
+                    // Listeners hear about what was applied, also when a later append failed
+                    for (Map.Entry<K, V> entry : applied) {
+                        notifyKeyValueListeners(
+                            listeners,
+                            listener -> listener.onUpdate(entry.getKey(), entry.getValue()),
+                            "Local key-value listener failed during update"
+                        );
+                    }
+                }
+                return null;
+            });
         }
 
         @Override
         public CompletableFuture<Void> delete(K key) {
-            return CompletableFuture.runAsync(() -> {
+            return mutate(() -> {
                 ensureLoaded();
+                appendRecord(key, null);
                 cache.remove(key);
-                flush();
 
                 notifyKeyValueListeners(
                     listeners,
                     listener -> listener.onDelete(key),
                     "Local key-value listener failed during delete"
                 );
-            }, executor);
+                return null;
+            });
         }
 
         @Override
@@ -145,7 +279,138 @@ public final class LocalStorageAdapters {
         @Override
         public void close() {
             listeners.clear();
-            executor.shutdownNow();
+            try {
+                // Commits what is still waiting; queued after every change made so far
+                executor.execute(() -> {
+                    commit();
+                    closed = true;
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        log.error("Failed to close {}", journal.getFilePath(), e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Already closed
+            }
+            executor.shutdown();
+        }
+
+        /**
+         * Runs {@code mutation} on the executor; the future completes with its result once the
+         * records it appended are synced.
+         */
+        private <T> CompletableFuture<T> mutate(Supplier<T> mutation) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    if (closed) {
+                        future.completeExceptionally(new IllegalStateException("closed"));
+                        return;
+                    }
+                    T result;
+                    try {
+                        result = mutation.get();
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    awaitingCommit.add(throwable -> {
+                        if (throwable == null) {
+                            future.complete(result);
+                        } else {
+                            future.completeExceptionally(throwable);
+                        }
+                    });
+                    scheduleCommit();
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(new IllegalStateException("closed", e));
+            }
+            return future;
+        }
+
+        private void scheduleCommit() {
+            if (commitScheduled) {
+                return;
+            }
+            commitScheduled = true;
+            executor.schedule(this::commit, COMMIT_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void commit() {
+            commitScheduled = false;
+            List<Consumer<Throwable>> committed = new ArrayList<>(awaitingCommit);
+            awaitingCommit.clear();
+            if (closed) {
+                // The journal is closed, nothing these wait for can be synced anymore
+                IllegalStateException closedException = new IllegalStateException("closed");
+                for (Consumer<Throwable> completion : committed) {
+                    completion.accept(closedException);
+                }
+                return;
+            }
+            IOException syncException = null;
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                // Applied and written, but not known to be on disk: a resolved future promises that
+                log.error("Failed to sync {}", journal.getFilePath(), e);
+                syncException = e;
+            }
+            for (Consumer<Throwable> completion : committed) {
+                completion.accept(syncException);
+            }
+
+            long journalBytes = journal.size();
+            if (journalBytes >= COMPACT_MIN_BYTES && journalBytes > snapshotBytes * COMPACT_RATIO) {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    // The journal is intact, compaction is retried after the next commit
+                    log.error("Failed to compact {}", filePath, e);
+                }
+            }
+        }
+
+        private void appendRecord(K key, V value) {
+            JsonObject record = new JsonObject();
+            record.addProperty("k", keyToString.apply(key));
+            if (value != null) {
+                record.add("v", gson.toJsonTree(value, valueType));
+            }
+            try {
+                journal.append(record.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write " + journal.getFilePath(), e);
+            }
+        }
+
+        /**
+         * Writes the cache as the new snapshot, then empties the journal. A crash in between
+         * leaves records that are replayed over a snapshot already containing them, which is
+         * harmless: every record sets or removes a whole value.
+         */
+        private void compact() {
+            Map<String, V> raw = new HashMap<>();
+            for (Map.Entry<K, V> entry : cache.entrySet()) {
+                raw.put(keyToString.apply(entry.getKey()), entry.getValue());
+            }
+            if (binarySnapshotFormat != null) {
+                try {
+                    // Gone before the JSON changes, so an old one can never pass for the new JSON
+                    binarySnapshotFormat.delete(filePath);
+                } catch (IOException e) {
+                    log.warn("Failed to delete the binary snapshot of {}", filePath, e);
+                }
+            }
+            snapshotBytes = writeJsonFile(filePath, gson.toJson(raw));
+            writeBinarySnapshot();
+            try {
+                journal.reset();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to reset " + journal.getFilePath(), e);
+            }
         }
 
         private void ensureLoaded() {
@@ -154,31 +419,77 @@ public final class LocalStorageAdapters {
             }
 
             cache = new HashMap<>();
-            if (!Files.exists(filePath)) {
-                return;
+            if (Files.exists(filePath) && !loadBinarySnapshot()) {
+                Type mapType = TypeToken.getParameterized(Map.class, String.class, valueType).getType();
+                try (Reader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
+                    snapshotBytes = Files.size(filePath);
+                    Map<String, V> raw = gson.fromJson(reader, mapType);
+                    if (raw != null) {
+                        for (Map.Entry<String, V> entry : raw.entrySet()) {
+                            cache.put(stringToKey.apply(entry.getKey()), entry.getValue());
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new UnreadableLocalProgressException(filePath, e);
+                }
+                // Missing or outdated, the next load can skip the JSON
+                writeBinarySnapshot();
             }
 
-            Type mapType = TypeToken.getParameterized(Map.class, String.class, valueType).getType();
-            try (Reader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-                Map<String, V> raw = gson.fromJson(reader, mapType);
-                if (raw == null) {
-                    return;
+            try {
+                List<byte[]> records = journal.readAll();
+                for (byte[] payload : records) {
+                    JsonObject record = new JsonParser()
+                        .parse(new String(payload, StandardCharsets.UTF_8))
+                        .getAsJsonObject();
+                    K key = stringToKey.apply(record.get("k").getAsString());
+                    if (record.has("v")) {
+                        cache.put(key, gson.fromJson(record.get("v"), valueType));
+                    } else {
+                        cache.remove(key);
+                    }
                 }
+                if (!records.isEmpty()) {
+                    log.debug("Replayed {} journal records over {}", records.size(), filePath);
+                }
+            } catch (Exception e) {
+                throw new UnreadableLocalProgressException(journal.getFilePath(), e);
+            }
+        }
 
-                for (Map.Entry<String, V> entry : raw.entrySet()) {
-                    cache.put(stringToKey.apply(entry.getKey()), entry.getValue());
+        /**
+         * @return whether the cache was loaded from the binary snapshot
+         */
+        private boolean loadBinarySnapshot() {
+            if (binarySnapshotFormat == null) {
+                return false;
+            }
+            try {
+                Map<K, V> snapshot = binarySnapshotFormat.read(filePath);
+                if (snapshot == null) {
+                    return false;
                 }
+                cache.putAll(snapshot);
+                snapshotBytes = Files.size(filePath);
+                return true;
             } catch (Exception e) {
-                throw new UnreadableLocalProgressException(filePath, e);
+                // The JSON is still there to load from
+                log.warn("Failed to read the binary snapshot of {}", filePath, e);
+                cache.clear();
+                return false;
             }
         }
 
-        private void flush() {
-            Map<String, V> raw = new HashMap<>();
-            for (Map.Entry<K, V> entry : cache.entrySet()) {
-                raw.put(keyToString.apply(entry.getKey()), entry.getValue());
+        private void writeBinarySnapshot() {
+            if (binarySnapshotFormat == null) {
+                return;
+            }
+            try {
+                binarySnapshotFormat.write(filePath, cache);
+            } catch (Exception e) {
+                // Only costs speed, the next load parses the JSON and tries again
+                log.warn("Failed to write the binary snapshot of {}", filePath, e);
             }
-            writeJsonFile(filePath, gson.toJson(raw));
         }
     }
 
@@ -305,6 +616,20 @@ public final class LocalStorageAdapters {
             return CompletableFuture.completedFuture(null);
         }
 
+        @Override
+        public CompletableFuture<V> putIfAbsent(K key, V value) {
+            V existing = cache.putIfAbsent(key, value);
+            if (existing != null) {
+                return CompletableFuture.completedFuture(existing);
+            }
+            notifyKeyValueListeners(
+                listeners,
+                listener -> listener.onUpdate(key, value),
+                "In-memory key-value listener failed during update"
+            );
+            return CompletableFuture.completedFuture(value);
+        }
+
         @Override
         public CompletableFuture<Void> updateAll(Map<K, V> map) {
             cache.clear();
@@ -318,6 +643,19 @@ public final class LocalStorageAdapters {
             return CompletableFuture.completedFuture(null);
         }
 
+        @Override
+        public CompletableFuture<Void> updateMany(Map<K, V> map) {
+            cache.putAll(map);
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                notifyKeyValueListeners(
+                    listeners,
+                    listener -> listener.onUpdate(entry.getKey(), entry.getValue()),
+                    "In-memory key-value listener failed during update"
+                );
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
         @Override
         public CompletableFuture<Void> delete(K key) {
             cache.remove(key);
@@ -428,7 +766,15 @@ public final class LocalStorageAdapters {
     }
 
     private static ExecutorService newSingleThreadExecutor(String label) {
-        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+        return Executors.newSingleThreadExecutor(newThreadFactory(label));
+    }
+
+    private static ScheduledExecutorService newSingleThreadScheduledExecutor(String label) {
+        return Executors.newSingleThreadScheduledExecutor(newThreadFactory(label));
+    }
+
+    private static ThreadFactory newThreadFactory(String label) {
+        return new ThreadFactory() {
             @Override
             public Thread newThread(Runnable runnable) {
                 Thread thread = new Thread(
@@ -438,7 +784,7 @@ public final class LocalStorageAdapters {
                 thread.setDaemon(true);
                 return thread;
             }
-        });
+        };
     }
 
     private interface KeyValueListenerAction<K, V> {
@@ -495,7 +841,13 @@ public final class LocalStorageAdapters {
         }
     }
 
-    private static void writeJsonFile(Path filePath, String json) {
+    /**
+     * Replaces the file atomically; the content is synced before the rename, so a crash leaves
+     * either the old or the new file complete.
+     *
+     * @return the number of bytes written
+     */
+    private static long writeJsonFile(Path filePath, String json) {
         try {
             Path parent = filePath.getParent();
             if (parent != null) {
@@ -503,15 +855,39 @@ public final class LocalStorageAdapters {
             }
 
             Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
-            try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
-                writer.write(json);
+            ByteBuffer bytes = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+            long length = bytes.remaining();
+            try (FileChannel channel = FileChannel.open(
+                tempPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
             }
-            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+            moveIntoPlace(tempPath, filePath);
+            return length;
         } catch (IOException e) {
             throw new RuntimeException("Failed to write " + filePath, e);
         }
     }
 
+    /**
+     * Renames {@code source} over {@code target} atomically where the file system allows it. A
+     * plain replacing move deletes the target before renaming on some platforms, and a crash in
+     * between would leave no file at all.
+     */
+    static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     private static void deleteFile(Path filePath) {
         try {
             Files.deleteIfExists(filePath);
@@ -42,7 +42,8 @@ public class LocalStorageSession implements StorageSession {
             gson,
             Object::toString,
             Integer::valueOf,
-            UnlockedItem.class
+            UnlockedItem.class,
+            new UnlockedItemsBinarySnapshot()
         );
         gameRulesStoragePort = new LocalStorageAdapters.JsonFileObjectStorageAdapter<>(
             accountStorageDirectory.resolve("GameRules.json"),
@@ -62,7 +63,10 @@ public class LocalStorageSession implements StorageSession {
 
     public static boolean hasExistingProgress(long accountHash) {
         Path accountStorageDirectory = getAccountStorageDir(accountHash);
-        return Files.exists(accountStorageDirectory.resolve("UnlockedItems.json"))
+        Path unlockedItemsPath = accountStorageDirectory.resolve("UnlockedItems.json");
+        // Unlocks can still be only in the journal, before its first compaction
+        return Files.exists(unlockedItemsPath)
+            || Files.exists(LocalStorageAdapters.JsonFileKeyValueStorageAdapter.journalPathFor(unlockedItemsPath))
             || Files.exists(accountStorageDirectory.resolve("GameRules.json"));
     }
 
@@ -0,0 +1,196 @@
+package com.elertan.remote.local;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary copy of the unlocked items JSON file, read in one go into a heap buffer without any parsing.
+ * The file is not memory mapped: a mapping is only released by the garbage collector, and until
+ * then Windows refuses to replace or delete the file, which every compaction does.
+ * <p>
+ * Layout, big-endian: a header (magic, version, size and modification time of the JSON file it
+ * was written for, record, account and string counts), then one fixed-width record per item
+ * (id, acquired-at epoch millis, dropped-by npc id, account index, name index), then the account
+ * hashes, then the strings as length-prefixed UTF-8. Accounts and names are stored once and
+ * referred to by index, an account typically unlocks thousands of items.
+ */
+final class UnlockedItemsBinarySnapshot implements LocalStorageAdapters.BinarySnapshotFormat<Integer, UnlockedItem> {
+
+    private static final int MAGIC = 0x42555349;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 36;
+    private static final int RECORD_BYTES = 24;
+    private static final long NO_ACQUIRED_AT = Long.MIN_VALUE;
+    private static final int NO_NPC_ID = Integer.MIN_VALUE;
+    private static final int NO_NAME = -1;
+
+    static Path snapshotPathFor(Path jsonPath) {
+        return jsonPath.resolveSibling(jsonPath.getFileName() + ".bin");
+    }
+
+    @Override
+    public Map<Integer, UnlockedItem> read(Path jsonPath) throws IOException {
+        Path snapshotPath = snapshotPathFor(jsonPath);
+        if (!Files.exists(snapshotPath) || !Files.exists(jsonPath)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                return null;
+            }
+            if (fileSize > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            long jsonSize = buffer.getLong();
+            long jsonModifiedMillis = buffer.getLong();
+            if (jsonSize != Files.size(jsonPath)
+                || jsonModifiedMillis != Files.getLastModifiedTime(jsonPath).toMillis()) {
+                return null;
+            }
+            int recordCount = buffer.getInt();
+            int accountCount = buffer.getInt();
+            int stringCount = buffer.getInt();
+            long tablesOffset = HEADER_BYTES + (long) recordCount * RECORD_BYTES;
+            if (recordCount < 0 || accountCount < 0 || stringCount < 0
+                || tablesOffset + (long) accountCount * Long.BYTES > fileSize) {
+                return null;
+            }
+
+            // The tables are read first, records then only index into them
+            buffer.position((int) tablesOffset);
+            long[] accountHashes = new long[accountCount];
+            for (int i = 0; i < accountCount; i++) {
+                accountHashes[i] = buffer.getLong();
+            }
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            ZoneId zone = ZoneId.systemDefault();
+            Map<Integer, UnlockedItem> items = new HashMap<>(recordCount * 4 / 3 + 1);
+            buffer.position(HEADER_BYTES);
+            for (int i = 0; i < recordCount; i++) {
+                int id = buffer.getInt();
+                long acquiredAtMillis = buffer.getLong();
+                int npcId = buffer.getInt();
+                int accountIndex = buffer.getInt();
+                int nameIndex = buffer.getInt();
+                items.put(id, new UnlockedItem(
+                    id,
+                    nameIndex == NO_NAME ? null : strings[nameIndex],
+                    accountHashes[accountIndex],
+                    acquiredAtMillis == NO_ACQUIRED_AT ? null : new ISOOffsetDateTime(
+                        OffsetDateTime.ofInstant(Instant.ofEpochMilli(acquiredAtMillis), zone)
+                    ),
+                    npcId == NO_NPC_ID ? null : npcId
+                ));
+            }
+            return items;
+        }
+    }
+
+    @Override
+    public void write(Path jsonPath, Map<Integer, UnlockedItem> snapshot) throws IOException {
+        Map<Long, Integer> accountIndexes = new LinkedHashMap<>();
+        Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+        List<byte[]> stringBytes = new ArrayList<>();
+        long stringTableBytes = 0;
+        for (UnlockedItem item : snapshot.values()) {
+            accountIndexes.putIfAbsent(item.getAcquiredByAccountHash(), accountIndexes.size());
+            String name = item.getName();
+            if (name != null && !stringIndexes.containsKey(name)) {
+                stringIndexes.put(name, stringIndexes.size());
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                stringBytes.add(bytes);
+                stringTableBytes += Integer.BYTES + bytes.length;
+            }
+        }
+
+        long totalBytes = HEADER_BYTES
+            + (long) snapshot.size() * RECORD_BYTES
+            + (long) accountIndexes.size() * Long.BYTES
+            + stringTableBytes;
+        if (totalBytes > Integer.MAX_VALUE) {
+            throw new IOException("Unlocked items snapshot too large: " + totalBytes + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) totalBytes);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(Files.size(jsonPath));
+        buffer.putLong(Files.getLastModifiedTime(jsonPath).toMillis());
+        buffer.putInt(snapshot.size());
+        buffer.putInt(accountIndexes.size());
+        buffer.putInt(stringBytes.size());
+
+        List<UnlockedItem> items = new ArrayList<>(snapshot.values());
+        items.sort(Comparator.comparingInt(UnlockedItem::getId));
+        for (UnlockedItem item : items) {
+            ISOOffsetDateTime acquiredAt = item.getAcquiredAt();
+            buffer.putInt(item.getId());
+            buffer.putLong(acquiredAt == null || acquiredAt.getValue() == null
+                ? NO_ACQUIRED_AT
+                : acquiredAt.getValue().toInstant().toEpochMilli());
+            buffer.putInt(item.getDroppedByNPCId() == null ? NO_NPC_ID : item.getDroppedByNPCId());
+            buffer.putInt(accountIndexes.get(item.getAcquiredByAccountHash()));
+            buffer.putInt(item.getName() == null ? NO_NAME : stringIndexes.get(item.getName()));
+        }
+        for (long accountHash : accountIndexes.keySet()) {
+            buffer.putLong(accountHash);
+        }
+        for (byte[] bytes : stringBytes) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.flip();
+
+        Path snapshotPath = snapshotPathFor(jsonPath);
+        Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(
+            tempPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        LocalStorageAdapters.moveIntoPlace(tempPath, snapshotPath);
+    }
+
+    @Override
+    public void delete(Path jsonPath) throws IOException {
+        Files.deleteIfExists(snapshotPathFor(jsonPath));
+    }
+}
@@ -0,0 +1,76 @@
+package com.elertan.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.BitSet;
+
+/**
+ * Encodes a set of item ids as a short string: the runs of consecutive ids as alternating
+ * (gap, length) varints, base64 encoded, behind a version prefix. Unlocked ids cluster (item
+ * variants have neighbouring ids), so a group with thousands of unlocks fits in a few KB.
+ */
+public final class ItemIdRunLengthCodec {
+
+    private static final String VERSION_PREFIX = "1:";
+
+    private ItemIdRunLengthCodec() {
+    }
+
+    public static String encode(BitSet itemIds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int previousEnd = 0;
+        int start = itemIds.nextSetBit(0);
+        while (start >= 0) {
+            int end = itemIds.nextClearBit(start);
+            writeVarint(out, start - previousEnd);
+            writeVarint(out, end - start);
+            previousEnd = end;
+            start = itemIds.nextSetBit(end);
+        }
+        return VERSION_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code encoded} is not in a supported format
+     */
+    public static BitSet decode(String encoded) {
+        if (!encoded.startsWith(VERSION_PREFIX)) {
+            throw new IllegalArgumentException("Unsupported item id set format");
+        }
+        byte[] bytes = Base64.getUrlDecoder().decode(encoded.substring(VERSION_PREFIX.length()));
+        BitSet itemIds = new BitSet();
+        int[] position = {0};
+        int previousEnd = 0;
+        while (position[0] < bytes.length) {
+            int start = previousEnd + readVarint(bytes, position);
+            int end = start + readVarint(bytes, position);
+            itemIds.set(start, end);
+            previousEnd = end;
+        }
+        return itemIds;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (position[0] >= bytes.length || shift > 28) {
+                throw new IllegalArgumentException("Truncated item id set");
+            }
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
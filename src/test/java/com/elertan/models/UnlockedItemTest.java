@@ -0,0 +1,214 @@
+package com.elertan.models;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.TimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UnlockedItemTest {
+
+    private static final long ACCOUNT_HASH = -8_529_403_712_345_678_901L;
+    // Millisecond precision, which is all the compact format keeps
+    private static final OffsetDateTime ACQUIRED_AT =
+        OffsetDateTime.of(2025, 3, 14, 21, 5, 9, 123_000_000, ZoneOffset.ofHours(9));
+
+    // Like a storage session's: writes the format the group's rules allow
+    private final UnlockedItem.WriteFormat writeFormat = new UnlockedItem.WriteFormat();
+    private final Gson gson = new GsonBuilder()
+        .registerTypeAdapterFactory(new UnlockedItem.AdapterFactory(writeFormat))
+        .create();
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void writesLegacyObjectUntilGroupAllowsCompactFormat() {
+        JsonElement json = gson.toJsonTree(unlockedItem(4151, 415));
+
+        assertTrue(json.isJsonObject());
+        JsonObject object = json.getAsJsonObject();
+        assertEquals(4151, object.get("id").getAsInt());
+        assertEquals("Abyssal whip", object.get("name").getAsString());
+        assertEquals(String.valueOf(ACCOUNT_HASH), object.get("acquiredByAccountHash").getAsString());
+        assertEquals("2025-03-14T21:05:09.123+09:00", object.get("acquiredAt").getAsString());
+        assertEquals(415, object.get("droppedByNPCId").getAsInt());
+    }
+
+    @Test
+    public void legacyObjectRoundTrips() {
+        UnlockedItem read = gson.fromJson(gson.toJson(unlockedItem(4151, 415)), UnlockedItem.class);
+
+        assertSameUnlock(unlockedItem(4151, 415), read);
+        // The legacy format keeps the offset it was written with
+        assertEquals(ACQUIRED_AT, read.getAcquiredAt().getValue());
+    }
+
+    @Test
+    public void readsLegacyObjectWrittenByOlderReleases() {
+        String json = "{\"id\":995,\"name\":\"Coins\",\"acquiredByAccountHash\":\"" + ACCOUNT_HASH + "\","
+            + "\"acquiredAt\":\"2024-12-31T23:59:59.5-05:00\"}";
+
+        UnlockedItem read = gson.fromJson(json, UnlockedItem.class);
+
+        assertEquals(995, read.getId());
+        assertEquals("Coins", read.getName());
+        assertEquals(ACCOUNT_HASH, read.getAcquiredByAccountHash());
+        assertEquals(
+            OffsetDateTime.of(2024, 12, 31, 23, 59, 59, 500_000_000, ZoneOffset.ofHours(-5)),
+            read.getAcquiredAt().getValue()
+        );
+        assertNull(read.getDroppedByNPCId());
+    }
+
+    @Test
+    public void writesCompactArrayOnceGroupAllowsIt() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+
+        JsonElement json = gson.toJsonTree(unlockedItem(4151, 415));
+
+        assertTrue(json.isJsonArray());
+        JsonArray array = json.getAsJsonArray();
+        assertEquals(7, array.size());
+        assertEquals(UnlockedItem.AdapterFactory.COMPACT_VERSION, array.get(0).getAsInt());
+        assertEquals(4151, array.get(1).getAsInt());
+        assertEquals("Abyssal whip", array.get(2).getAsString());
+        // A string, a JSON number cannot hold every long
+        assertTrue(array.get(3).getAsJsonPrimitive().isString());
+        assertEquals(ACQUIRED_AT.toInstant().toEpochMilli(), array.get(4).getAsLong());
+        assertEquals(415, array.get(5).getAsInt());
+        assertEquals(9 * 3600, array.get(6).getAsInt());
+    }
+
+    @Test
+    public void compactArrayKeepsPlaceOfMissingNpc() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+
+        JsonArray array = gson.toJsonTree(unlockedItem(4151, null)).getAsJsonArray();
+
+        assertEquals(7, array.size());
+        assertTrue(array.get(5).isJsonNull());
+        assertNull(gson.fromJson(array, UnlockedItem.class).getDroppedByNPCId());
+    }
+
+    @Test
+    public void compactArrayKeepsOffset() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+
+        UnlockedItem read = gson.fromJson(gson.toJson(unlockedItem(4151, 415)), UnlockedItem.class);
+
+        assertSameUnlock(unlockedItem(4151, 415), read);
+        assertEquals(ACQUIRED_AT, read.getAcquiredAt().getValue());
+    }
+
+    @Test
+    public void compactArrayWithoutOffsetIsReadInTheLocalTimeZone() {
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        String json = "[1,4151,\"Abyssal whip\",\"" + ACCOUNT_HASH + "\"," + ACQUIRED_AT.toInstant().toEpochMilli() + ",415]";
+
+        OffsetDateTime acquiredAt = gson.fromJson(json, UnlockedItem.class).getAcquiredAt().getValue();
+
+        // The same instant, at the offset New York had then
+        assertEquals(ACQUIRED_AT.toInstant(), acquiredAt.toInstant());
+        assertEquals(
+            ZoneId.of("America/New_York").getRules().getOffset(ACQUIRED_AT.toInstant()),
+            acquiredAt.getOffset()
+        );
+    }
+
+    @Test
+    public void compactArrayWithoutAcquiredAtRoundTrips() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+        UnlockedItem unlockedItem = new UnlockedItem(4151, "Abyssal whip", ACCOUNT_HASH, null, null);
+
+        JsonArray array = gson.toJsonTree(unlockedItem).getAsJsonArray();
+        UnlockedItem read = gson.fromJson(array, UnlockedItem.class);
+
+        // Trailing absent values are left out
+        assertEquals(4, array.size());
+        assertEquals(4151, read.getId());
+        assertNull(read.getAcquiredAt());
+    }
+
+    @Test
+    public void writeFormatIsPerGson() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+        Gson otherSession = new GsonBuilder()
+            .registerTypeAdapterFactory(new UnlockedItem.AdapterFactory(new UnlockedItem.WriteFormat()))
+            .create();
+
+        assertTrue(gson.toJsonTree(unlockedItem(4151, 415)).isJsonArray());
+        assertTrue(otherSession.toJsonTree(unlockedItem(4151, 415)).isJsonObject());
+        assertTrue(new Gson().toJsonTree(unlockedItem(4151, 415)).isJsonObject());
+    }
+
+    @Test
+    public void writesLegacyObjectAgainOnceGroupFormatIsReset() {
+        writeFormat.setGroupFormatVersion(UnlockedItem.AdapterFactory.COMPACT_VERSION);
+        writeFormat.setGroupFormatVersion(null);
+
+        assertTrue(gson.toJsonTree(unlockedItem(4151, 415)).isJsonObject());
+    }
+
+    @Test
+    public void readsCompactArrayWhileWritingLegacyObjects() {
+        String json = "[1,4151,\"Abyssal whip\",\"" + ACCOUNT_HASH + "\"," + ACQUIRED_AT.toInstant().toEpochMilli() + ",415]";
+
+        UnlockedItem read = gson.fromJson(json, UnlockedItem.class);
+
+        assertSameUnlock(unlockedItem(4151, 415), read);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void rejectsUnknownCompactVersion() {
+        gson.fromJson("[2,4151,\"Abyssal whip\",\"1\",0]", UnlockedItem.class);
+    }
+
+    @Test
+    public void nullRoundTrips() {
+        assertEquals("null", gson.toJson(null, UnlockedItem.class));
+        assertNull(gson.fromJson("null", UnlockedItem.class));
+    }
+
+    private static UnlockedItem unlockedItem(int id, Integer droppedByNPCId) {
+        return new UnlockedItem(
+            id,
+            "Abyssal whip",
+            ACCOUNT_HASH,
+            new ISOOffsetDateTime(ACQUIRED_AT),
+            droppedByNPCId
+        );
+    }
+
+    private static void assertSameUnlock(UnlockedItem expected, UnlockedItem actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getAcquiredByAccountHash(), actual.getAcquiredByAccountHash());
+        assertEquals(
+            expected.getAcquiredAt().getValue().toInstant(),
+            actual.getAcquiredAt().getValue().toInstant()
+        );
+        assertEquals(expected.getDroppedByNPCId(), actual.getDroppedByNPCId());
+    }
+}
@@ -0,0 +1,451 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the Firebase Realtime Database REST API, for tests and benchmarks.
+ * <p>
+ * Implements the subset the plugin uses: GET/PUT/POST/PATCH/DELETE on {@code .json} paths (POST
+ * answers with a generated push ID), {@code print=silent}, ETags ({@code X-Firebase-ETag} and
+ * conditional PUTs with {@code if-match}), and {@code text/event-stream}
+ * subscriptions delivering {@code put}, {@code patch}, {@code keep-alive} and {@code cancel}
+ * events. Faults can be injected: added latency, failing the next requests with an HTTP status, and
+ * dropping or cancelling the open streams.
+ * <p>
+ * Listens on 127.0.0.1 on a free port; connect with {@link #getUrl()}.
+ */
+public final class FirebaseStandInServer implements AutoCloseable {
+
+    private static final String EVENT_STREAM = "text/event-stream";
+
+    private final Gson gson = new Gson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService keepAliveScheduler;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    // Guards root, and orders stream events the same way as the writes that caused them
+    private final Object dataLock = new Object();
+    private JsonElement root = JsonNull.INSTANCE;
+
+    private volatile long latencyMillis = 0;
+    private volatile int failStatus = 500;
+    private final AtomicInteger failNextCount = new AtomicInteger();
+
+    public FirebaseStandInServer() throws IOException {
+        this(Duration.ofSeconds(30));
+    }
+
+    public FirebaseStandInServer(Duration keepAliveInterval) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "firebase-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+
+        keepAliveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "firebase-stand-in-keep-alive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = keepAliveInterval.toMillis();
+        keepAliveScheduler.scheduleAtFixedRate(
+            () -> sendToAll("keep-alive", JsonNull.INSTANCE),
+            intervalMillis,
+            intervalMillis,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    public FirebaseRealtimeDatabaseURL getUrl() {
+        return FirebaseRealtimeDatabaseURL.forLoopback(server.getAddress().getPort());
+    }
+
+    @Override
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        keepAliveScheduler.shutdownNow();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // ---- Data, as seen and written by "other clients" ----
+
+    public JsonElement getData(String path) {
+        synchronized (dataLock) {
+            return valueAt(root, FirebaseSSE.splitPath(path)).deepCopy();
+        }
+    }
+
+    /**
+     * Sets {@code path} to {@code value} (null deletes) as if written by another client, notifying
+     * the open streams.
+     */
+    public void setData(String path, JsonElement value) {
+        applyPut(FirebaseSSE.splitPath(path), value);
+    }
+
+    // ---- Fault injection ----
+
+    /**
+     * Delays every request (and the start of every stream) by {@code latency}.
+     */
+    public void setLatency(Duration latency) {
+        latencyMillis = latency.toMillis();
+    }
+
+    /**
+     * Answers the next {@code count} requests, streams included, with HTTP {@code status}.
+     */
+    public void failNextRequests(int count, int status) {
+        failStatus = status;
+        failNextCount.set(count);
+    }
+
+    /**
+     * Ends every open stream without a cancel event, like a connection lost to sleep or Wi-Fi.
+     */
+    public void dropStreams() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Sends a {@code cancel} event on every open stream and ends it, as Firebase does when
+     * security rules stop allowing the read.
+     */
+    public void cancelStreams() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.send("cancel", new JsonPrimitive("Permission denied"));
+            subscriber.close();
+        }
+    }
+
+    // ---- Introspection ----
+
+    public int getStreamCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Waits until at least {@code count} streams are open.
+     *
+     * @return false on timeout
+     */
+    public boolean awaitStreams(int count, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (subscribers.size() < count) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Returns how many requests with the given HTTP method were received, streams counting as GET.
+     */
+    public int getRequestCount(String method) {
+        AtomicInteger count = requestCounts.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    // ---- HTTP ----
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            requestCounts.computeIfAbsent(method, __ -> new AtomicInteger()).incrementAndGet();
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (failNextCount.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                JsonObject error = new JsonObject();
+                error.addProperty("error", "Injected failure");
+                respond(exchange, failStatus, error);
+                return;
+            }
+
+            String rawPath = exchange.getRequestURI().getPath();
+            if (!rawPath.endsWith(".json")) {
+                JsonObject error = new JsonObject();
+                error.addProperty("error", "Path must end in .json");
+                respond(exchange, 400, error);
+                return;
+            }
+            String[] segments = FirebaseSSE.splitPath(rawPath.substring(0, rawPath.length() - 5));
+            String query = exchange.getRequestURI().getQuery();
+            boolean silent = query != null && Arrays.asList(query.split("&")).contains("print=silent");
+
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            if ("GET".equals(method) && accept != null && accept.contains(EVENT_STREAM)) {
+                openStream(exchange, segments);
+                return;
+            }
+
+            String ifMatch = exchange.getRequestHeaders().getFirst("if-match");
+            boolean wantsEtag = "true".equals(exchange.getRequestHeaders().getFirst("X-Firebase-ETag"));
+            JsonElement result;
+            String etag = null;
+            switch (method) {
+                case "GET":
+                    synchronized (dataLock) {
+                        result = valueAt(root, segments);
+                    }
+                    etag = etagOf(result);
+                    break;
+                case "PUT":
+                    result = readBody(exchange);
+                    synchronized (dataLock) {
+                        JsonElement current = valueAt(root, segments);
+                        if (ifMatch != null && !ifMatch.equals(etagOf(current))) {
+                            // Precondition failed: answer with what is stored instead
+                            exchange.getResponseHeaders().set("ETag", etagOf(current));
+                            respond(exchange, 412, current);
+                            return;
+                        }
+                        applyPut(segments, result);
+                    }
+                    etag = etagOf(result);
+                    break;
+                case "POST": {
+                    String pushId = FirebasePushIds.next();
+                    String[] childSegments = Arrays.copyOf(segments, segments.length + 1);
+                    childSegments[segments.length] = pushId;
+                    applyPut(childSegments, readBody(exchange));
+                    JsonObject name = new JsonObject();
+                    name.addProperty("name", pushId);
+                    result = name;
+                    break;
+                }
+                case "PATCH":
+                    result = readBody(exchange);
+                    if (!result.isJsonObject()) {
+                        JsonObject error = new JsonObject();
+                        error.addProperty("error", "PATCH body must be an object");
+                        respond(exchange, 400, error);
+                        return;
+                    }
+                    applyPatch(segments, result.getAsJsonObject());
+                    break;
+                case "DELETE":
+                    applyPut(segments, JsonNull.INSTANCE);
+                    result = JsonNull.INSTANCE;
+                    break;
+                default:
+                    JsonObject error = new JsonObject();
+                    error.addProperty("error", "Unsupported method " + method);
+                    respond(exchange, 405, error);
+                    return;
+            }
+
+            if (wantsEtag && etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            if (silent) {
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+                return;
+            }
+            respond(exchange, 200, result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (Exception e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", String.valueOf(e.getMessage()));
+            respond(exchange, 500, error);
+        }
+    }
+
+    private static String etagOf(JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            return "null_etag";
+        }
+        return Long.toHexString(FirebaseFingerprints.of(value));
+    }
+
+    private JsonElement readBody(HttpExchange exchange) throws IOException {
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            JsonElement body = gson.fromJson(reader, JsonElement.class);
+            return body == null ? JsonNull.INSTANCE : body;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+        // toString keeps JSON nulls
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void openStream(HttpExchange exchange, String[] segments) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", EVENT_STREAM);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        Subscriber subscriber = new Subscriber(exchange, segments);
+        synchronized (dataLock) {
+            // Initial snapshot first, so no write can slip in between it and the registration
+            subscriber.send("put", eventData(new String[0], valueAt(root, segments)));
+            subscribers.add(subscriber);
+        }
+        // The exchange stays open; events are written from the threads applying writes
+    }
+
+    // ---- Writes and event fan-out ----
+
+    private void applyPut(String[] segments, JsonElement value) {
+        JsonElement copy = value == null ? JsonNull.INSTANCE : value.deepCopy();
+        synchronized (dataLock) {
+            root = FirebaseJsonPaths.setAtPath(root, segments, 0, copy);
+            for (Subscriber subscriber : subscribers) {
+                notifyPut(subscriber, segments, copy);
+            }
+        }
+    }
+
+    private void applyPatch(String[] segments, JsonObject children) {
+        JsonObject copy = children.deepCopy();
+        synchronized (dataLock) {
+            for (Map.Entry<String, JsonElement> child : copy.entrySet()) {
+                root = FirebaseJsonPaths.setAtPath(root, childPath(segments, child.getKey()), 0, child.getValue());
+            }
+            for (Subscriber subscriber : subscribers) {
+                if (startsWith(segments, subscriber.segments)) {
+                    subscriber.send("patch", eventData(tail(segments, subscriber.segments.length), copy));
+                    continue;
+                }
+                // Subscriber below the patch location: only the children that touch it matter
+                for (Map.Entry<String, JsonElement> child : copy.entrySet()) {
+                    notifyPut(subscriber, childPath(segments, child.getKey()), child.getValue());
+                }
+            }
+        }
+    }
+
+    private void notifyPut(Subscriber subscriber, String[] segments, JsonElement value) {
+        if (startsWith(segments, subscriber.segments)) {
+            subscriber.send("put", eventData(tail(segments, subscriber.segments.length), value));
+        } else if (startsWith(subscriber.segments, segments)) {
+            // Written above the subscribed path, resend the subscribed subtree
+            subscriber.send("put", eventData(new String[0], valueAt(root, subscriber.segments)));
+        }
+    }
+
+    private void sendToAll(String event, JsonElement data) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.send(event, data);
+        }
+    }
+
+    private static JsonObject eventData(String[] relativeSegments, JsonElement data) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("path", "/" + String.join("/", relativeSegments));
+        payload.add("data", data);
+        return payload;
+    }
+
+    private static JsonElement valueAt(JsonElement node, String[] segments) {
+        for (String segment : segments) {
+            if (node == null || !node.isJsonObject()) {
+                return JsonNull.INSTANCE;
+            }
+            node = node.getAsJsonObject().get(segment);
+        }
+        return node == null ? JsonNull.INSTANCE : node;
+    }
+
+    private static String[] childPath(String[] segments, String childKey) {
+        String[] childSegments = FirebaseSSE.splitPath(childKey);
+        String[] path = Arrays.copyOf(segments, segments.length + childSegments.length);
+        System.arraycopy(childSegments, 0, path, segments.length, childSegments.length);
+        return path;
+    }
+
+    private static boolean startsWith(String[] path, String[] prefix) {
+        if (prefix.length > path.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(path[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] tail(String[] path, int from) {
+        return Arrays.copyOfRange(path, from, path.length);
+    }
+
+    private final class Subscriber {
+
+        private final HttpExchange exchange;
+        private final String[] segments;
+        private boolean closed;
+
+        private Subscriber(HttpExchange exchange, String[] segments) {
+            this.exchange = exchange;
+            this.segments = segments;
+        }
+
+        synchronized void send(String event, JsonElement data) {
+            if (closed) {
+                return;
+            }
+            String frame = "event: " + event + "\ndata: " + data + "\n\n";
+            try {
+                OutputStream out = exchange.getResponseBody();
+                out.write(frame.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // Client went away
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            subscribers.remove(this);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.elertan.remote.firebase;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FirebaseStandInServerTest {
+
+    private FirebaseStandInServer server;
+    private FirebaseRealtimeDatabase db;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FirebaseStandInServer();
+        db = new FirebaseRealtimeDatabase(new OkHttpClient(), new Gson(), server.getUrl());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+        server.close();
+    }
+
+    @Test
+    public void writeIsStreamedBackToListener() throws Exception {
+        BlockingQueue<FirebaseSSE> events = new LinkedBlockingQueue<>();
+        db.addServerSentEventListener("/Members", events::add);
+        db.startStreaming();
+        FirebaseSSE initial = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(initial);
+        assertEquals(FirebaseSSEType.Put, initial.getType());
+
+        JsonObject member = new JsonObject();
+        member.addProperty("name", "a");
+        db.put("/Members/1", member).get(10, TimeUnit.SECONDS);
+
+        FirebaseSSE update = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(update);
+        assertEquals("/Members/1", update.getPath());
+        assertEquals(member, update.getData());
+        assertEquals(member, server.getData("/Members/1"));
+    }
+
+    @Test
+    public void droppedStreamReconnectsWithFreshSnapshot() throws Exception {
+        BlockingQueue<FirebaseSSE> events = new LinkedBlockingQueue<>();
+        db.addServerSentEventListener("/Members", events::add);
+        db.startStreaming();
+        assertNotNull(events.poll(10, TimeUnit.SECONDS));
+        assertTrue(server.awaitStreams(1, Duration.ofSeconds(10)));
+
+        server.dropStreams();
+        JsonObject member = new JsonObject();
+        member.addProperty("name", "b");
+        server.setData("/Members/2", member);
+
+        FirebaseSSE snapshot = events.poll(30, TimeUnit.SECONDS);
+        assertNotNull(snapshot);
+        assertEquals("/Members", snapshot.getPath());
+        assertEquals(member, snapshot.getData().getAsJsonObject().get("2"));
+    }
+
+    @Test
+    public void putIfAbsentKeepsFirstWriter() throws Exception {
+        JsonObject first = new JsonObject();
+        first.addProperty("acquiredByAccountHash", "1");
+        JsonObject second = new JsonObject();
+        second.addProperty("acquiredByAccountHash", "2");
+
+        assertEquals(first, db.putIfAbsent("/UnlockedItems/995", first).get(10, TimeUnit.SECONDS));
+        // The losing write gets the winner back in the same round trip
+        assertEquals(first, db.putIfAbsent("/UnlockedItems/995", second).get(10, TimeUnit.SECONDS));
+        assertEquals(first, server.getData("/UnlockedItems/995"));
+        assertEquals(2, server.getRequestCount("PUT"));
+    }
+
+    @Test
+    public void readAllIsServedFromStreamSnapshot() throws Exception {
+        JsonObject member = new JsonObject();
+        member.addProperty("name", "c");
+        server.setData("/Members/3", member);
+
+        FirebaseKeyValueStorageAdapterBase<String, JsonElement> adapter = new FirebaseKeyValueStorageAdapterBase<>(
+            "/Members",
+            db,
+            new Gson(),
+            key -> key,
+            key -> key,
+            value -> value == null || value.isJsonNull() ? null : value
+        );
+        db.startStreaming();
+
+        Map<String, JsonElement> all = adapter.readAll().get(10, TimeUnit.SECONDS);
+        assertEquals(member, all.get("3"));
+        // Only the stream itself, no separate read
+        assertEquals(1, server.getRequestCount("GET"));
+        adapter.close();
+    }
+
+    @Test
+    public void injectedFailureFailsRequest() throws Exception {
+        server.failNextRequests(1, 503);
+        try {
+            db.get("/Members").get(10, TimeUnit.SECONDS);
+            fail("Expected the injected failure");
+        } catch (ExecutionException expected) {
+            // Only the next request fails
+        }
+        db.get("/Members").get(10, TimeUnit.SECONDS);
+    }
+}
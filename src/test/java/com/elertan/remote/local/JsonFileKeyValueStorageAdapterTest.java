@@ -0,0 +1,103 @@
+package com.elertan.remote.local;
+
+import com.google.gson.Gson;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonFileKeyValueStorageAdapterTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    // With its key and record header a little over 1 KB in the journal
+    private static final String VALUE = "x".repeat(1_000);
+    // The first record that takes the journal past the 64 KB compaction minimum
+    private static final int RECORDS_TO_COMPACT = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private Path journalPath;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("test.json");
+        journalPath = LocalStorageAdapters.JsonFileKeyValueStorageAdapter.journalPathFor(path);
+    }
+
+    @Test
+    public void keepsChangesInJournalBelowCompactionThreshold() throws Exception {
+        LocalStorageAdapters.JsonFileKeyValueStorageAdapter<String, String> adapter = open();
+        for (int i = 0; i < RECORDS_TO_COMPACT - 1; i++) {
+            await(adapter.update("key-" + i, VALUE));
+        }
+        await(adapter.readAll());
+
+        assertFalse(Files.exists(path));
+        assertTrue(Files.size(journalPath) < 64 * 1024);
+        adapter.close();
+
+        assertEquals(RECORDS_TO_COMPACT - 1, await(open().readAll()).size());
+    }
+
+    @Test
+    public void compactsJournalIntoSnapshotPastThreshold() throws Exception {
+        LocalStorageAdapters.JsonFileKeyValueStorageAdapter<String, String> adapter = open();
+        for (int i = 0; i < RECORDS_TO_COMPACT + 5; i++) {
+            await(adapter.update("key-" + i, VALUE));
+        }
+        // Queued behind the commit that compacted
+        await(adapter.readAll());
+
+        assertTrue(Files.exists(path));
+        // Only the records after the compaction are left
+        assertTrue(Files.size(journalPath) < 10 * 1024);
+        adapter.close();
+
+        Map<String, String> reopened = await(open().readAll());
+        assertEquals(RECORDS_TO_COMPACT + 5, reopened.size());
+        assertEquals(VALUE, reopened.get("key-0"));
+    }
+
+    @Test
+    public void failsChangesAfterClose() throws Exception {
+        LocalStorageAdapters.JsonFileKeyValueStorageAdapter<String, String> adapter = open();
+        await(adapter.update("key", VALUE));
+        adapter.close();
+
+        try {
+            await(adapter.update("other", VALUE));
+            fail("Expected the update to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals("closed", e.getCause().getMessage());
+        }
+    }
+
+    private LocalStorageAdapters.JsonFileKeyValueStorageAdapter<String, String> open() {
+        return new LocalStorageAdapters.JsonFileKeyValueStorageAdapter<>(
+            path,
+            new Gson(),
+            Function.identity(),
+            Function.identity(),
+            String.class
+        );
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,154 @@
+package com.elertan.remote.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalJournalTest {
+
+    private static final int HEADER_BYTES = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = folder.getRoot().toPath().resolve("test.journal");
+    }
+
+    @Test
+    public void readsBackAppendedRecords() throws IOException {
+        write("first", "second", "third");
+
+        LocalJournal journal = new LocalJournal(path);
+        assertRecords(journal.readAll(), "first", "second", "third");
+        assertEquals(Files.size(path), journal.size());
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        LocalJournal journal = new LocalJournal(path);
+
+        assertTrue(journal.readAll().isEmpty());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void cutsOffTornTail() throws IOException {
+        write("first", "second");
+        long intactBytes = HEADER_BYTES + "first".length();
+        // A crash halfway through writing the second record
+        truncate(Files.size(path) - 3);
+
+        LocalJournal journal = new LocalJournal(path);
+        assertRecords(journal.readAll(), "first");
+        assertEquals(intactBytes, journal.size());
+        assertEquals(intactBytes, Files.size(path));
+    }
+
+    @Test
+    public void cutsOffTornHeader() throws IOException {
+        write("first", "second");
+        truncate(HEADER_BYTES + "first".length() + 5);
+
+        LocalJournal journal = new LocalJournal(path);
+        assertRecords(journal.readAll(), "first");
+    }
+
+    @Test
+    public void stopsAtChecksumMismatch() throws IOException {
+        write("first", "second", "third");
+        // Flip a payload byte of the second record
+        overwrite(HEADER_BYTES + "first".length() + HEADER_BYTES, (byte) 'S');
+
+        LocalJournal journal = new LocalJournal(path);
+        assertRecords(journal.readAll(), "first");
+        assertEquals(HEADER_BYTES + "first".length(), Files.size(path));
+    }
+
+    @Test
+    public void stopsAtImpossibleLength() throws IOException {
+        write("first", "second");
+        ByteBuffer length = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE);
+        length.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(length, HEADER_BYTES + "first".length());
+        }
+
+        LocalJournal journal = new LocalJournal(path);
+        assertRecords(journal.readAll(), "first");
+    }
+
+    @Test
+    public void appendsAfterCutOffTail() throws IOException {
+        write("first", "second");
+        truncate(Files.size(path) - 1);
+
+        LocalJournal journal = new LocalJournal(path);
+        journal.readAll();
+        journal.append(bytes("third"));
+        journal.close();
+
+        assertRecords(new LocalJournal(path).readAll(), "first", "third");
+    }
+
+    @Test
+    public void resetDeletesFile() throws IOException {
+        write("first");
+
+        LocalJournal journal = new LocalJournal(path);
+        journal.readAll();
+        journal.reset();
+
+        assertFalse(Files.exists(path));
+        assertEquals(0, journal.size());
+    }
+
+    private void write(String... payloads) throws IOException {
+        LocalJournal journal = new LocalJournal(path);
+        journal.readAll();
+        for (String payload : payloads) {
+            journal.append(bytes(payload));
+        }
+        journal.sync();
+        journal.close();
+    }
+
+    private void truncate(long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private void overwrite(long position, byte value) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{value}), position);
+        }
+    }
+
+    private static byte[] bytes(String payload) {
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertRecords(List<byte[]> records, String... expected) {
+        assertEquals(expected.length, records.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], new String(records.get(i), StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.elertan.remote.local;
+
+import com.elertan.models.ISOOffsetDateTime;
+import com.elertan.models.UnlockedItem;
+import com.elertan.remote.KeyValueStoragePort;
+import com.elertan.remote.ObjectStoragePort;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Throughput and crash-consistency harness for the local storage adapters. Run {@link #main} from
+ * the test classpath:
+ * <ul>
+ * <li>{@code bench [engine...]} drives every engine with unlock bursts of {@link #BURST_SIZES}
+ * items and prints ops/sec, bytes written (Linux only, from {@code /proc/self/io}) and p99 latency
+ * per update, measured from the call until its future completes.</li>
+ * <li>{@code crash [rounds] [directory]} repeatedly forks a {@link CrashWriter} JVM that unlocks
+ * items as fast as it can, kills it at a random point, and reopens its files. Fails if reopening
+ * throws {@link LocalStorageAdapters.UnreadableLocalProgressException} or an acknowledged write is
+ * missing.</li>
+ * </ul>
+ * A new local engine is benchmarked and crash-tested by adding it to {@link #ENGINES}.
+ * <p>
+ * A killed process leaves what it wrote in the OS page cache, so the crash mode covers torn
+ * appends and interrupted renames, not power loss.
+ */
+public final class LocalStorageBenchmark {
+
+    static final int[] BURST_SIZES = {1, 100, 1_000, 10_000};
+    // Bursts of a size are repeated until about this many updates were made...
+    private static final int TARGET_UPDATES = 2_000;
+    // ...but at most this often, single updates each wait out a group commit window
+    private static final int MAX_BURSTS = 100;
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final long ACCOUNT_HASH = 8_529_403_712_345L;
+    private static final Gson GSON = new Gson();
+
+    /**
+     * A local key-value engine, opened on the files in {@code directory}.
+     */
+    interface Engine {
+
+        KeyValueStoragePort<Integer, UnlockedItem> open(Path directory);
+    }
+
+    static final Map<String, Engine> ENGINES = new LinkedHashMap<>();
+
+    static {
+        ENGINES.put("json+journal", directory -> new LocalStorageAdapters.JsonFileKeyValueStorageAdapter<>(
+            directory.resolve("UnlockedItems.json"),
+            GSON,
+            Object::toString,
+            Integer::valueOf,
+            UnlockedItem.class
+        ));
+        ENGINES.put("json+journal+binary", directory -> new LocalStorageAdapters.JsonFileKeyValueStorageAdapter<>(
+            directory.resolve("UnlockedItems.json"),
+            GSON,
+            Object::toString,
+            Integer::valueOf,
+            UnlockedItem.class,
+            new UnlockedItemsBinarySnapshot()
+        ));
+    }
+
+    private LocalStorageBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "bench";
+        if (mode.equals("bench")) {
+            List<String> engines = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length)
+                : new ArrayList<>(ENGINES.keySet());
+            bench(engines);
+        } else if (mode.equals("crash")) {
+            int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+            Path directory = args.length > 2 ? Paths.get(args[2]) : Files.createTempDirectory("bu-crash");
+            for (String engine : ENGINES.keySet()) {
+                CrashResult result = crash(engine, directory.resolve(engine), rounds, System.nanoTime());
+                System.out.printf(
+                    "%-22s %d rounds, %d acknowledged unlocks, all present after every kill%n",
+                    engine,
+                    rounds,
+                    result.acknowledged
+                );
+            }
+        } else {
+            System.err.println("Usage: LocalStorageBenchmark bench [engine...] | crash [rounds] [directory]");
+            System.exit(2);
+        }
+    }
+
+    static void bench(List<String> engines) throws Exception {
+        System.out.printf("%-22s %7s %12s %14s %10s%n", "engine", "burst", "ops/sec", "bytes written", "p99 ms");
+        for (String name : engines) {
+            Engine engine = ENGINES.get(name);
+            if (engine == null) {
+                throw new IllegalArgumentException("Unknown engine " + name + ", known: " + ENGINES.keySet());
+            }
+            for (int burstSize : BURST_SIZES) {
+                Path directory = Files.createTempDirectory("bu-bench");
+                try (KeyValueStoragePort<Integer, UnlockedItem> port = engine.open(directory)) {
+                    port.readAll().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    runBursts(name, burstSize, (id, item) -> port.update(id, item));
+                } finally {
+                    deleteRecursively(directory);
+                }
+            }
+        }
+        for (int burstSize : BURST_SIZES) {
+            Path directory = Files.createTempDirectory("bu-bench");
+            // The object adapter rewrites its whole file per update, here the last unlocked item
+            ObjectStoragePort<UnlockedItem> port = new LocalStorageAdapters.JsonFileObjectStorageAdapter<>(
+                directory.resolve("LastUnlockedItem.json"),
+                GSON,
+                UnlockedItem.class
+            );
+            try {
+                runBursts("object", burstSize, (id, item) -> port.update(item));
+            } finally {
+                port.close();
+                deleteRecursively(directory);
+            }
+        }
+    }
+
+    private interface Update {
+
+        CompletableFuture<Void> apply(int id, UnlockedItem item);
+    }
+
+    private static void runBursts(String name, int burstSize, Update update) throws Exception {
+        int bursts = Math.max(1, Math.min(MAX_BURSTS, TARGET_UPDATES / burstSize));
+        long[] latencies = new long[bursts * burstSize];
+        long bytesBefore = processBytesWritten();
+        long start = System.nanoTime();
+        int id = 0;
+        for (int burst = 0; burst < bursts; burst++) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(burstSize);
+            for (int i = 0; i < burstSize; i++, id++) {
+                int index = id;
+                long calledAt = System.nanoTime();
+                futures.add(update.apply(id, unlockedItem(id))
+                    .thenRun(() -> latencies[index] = System.nanoTime() - calledAt));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytesAfter = processBytesWritten();
+
+        Arrays.sort(latencies);
+        long p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+        System.out.printf(
+            "%-22s %7d %12.0f %14s %10.2f%n",
+            name,
+            burstSize,
+            latencies.length / (elapsed / 1e9),
+            bytesBefore < 0 ? "n/a" : String.valueOf(bytesAfter - bytesBefore),
+            p99 / 1e6
+        );
+    }
+
+    static final class CrashResult {
+
+        final int acknowledged;
+
+        CrashResult(int acknowledged) {
+            this.acknowledged = acknowledged;
+        }
+    }
+
+    /**
+     * Kills a writer {@code rounds} times, each time after a random part of its work, and checks
+     * the files it leaves behind.
+     *
+     * @throws IllegalStateException when the files cannot be read or lost an acknowledged write
+     */
+    static CrashResult crash(String engineName, Path directory, int rounds, long seed) throws Exception {
+        Files.createDirectories(directory);
+        Engine engine = ENGINES.get(engineName);
+        Random random = new Random(seed);
+        Set<Integer> acknowledged = ConcurrentHashMap.newKeySet();
+        AtomicInteger lastAcknowledgedObject = new AtomicInteger(-1);
+
+        for (int round = 0; round < rounds; round++) {
+            Process writer = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp",
+                System.getProperty("java.class.path"),
+                CrashWriter.class.getName(),
+                engineName,
+                directory.toString(),
+                String.valueOf(round * 1_000_000)
+            ).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+            CompletableFuture<Void> firstAck = new CompletableFuture<>();
+            Thread reader = new Thread(() -> readAcks(writer, acknowledged, lastAcknowledgedObject, firstAck));
+            reader.setDaemon(true);
+            reader.start();
+            try {
+                firstAck.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                writer.destroyForcibly();
+                throw new IllegalStateException("Writer of round " + round + " never acknowledged a write", e);
+            }
+            Thread.sleep(random.nextInt(500));
+            writer.destroyForcibly().waitFor();
+            reader.join();
+
+            verify(engine, directory, round, acknowledged, lastAcknowledgedObject.get());
+        }
+        return new CrashResult(acknowledged.size());
+    }
+
+    private static void readAcks(
+        Process writer,
+        Set<Integer> acknowledged,
+        AtomicInteger lastAcknowledgedObject,
+        CompletableFuture<Void> firstAck
+    ) {
+        try (Reader reader = new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = reader.read()) >= 0) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                // Only whole lines count, the kill can cut the last one off
+                String[] parts = line.toString().split(" ");
+                line.setLength(0);
+                int id = Integer.parseInt(parts[1]);
+                if (parts[0].equals("kv")) {
+                    acknowledged.add(id);
+                } else if (parts[0].equals("obj")) {
+                    lastAcknowledgedObject.accumulateAndGet(id, Math::max);
+                }
+                firstAck.complete(null);
+            }
+        } catch (IOException e) {
+            // The pipe closes when the writer is killed
+        }
+    }
+
+    private static void verify(
+        Engine engine,
+        Path directory,
+        int round,
+        Set<Integer> acknowledged,
+        int lastAcknowledgedObject
+    ) throws Exception {
+        Map<Integer, UnlockedItem> items;
+        UnlockedItem lastObject;
+        try (KeyValueStoragePort<Integer, UnlockedItem> port = engine.open(directory)) {
+            items = port.readAll().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unlocked items unreadable after kill in round " + round, e.getCause());
+        }
+        ObjectStoragePort<UnlockedItem> objectPort = openObject(directory);
+        try {
+            lastObject = objectPort.read().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Object file unreadable after kill in round " + round, e.getCause());
+        } finally {
+            objectPort.close();
+        }
+
+        for (int id : acknowledged) {
+            UnlockedItem item = items.get(id);
+            if (item == null || item.getId() != id) {
+                throw new IllegalStateException("Acknowledged unlock " + id + " lost after kill in round " + round);
+            }
+        }
+        // The file holds the last write that reached it, which can be newer than the last ack
+        if (lastAcknowledgedObject >= 0 && (lastObject == null || lastObject.getId() < lastAcknowledgedObject)) {
+            throw new IllegalStateException("Acknowledged object write " + lastAcknowledgedObject
+                + " lost after kill in round " + round + ", found " + lastObject);
+        }
+    }
+
+    private static ObjectStoragePort<UnlockedItem> openObject(Path directory) {
+        return new LocalStorageAdapters.JsonFileObjectStorageAdapter<>(
+            directory.resolve("LastUnlockedItem.json"),
+            GSON,
+            UnlockedItem.class
+        );
+    }
+
+    /**
+     * Forked by {@link #crash}: unlocks items in random bursts until killed, printing
+     * {@code kv <id>} and {@code obj <id>} once a write is acknowledged.
+     */
+    static final class CrashWriter {
+
+        public static void main(String[] args) throws Exception {
+            Engine engine = ENGINES.get(args[0]);
+            Path directory = Paths.get(args[1]);
+            int id = Integer.parseInt(args[2]);
+            Random random = new Random();
+            KeyValueStoragePort<Integer, UnlockedItem> port = engine.open(directory);
+            ObjectStoragePort<UnlockedItem> objectPort = openObject(directory);
+
+            while (true) {
+                int burstSize = 1 + random.nextInt(200);
+                List<CompletableFuture<Void>> futures = new ArrayList<>(burstSize);
+                for (int i = 0; i < burstSize; i++, id++) {
+                    int unlockedId = id;
+                    futures.add(port.update(unlockedId, unlockedItem(unlockedId))
+                        .thenRun(() -> acknowledge("kv", unlockedId)));
+                }
+                int objectId = id - 1;
+                futures.add(objectPort.update(unlockedItem(objectId))
+                    .thenRun(() -> acknowledge("obj", objectId)));
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+            }
+        }
+
+        private static synchronized void acknowledge(String kind, int id) {
+            System.out.println(kind + " " + id);
+            System.out.flush();
+        }
+    }
+
+    private static UnlockedItem unlockedItem(int id) {
+        return new UnlockedItem(
+            id,
+            "Item " + id,
+            ACCOUNT_HASH,
+            new ISOOffsetDateTime(OffsetDateTime.now(ZoneId.systemDefault())),
+            id % 3 == 0 ? null : id % 5_000
+        );
+    }
+
+    private static long processBytesWritten() {
+        File io = new File("/proc/self/io");
+        if (!io.exists()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(io.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("wchar:")) {
+                    return Long.parseLong(line.substring("wchar:".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available
+        }
+        return -1;
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // A closed adapter can still be finishing its last commit, leave the temp files
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.elertan.remote.local;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertTrue;
+
+public class LocalStorageCrashTest {
+
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void killedWriterLosesNoAcknowledgedUnlock() throws Exception {
+        for (String engine : LocalStorageBenchmark.ENGINES.keySet()) {
+            // Throws when reopening fails or an acknowledged write is missing
+            LocalStorageBenchmark.CrashResult result = LocalStorageBenchmark.crash(
+                engine,
+                folder.newFolder().toPath(),
+                ROUNDS,
+                42
+            );
+            assertTrue(result.acknowledged > 0);
+        }
+    }
+}
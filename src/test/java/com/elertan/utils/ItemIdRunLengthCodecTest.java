@@ -0,0 +1,86 @@
+package com.elertan.utils;
+
+import java.util.BitSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ItemIdRunLengthCodecTest {
+
+    @Test
+    public void emptySetRoundTrips() {
+        String encoded = ItemIdRunLengthCodec.encode(new BitSet());
+
+        assertEquals("1:", encoded);
+        assertTrue(ItemIdRunLengthCodec.decode(encoded).isEmpty());
+    }
+
+    @Test
+    public void idZeroRoundTrips() {
+        assertRoundTrips(bitSet(0));
+        assertRoundTrips(bitSet(0, 1, 2, 5));
+    }
+
+    @Test
+    public void runsRoundTrip() {
+        BitSet itemIds = new BitSet();
+        itemIds.set(4151, 4160);
+        itemIds.set(11802, 11807);
+        itemIds.set(995);
+
+        assertRoundTrips(itemIds);
+    }
+
+    @Test
+    public void largeGapsRoundTrip() {
+        // Gaps and runs that need multi-byte varints
+        BitSet itemIds = bitSet(1, 128, 16_511, 2_097_279, 30_000_000);
+        itemIds.set(30_000_010, 30_020_000);
+
+        assertRoundTrips(itemIds);
+    }
+
+    @Test
+    public void encodedStartsWithVersionPrefix() {
+        assertTrue(ItemIdRunLengthCodec.encode(bitSet(4151)).startsWith("1:"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMissingPrefix() {
+        ItemIdRunLengthCodec.decode("AQE");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        ItemIdRunLengthCodec.decode("2:AQE");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBase64() {
+        ItemIdRunLengthCodec.decode("1:!!");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedVarint() {
+        // 0x80 announces a continuation byte that is not there
+        ItemIdRunLengthCodec.decode("1:gA");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsGapWithoutLength() {
+        ItemIdRunLengthCodec.decode("1:AQ");
+    }
+
+    private static void assertRoundTrips(BitSet itemIds) {
+        assertEquals(itemIds, ItemIdRunLengthCodec.decode(ItemIdRunLengthCodec.encode(itemIds)));
+    }
+
+    private static BitSet bitSet(int... itemIds) {
+        BitSet bitSet = new BitSet();
+        for (int itemId : itemIds) {
+            bitSet.set(itemId);
+        }
+        return bitSet;
+    }
+}